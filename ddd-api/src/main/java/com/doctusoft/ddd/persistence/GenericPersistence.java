@@ -7,6 +7,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
+import java.util.function.*;
 import java.util.stream.*;
 
 import static com.doctusoft.java.Failsafe.checkArgument;
@@ -74,6 +75,18 @@ public interface GenericPersistence {
         return resultList;
     }
     
+    /**
+     * @return The entities found by the given keys of any kinds, which are loaded by {@link #loadByIdAsc(Class,
+     * Collection)} per kind by default.
+     */
+    @NotNull default Map<EntityKey<?>, Entity> loadMany(@NotNull Collection<? extends EntityKey<?>> keys) {
+        Map<Class<? extends Entity>, List<Object>> idsByKind = new HashMap<>();
+        keys.forEach(key -> idsByKind.computeIfAbsent(key.getKind(), kind -> new ArrayList<>()).add(key.getId()));
+        Map<EntityKey<?>, Entity> resultMap = new HashMap<>();
+        idsByKind.forEach((kind, ids) -> loadByIdAsc(kind, ids).forEach(entity -> resultMap.put(entity.getKey(), entity)));
+        return resultMap;
+    }
+    
     default <T extends Entity> void insertMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> newEntities) {
         EntityClass<T> entityClass = EntityClass.of(kind);
         newEntities
@@ -95,6 +108,72 @@ public interface GenericPersistence {
             });
     }
     
+    /**
+     * Saves the entities by resolving which of them exist already by a single {@link #existingIds(Class, Collection)}
+     * invocation, then passing the new ones to {@link #insertMany(Class, Collection)} and the existing ones to
+     * {@link #updateMany(Class, Collection)}. Unlike {@link #save(Entity)}, the existing entities are not locked. If
+     * multiple entities have the same id, only the last one is saved.
+     */
+    default <T extends Entity> void saveMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> entities) {
+        EntityClass<T> entityClass = EntityClass.of(kind);
+        Map<Object, T> entitiesById = new LinkedHashMap<>();
+        entities.forEach(entity -> {
+            entityClass.checkInstance(entity);
+            entitiesById.put(entity.getId(), entity);
+        });
+        if (entitiesById.isEmpty()) {
+            return;
+        }
+        Set<Object> existingIds = existingIds(kind, entitiesById.keySet());
+        List<T> newEntities = new ArrayList<>();
+        List<T> changedEntities = new ArrayList<>();
+        entitiesById.forEach((id, entity) -> (existingIds.contains(id) ? changedEntities : newEntities).add(entity));
+        if (!newEntities.isEmpty()) {
+            insertMany(kind, newEntities);
+        }
+        if (!changedEntities.isEmpty()) {
+            updateMany(kind, changedEntities);
+        }
+    }
+    
+    /**
+     * @return The ids of the given ones which have entities of <code>kind</code>, which are loaded by
+     * {@link #loadByIdAsc(Class, Collection)} by default.
+     */
+    @NotNull default Set<Object> existingIds(@NotNull Class<? extends Entity> kind, @NotNull Collection idList) {
+        return loadByIdAsc(kind, idList)
+            .stream()
+            .map(Entity::getId)
+            .collect(Collectors.toSet());
+    }
+    
+    /**
+     * Removes the entities of <code>kind</code> by their ids, the ids of missing entities are ignored. By default the
+     * entities are loaded by {@link #loadByIdAsc(Class, Collection)} and removed one by one.
+     *
+     * @return The number of entities removed.
+     */
+    default <T extends Entity> int removeMany(@NotNull Class<T> kind, @NotNull Collection idList) {
+        List<T> entities = loadByIdAsc(kind, idList);
+        entities.forEach(this::remove);
+        return entities.size();
+    }
+    
+    /**
+     * Removes the entities of the given keys of any kinds by {@link #removeMany(Class, Collection)} per kind.
+     *
+     * @return The number of entities removed.
+     */
+    default int removeByKeys(@NotNull Collection<? extends EntityKey<?>> keys) {
+        Map<Class<? extends Entity>, List<Object>> idsByKind = new LinkedHashMap<>();
+        keys.forEach(key -> idsByKind.computeIfAbsent(key.getKind(), kind -> new ArrayList<>()).add(key.getId()));
+        int removed = 0;
+        for (Map.Entry<Class<? extends Entity>, List<Object>> entry : idsByKind.entrySet()) {
+            removed += removeMany(entry.getKey(), entry.getValue());
+        }
+        return removed;
+    }
+    
     /**
      * @param kind
      * @return All instances of an entityKind, if it counts less than {@link #SMALL_DATASET_ROW_LIMIT}.
@@ -104,6 +183,18 @@ public interface GenericPersistence {
     
     int SMALL_DATASET_ROW_LIMIT = 1000;
     
+    /**
+     * @return All instances of an entityKind ordered by id, loaded lazily in batches of <code>batchSize</code>.
+     * The default implementation loads the whole kind by {@link #loadSmallDataset(Class)}, implementations override it
+     * by keyset pagination (see: {@link #streamByKeyset(int, BiFunction, Runnable)}).
+     */
+    default <T extends Entity> Stream<T> stream(@NotNull Class<T> kind, int batchSize) {
+        checkArgument(batchSize > 0, () -> "batchSize=" + batchSize);
+        return loadSmallDataset(kind)
+            .stream()
+            .sorted(Comparator.comparing(entity -> (Comparable) entity.getId()));
+    }
+    
     /* Exception handling: */
     
     static <T extends Entity> List<T> checkSmallDataset(Class<T> kind, List<T> entities) {
@@ -111,4 +202,46 @@ public interface GenericPersistence {
         return entities;
     }
     
+    /* Keyset pagination: */
+    
+    /**
+     * @param batchLoader Loads at most the given number of entities ordered by id, with ids greater than the given one,
+     * which is <code>null</code> for the first batch.
+     * @param afterBatch Invoked before loading the next batch, e.g. to evict the previous one from the cache.
+     * @return A lazy stream of the batches loaded until the first incomplete one.
+     */
+    static <T extends Entity> Stream<T> streamByKeyset(int batchSize, @NotNull BiFunction<Object, Integer, List<T>> batchLoader,
+        @NotNull Runnable afterBatch) {
+        checkArgument(batchSize > 0, () -> "batchSize=" + batchSize);
+        Spliterator<T> spliterator = new Spliterators.AbstractSpliterator<T>(Long.MAX_VALUE,
+            Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL) {
+            
+            private Iterator<T> batch;
+            
+            private Object lastId;
+            
+            private boolean lastBatch;
+            
+            public boolean tryAdvance(Consumer<? super T> action) {
+                while (batch == null || !batch.hasNext()) {
+                    if (lastBatch) {
+                        return false;
+                    }
+                    if (batch != null) {
+                        afterBatch.run();
+                    }
+                    List<T> entities = batchLoader.apply(lastId, batchSize);
+                    lastBatch = entities.size() < batchSize;
+                    if (!entities.isEmpty()) {
+                        lastId = entities.get(entities.size() - 1).getId();
+                    }
+                    batch = entities.iterator();
+                }
+                action.accept(batch.next());
+                return true;
+            }
+        };
+        return StreamSupport.stream(spliterator, false);
+    }
+    
 }
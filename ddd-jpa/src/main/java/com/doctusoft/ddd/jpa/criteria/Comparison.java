@@ -0,0 +1,38 @@
+package com.doctusoft.ddd.jpa.criteria;
+
+import lombok.RequiredArgsConstructor;
+
+import javax.persistence.criteria.CriteriaBuilder;
+import javax.persistence.criteria.Expression;
+import javax.persistence.criteria.Predicate;
+import java.util.function.*;
+
+/**
+ * Comparison operators which can be evaluated both by JPA and in memory (see: {@link InMemoryEntityQuery}).
+ */
+@RequiredArgsConstructor
+public enum Comparison {
+    
+    LESS_THAN(result -> result < 0),
+    LESS_THAN_OR_EQUAL_TO(result -> result <= 0),
+    GREATER_THAN(result -> result > 0),
+    GREATER_THAN_OR_EQUAL_TO(result -> result >= 0);
+    
+    private final IntPredicate compareResultTest;
+    
+    <C extends Comparable<? super C>> Predicate apply(CriteriaBuilder builder, Expression<? extends C> left, C right) {
+        switch (this) {
+            case LESS_THAN:
+                return builder.lessThan(left, right);
+            case LESS_THAN_OR_EQUAL_TO:
+                return builder.lessThanOrEqualTo(left, right);
+            case GREATER_THAN:
+                return builder.greaterThan(left, right);
+            default:
+                return builder.greaterThanOrEqualTo(left, right);
+        }
+    }
+    
+    <C extends Comparable<? super C>> boolean test(C left, C right) { return compareResultTest.test(left.compareTo(right)); }
+    
+}
@@ -9,6 +9,7 @@ import lombok.Getter;
 import lombok.NonNull;
 import lombok.RequiredArgsConstructor;
 import lombok.experimental.Accessors;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.persistence.criteria.*;
@@ -20,18 +21,43 @@ import static java.util.Objects.*;
 
 @Getter
 @Accessors(fluent = true)
-@RequiredArgsConstructor(staticName = "create")
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
 public final class EntityCriteria<T extends Entity> {
     
+    public static <T extends Entity> EntityCriteria<T> create(@NonNull EntityClass<? extends T> entityClass, @NonNull CriteriaBuilder builder) {
+        return new EntityCriteria<>(entityClass, builder);
+    }
+    
+    /**
+     * @return Criteria without a {@link CriteriaBuilder}, which can only be evaluated in memory.
+     */
+    static <T extends Entity> EntityCriteria<T> detached(@NonNull EntityClass<? extends T> entityClass) {
+        return new EntityCriteria<>(entityClass, null);
+    }
+    
     @NonNull private final EntityClass<? extends T> entityClass;
     
-    @NonNull private final CriteriaBuilder builder;
+    private final CriteriaBuilder builder;
     
     @Getter(AccessLevel.PACKAGE)
     private final List<Function<Root, Predicate>> conditions = new ArrayList<>();
     
+    /**
+     * The in-memory equivalents of the {@link #conditions}, in the same order.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private final List<InMemoryCondition> inMemoryConditions = new ArrayList<>();
+    
+    /**
+     * Adds a custom condition, which cannot be evaluated in memory by {@link InMemoryEntityQuery}.
+     */
     public EntityCriteria<T> addCondition(Function<Root, Predicate> condition) {
+        return addCondition(condition, InMemoryCondition.unsupported("custom condition"));
+    }
+    
+    private EntityCriteria<T> addCondition(Function<Root, Predicate> condition, @NotNull InMemoryCondition inMemoryCondition) {
         conditions.add(condition);
+        inMemoryConditions.add(inMemoryCondition);
         return this;
     }
     
@@ -46,24 +72,32 @@ public final class EntityCriteria<T extends Entity> {
     
     <U> Function<Root, Path<U>> get(String attributeName) { return root -> root.get(attributeName); }
     
+    /**
+     * Adds a custom filter of an attribute, which cannot be evaluated in memory by {@link InMemoryEntityQuery}.
+     */
     public <U> EntityCriteria<T> filter(String attributeName, Function<Expression<U>, Predicate> filter) {
+        return filter(attributeName, filter, InMemoryCondition.unsupported("custom filter of " + attributeName));
+    }
+    
+    private <U> EntityCriteria<T> filter(String attributeName, Function<Expression<U>, Predicate> filter, InMemoryCondition inMemoryCondition) {
         Function<Root, Path<U>> attrFun = get(attributeName);
-        addCondition(attrFun.andThen(filter));
-        return this;
+        return addCondition(attrFun.andThen(filter), inMemoryCondition);
     }
     
+    /**
+     * Adds a custom filter of two attributes, which cannot be evaluated in memory by {@link InMemoryEntityQuery}.
+     */
     public EntityCriteria<T> filter(String attributeName1, BinaryFilterOperation operator, String attributeName2) {
-        addCondition(r -> {
+        return addCondition(r -> {
             Path path1 = r.get(attributeName1);
             Path path2 = r.get(attributeName2);
             return operator.apply(builder, path1, path2);
-        });
-        return this;
+        }, InMemoryCondition.unsupported("custom filter of " + attributeName1 + " and " + attributeName2));
     }
     
     public EntityCriteria<T> equalTo(String attributeName, Object value) {
         requireNonNull(value);
-        return filter(attributeName, attr -> builder.equal(attr, value));
+        return filter(attributeName, attr -> builder.equal(attr, value), InMemoryCondition.attributeEqualTo(attributeName, value));
     }
     
     public EntityCriteria<T> equalToNullSafe(String attributeName, @Nullable Object value) {
@@ -71,16 +105,17 @@ public final class EntityCriteria<T extends Entity> {
     }
     
     public EntityCriteria<T> isNull(String attributeName) {
-        return filter(attributeName, builder::isNull);
+        return filter(attributeName, attr -> builder.isNull(attr), InMemoryCondition.attribute(attributeName, Objects::isNull));
     }
     
     public EntityCriteria<T> isNotNull(String attributeName) {
-        return filter(attributeName, builder::isNotNull);
+        return filter(attributeName, attr -> builder.isNotNull(attr), InMemoryCondition.attribute(attributeName, Objects::nonNull));
     }
     
     public EntityCriteria<T> like(String attributeName, String pattern) {
         requireNonNull(pattern);
-        return filter(attributeName, (Expression<String> attr) -> builder.like(attr, pattern));
+        return filter(attributeName, (Expression<String> attr) -> builder.like(attr, pattern),
+            InMemoryCondition.attribute(attributeName, InMemoryCondition.like(pattern)));
     }
     
     public EntityCriteria<T> startsWith(String attributeName, String prefix) {
@@ -98,33 +133,47 @@ public final class EntityCriteria<T extends Entity> {
     
     public EntityCriteria<T> idEquals(Object value) {
         entityClass.checkId(value);
-        return addCondition(root -> builder.equal(root.get(Entity.ID), value));
+        return addCondition(root -> builder.equal(root.get(Entity.ID), value), InMemoryCondition.idIn(Collections.singleton(value)));
     }
     
     public EntityCriteria<T> idIn(Collection<?> ids) {
         ids.forEach(entityClass::checkId);
-        return addCondition(root -> root.get(Entity.ID).in(ids));
+        return addCondition(root -> root.get(Entity.ID).in(ids), InMemoryCondition.idIn(ids));
     }
     
     public EntityCriteria<T> idInNumericRange(ClosedRange<Long> idRange) {
         Failsafe.checkState(entityClass.hasLongId(), "Not EntityWithLongId: " + entityClass);
-        return addCondition(root -> builder.between(root.get(Entity.ID), idRange.getLowerBound(), idRange.getUpperBound()));
+        return addCondition(root -> builder.between(root.get(Entity.ID), idRange.getLowerBound(), idRange.getUpperBound()),
+            InMemoryCondition.idInRange(idRange));
     }
     
     public EntityCriteria<T> idInLexicographicalRange(ClosedRange<String> idRange) {
         Failsafe.checkState(entityClass.hasStringId(), "Not EntityWithStringId: " + entityClass);
-        return addCondition(root -> builder.between(root.get(Entity.ID), idRange.getLowerBound(), idRange.getUpperBound()));
+        return addCondition(root -> builder.between(root.get(Entity.ID), idRange.getLowerBound(), idRange.getUpperBound()),
+            InMemoryCondition.idInRange(idRange));
     }
     
     public EntityCriteria<T> idLike(String idPattern) {
-        return addCondition(idAsString().andThen(id -> builder.like(id, idPattern)));
+        return addCondition(idAsString().andThen(id -> builder.like(id, idPattern)),
+            InMemoryCondition.attribute(Entity.ID, InMemoryCondition.like(idPattern)));
     }
     
     public EntityCriteria<T> idStartsWith(String idPrefix) { return idLike(idPrefix + "%"); }
     
+    /**
+     * Adds a custom comparison of the id, which cannot be evaluated in memory by {@link InMemoryEntityQuery}, unlike
+     * {@link #compareId(Comparison, Comparable)}.
+     */
     public <C extends Comparable> EntityCriteria<T> compareId(BiFunction<Expression, C, Predicate> operator, C value) {
         entityClass.checkId(value);
-        return addCondition(root -> operator.apply(root.get(Entity.ID), value));
+        return addCondition(root -> operator.apply(root.get(Entity.ID), value), InMemoryCondition.unsupported("custom comparison of id"));
+    }
+    
+    public <C extends Comparable<? super C>> EntityCriteria<T> compareId(Comparison comparison, C value) {
+        requireNonNull(comparison, "comparison");
+        entityClass.checkId(value);
+        return addCondition(root -> comparison.apply(builder, root.<C>get(Entity.ID), value),
+            InMemoryCondition.attribute(Entity.ID, id -> comparison.test((C) id, value)));
     }
     
 }
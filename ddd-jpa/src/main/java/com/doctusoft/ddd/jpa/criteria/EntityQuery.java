@@ -6,6 +6,7 @@ import lombok.AccessLevel;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.Setter;
+import lombok.Value;
 import lombok.experimental.Accessors;
 
 import javax.persistence.EntityManager;
@@ -30,12 +31,21 @@ public class EntityQuery<T extends Entity> {
         requireNonNull(em, "entityManager");
         CriteriaBuilder criteriaBuilder = em.getCriteriaBuilder();
         EntityCriteria<T> criteria = EntityCriteria.create(EntityClass.of(entityClass), criteriaBuilder);
-        return new EntityQuery<>(em, entityClass, criteria);
+        return new EntityQuery<>(em, kind, entityClass, criteria);
+    }
+    
+    /**
+     * @return A query without an {@link EntityManager}, which can only be evaluated in memory.
+     */
+    static <T extends Entity> EntityQuery<T> detached(Class<T> kind) {
+        return new EntityQuery<>(null, kind, kind, EntityCriteria.detached(EntityClass.of(kind)));
     }
     
     @Getter(AccessLevel.PACKAGE)
     private final EntityManager em;
     
+    private final Class<T> kind;
+    
     private final Class<? extends T> entityClass;
     
     private final EntityCriteria<T> criteria;
@@ -43,6 +53,12 @@ public class EntityQuery<T extends Entity> {
     @Getter(AccessLevel.NONE)
     private final List<Function<Root, Order>> orders = new ArrayList<>();
     
+    /**
+     * The in-memory equivalents of the {@link #orders}, in the same order.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private final List<AttributeOrder> attributeOrders = new ArrayList<>();
+    
     @Setter
     private boolean lockForUpdate;
     
@@ -53,11 +69,13 @@ public class EntityQuery<T extends Entity> {
     
     public EntityQuery<T> asc(String attributeName) {
         orders.add(criteria.get(attributeName).andThen(attr -> criteria.builder().asc(attr)));
+        attributeOrders.add(new AttributeOrder(attributeName, true));
         return this;
     }
     
     public EntityQuery<T> desc(String attributeName) {
         orders.add(criteria.get(attributeName).andThen(attr -> criteria.builder().desc(attr)));
+        attributeOrders.add(new AttributeOrder(attributeName, false));
         return this;
     }
     
@@ -73,6 +91,17 @@ public class EntityQuery<T extends Entity> {
         return query;
     }
     
+    /**
+     * @return The query of the ids of the matching entities, without loading the entities themselves.
+     */
+    public TypedQuery<Object> queryIds() {
+        CriteriaQuery<Object> query = criteria.builder().createQuery(Object.class);
+        Root<? extends T> root = query.from(entityClass);
+        query.select(root.get(Entity.ID));
+        applyConditionsAndOrderBy(query, root);
+        return em.createQuery(query);
+    }
+    
     private CriteriaQuery<T> createCriteriaQuery() {
         CriteriaQuery<T> query = criteria.builder().createQuery((Class<T>) entityClass);
         Root<? extends T> root = query.from(entityClass);
@@ -137,4 +166,12 @@ public class EntityQuery<T extends Entity> {
         throw new IllegalStateException(message);
     }
     
+    @Value
+    static class AttributeOrder {
+        
+        String attributeName;
+        
+        boolean ascending;
+    }
+    
 }
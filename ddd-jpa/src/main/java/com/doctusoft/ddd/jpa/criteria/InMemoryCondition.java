@@ -0,0 +1,151 @@
+package com.doctusoft.ddd.jpa.criteria;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.math.ClosedRange;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.experimental.Accessors;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.math.*;
+import java.util.*;
+import java.util.function.*;
+import java.util.regex.*;
+
+/**
+ * Structured description of a condition of {@link EntityCriteria}, which is recorded next to its JPA predicate, so
+ * the condition can be evaluated in memory as well (see: {@link InMemoryEntityQuery}).
+ */
+@Getter(AccessLevel.PACKAGE)
+@Accessors(fluent = true)
+@RequiredArgsConstructor(access = AccessLevel.PRIVATE)
+final class InMemoryCondition {
+    
+    static InMemoryCondition unsupported(@NotNull String description) {
+        return new InMemoryCondition(description, null, null, null, null, null);
+    }
+    
+    static InMemoryCondition attribute(@NotNull String attributeName, @NotNull Predicate<Object> test) {
+        return new InMemoryCondition(null, attributeName, test, null, null, null);
+    }
+    
+    static InMemoryCondition attributeEqualTo(@NotNull String attributeName, @NotNull Object value) {
+        return new InMemoryCondition(null, attributeName, equalTo(value), value, null, null);
+    }
+    
+    static InMemoryCondition idIn(@NotNull Collection<?> ids) {
+        Set<Object> idSet = new HashSet<>(ids);
+        return new InMemoryCondition(null, Entity.ID, idSet::contains, null, idSet, null);
+    }
+    
+    static <C extends Comparable<? super C>> InMemoryCondition idInRange(@NotNull ClosedRange<C> idRange) {
+        return new InMemoryCondition(null, Entity.ID, id -> idRange.contains((C) id), null, null, idRange);
+    }
+    
+    /**
+     * @return The test of equality with <code>value</code>, where numbers are compared by their values regardless of
+     * their types, like in SQL (e.g. an <code>int</code> parameter equals a <code>long</code> attribute).
+     */
+    static Predicate<Object> equalTo(@NotNull Object value) {
+        if (!(value instanceof Number)) {
+            return value::equals;
+        }
+        BigDecimal decimal = toBigDecimal((Number) value);
+        return attribute -> {
+            if (!(attribute instanceof Number)) {
+                return false;
+            }
+            BigDecimal other = toBigDecimal((Number) attribute);
+            return decimal == null || other == null
+                ? Double.compare(((Number) value).doubleValue(), ((Number) attribute).doubleValue()) == 0
+                : decimal.compareTo(other) == 0;
+        };
+    }
+    
+    /**
+     * @return <code>value</code> converted to the numeric <code>type</code> of an attribute, or <code>null</code> if it
+     * cannot be represented exactly by that type.
+     */
+    @Nullable static Object convertNumber(@NotNull Number value, @NotNull Class<?> type) {
+        if (type.isInstance(value)) {
+            return value;
+        }
+        BigDecimal decimal = toBigDecimal(value);
+        if (decimal == null) {
+            return null;
+        }
+        try {
+            if (type == Long.class) return decimal.longValueExact();
+            if (type == Integer.class) return decimal.intValueExact();
+            if (type == Short.class) return decimal.shortValueExact();
+            if (type == Byte.class) return decimal.byteValueExact();
+            if (type == BigInteger.class) return decimal.toBigIntegerExact();
+        } catch (ArithmeticException e) {
+            return null;
+        }
+        if (type == Double.class && BigDecimal.valueOf(decimal.doubleValue()).compareTo(decimal) == 0) {
+            return decimal.doubleValue();
+        }
+        return null;
+    }
+    
+    /**
+     * @return The exact value of <code>number</code>, or <code>null</code> if it is not finite.
+     */
+    @Nullable private static BigDecimal toBigDecimal(Number number) {
+        if (number instanceof BigDecimal) {
+            return (BigDecimal) number;
+        }
+        if (number instanceof BigInteger) {
+            return new BigDecimal((BigInteger) number);
+        }
+        if (number instanceof Double || number instanceof Float) {
+            double d = number.doubleValue();
+            return Double.isNaN(d) || Double.isInfinite(d) ? null : BigDecimal.valueOf(d);
+        }
+        return BigDecimal.valueOf(number.longValue());
+    }
+    
+    /**
+     * @return The test of a SQL <code>LIKE</code> pattern, where <code>%</code> matches any sequence of characters and
+     * <code>_</code> matches any single character.
+     */
+    static Predicate<Object> like(@NotNull String pattern) {
+        StringBuilder regex = new StringBuilder();
+        StringBuilder literal = new StringBuilder();
+        for (char c : pattern.toCharArray()) {
+            if (c == '%' || c == '_') {
+                regex.append(Pattern.quote(literal.toString())).append(c == '%' ? ".*" : ".");
+                literal.setLength(0);
+            } else {
+                literal.append(c);
+            }
+        }
+        regex.append(Pattern.quote(literal.toString()));
+        Pattern compiled = Pattern.compile(regex.toString(), Pattern.DOTALL);
+        return value -> value != null && compiled.matcher(value.toString()).matches();
+    }
+    
+    /**
+     * The description of a condition which cannot be evaluated in memory, e.g. a custom JPA predicate.
+     */
+    @Nullable private final String unsupported;
+    
+    @Nullable private final String attributeName;
+    
+    @Nullable private final Predicate<Object> test;
+    
+    /**
+     * The value of an equality condition, which can be looked up in an index.
+     */
+    @Nullable private final Object equalTo;
+    
+    @Nullable private final Set<Object> ids;
+    
+    @Nullable private final ClosedRange<?> idRange;
+    
+    boolean isSupported() { return unsupported == null; }
+    
+}
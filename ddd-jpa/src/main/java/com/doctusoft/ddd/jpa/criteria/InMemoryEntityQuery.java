@@ -0,0 +1,287 @@
+package com.doctusoft.ddd.jpa.criteria;
+
+import com.doctusoft.ddd.jpa.criteria.EntityQuery.AttributeOrder;
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.model.EntityClass;
+import com.doctusoft.ddd.persistence.AttributeIndex;
+import com.doctusoft.ddd.persistence.InMemoryDatastore;
+import com.doctusoft.math.ClosedRange;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.reflect.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+import static com.doctusoft.java.Failsafe.checkArgument;
+import static java.util.Objects.*;
+
+/**
+ * Evaluates the conditions, the ordering and the limits of an {@link EntityQuery} against an {@link InMemoryDatastore}
+ * instead of a database, so cached or test datasets can answer the same queries.
+ * <p/>
+ * Conditions on the id are answered by id lookups or range reads of the datastore, equality conditions by the indexes
+ * registered by {@link #useIndex(String, AttributeIndex)}, otherwise the kind is scanned. Custom conditions given as
+ * JPA predicates cannot be evaluated, and throw {@link UnsupportedOperationException}. Attributes are read by their
+ * getters, or by their fields if there are no getters. Numbers are compared by their values regardless of their types,
+ * but unlike most databases, <code>like</code> is case sensitive, and <code>null</code> values are ordered last in
+ * ascending order.
+ * <p/>
+ * The <code>ddd-runtime</code> dependency of this module is optional, it has to be declared by the users of this
+ * class.
+ */
+public final class InMemoryEntityQuery<T extends Entity> {
+    
+    public static <T extends Entity> InMemoryEntityQuery<T> create(@NotNull InMemoryDatastore datastore, @NotNull Class<T> kind) {
+        return new InMemoryEntityQuery<>(datastore, EntityQuery.detached(kind));
+    }
+    
+    /**
+     * @return The in-memory evaluation of an already built <code>entityQuery</code>.
+     */
+    public static <T extends Entity> InMemoryEntityQuery<T> of(@NotNull InMemoryDatastore datastore, @NotNull EntityQuery<T> entityQuery) {
+        return new InMemoryEntityQuery<>(datastore, entityQuery);
+    }
+    
+    private static final ClassValue<ConcurrentMap<String, Function<Object, Object>>> ACCESSORS = new ClassValue<ConcurrentMap<String, Function<Object, Object>>>() {
+        protected ConcurrentMap<String, Function<Object, Object>> computeValue(Class<?> type) {
+            return new ConcurrentHashMap<>();
+        }
+    };
+    
+    private static final Map<Class<?>, Class<?>> BOXED_TYPES = new HashMap<>();
+    
+    static {
+        BOXED_TYPES.put(long.class, Long.class);
+        BOXED_TYPES.put(int.class, Integer.class);
+        BOXED_TYPES.put(short.class, Short.class);
+        BOXED_TYPES.put(byte.class, Byte.class);
+        BOXED_TYPES.put(double.class, Double.class);
+        BOXED_TYPES.put(float.class, Float.class);
+    }
+    
+    private final InMemoryDatastore datastore;
+    
+    @Getter private final EntityQuery<T> entityQuery;
+    
+    private final Map<String, AttributeIndex<T, ?>> indexes = new HashMap<>();
+    
+    private int firstResult = 0;
+    
+    private int maxResults = Integer.MAX_VALUE;
+    
+    private InMemoryEntityQuery(InMemoryDatastore datastore, EntityQuery<T> entityQuery) {
+        this.datastore = requireNonNull(datastore, "datastore");
+        this.entityQuery = requireNonNull(entityQuery, "entityQuery");
+    }
+    
+    public InMemoryEntityQuery<T> where(Consumer<EntityCriteria<? super T>> conditions) {
+        entityQuery.where(conditions);
+        return this;
+    }
+    
+    public InMemoryEntityQuery<T> asc(String attributeName) {
+        entityQuery.asc(attributeName);
+        return this;
+    }
+    
+    public InMemoryEntityQuery<T> desc(String attributeName) {
+        entityQuery.desc(attributeName);
+        return this;
+    }
+    
+    public InMemoryEntityQuery<T> idAsc() { return asc(Entity.ID); }
+    
+    public InMemoryEntityQuery<T> idDesc() { return desc(Entity.ID); }
+    
+    /**
+     * Equality conditions of <code>attributeName</code> are answered by <code>index</code>, which must index the
+     * attribute of the same name.
+     */
+    public InMemoryEntityQuery<T> useIndex(@NotNull String attributeName, @NotNull AttributeIndex<T, ?> index) {
+        checkArgument(index.getKind() == entityQuery.kind(), () -> "Index of another kind: " + index.getKind().getName());
+        indexes.put(requireNonNull(attributeName, "attributeName"), index);
+        return this;
+    }
+    
+    public InMemoryEntityQuery<T> setFirstResult(int firstResult) {
+        checkArgument(firstResult >= 0, () -> "firstResult=" + firstResult);
+        this.firstResult = firstResult;
+        return this;
+    }
+    
+    public InMemoryEntityQuery<T> setMaxResults(int maxResults) {
+        checkArgument(maxResults >= 0, () -> "maxResults=" + maxResults);
+        this.maxResults = maxResults;
+        return this;
+    }
+    
+    public List<T> getResultList() {
+        return sorted(filtered())
+            .skip(firstResult)
+            .limit(maxResults)
+            .collect(Collectors.toList());
+    }
+    
+    /**
+     * @return The count of the matching entities regardless of the first and max results, like
+     * {@link EntityQuery#count()}.
+     */
+    public int count() { return Math.toIntExact(filtered().count()); }
+    
+    public boolean exists() { return filtered().findAny().isPresent(); }
+    
+    public Optional<T> queryFirstResult() {
+        return sorted(filtered()).skip(firstResult).findFirst();
+    }
+    
+    public Optional<T> queryOptionalExpected() {
+        List<T> resultList = sorted(filtered()).skip(firstResult).limit(2).collect(Collectors.toList());
+        if (resultList.isEmpty()) return Optional.empty();
+        if (resultList.size() == 1) return Optional.of(resultList.get(0));
+        throw new IllegalStateException("Query returned more than 1 row");
+    }
+    
+    public T querySingletonExpected() {
+        return queryOptionalExpected().orElseThrow(() -> new IllegalStateException("Query returned no result"));
+    }
+    
+    private Stream<T> filtered() {
+        List<InMemoryCondition> conditions = entityQuery.criteria().inMemoryConditions();
+        for (InMemoryCondition condition : conditions) {
+            if (!condition.isSupported()) {
+                throw new UnsupportedOperationException("Cannot evaluate in memory: " + condition.unsupported());
+            }
+        }
+        Predicate<T> filter = entity -> {
+            for (InMemoryCondition condition : conditions) {
+                if (!condition.test().test(attributeOf(entity, condition.attributeName()))) {
+                    return false;
+                }
+            }
+            return true;
+        };
+        return candidates(conditions).filter(filter);
+    }
+    
+    /**
+     * @return The entities satisfying the most selective condition answered without a scan, ordered by id.
+     */
+    private Stream<T> candidates(List<InMemoryCondition> conditions) {
+        Class<T> kind = entityQuery.kind();
+        for (InMemoryCondition condition : conditions) {
+            if (condition.ids() != null) {
+                return datastore.loadByIdAsc(kind, condition.ids()).stream();
+            }
+        }
+        for (InMemoryCondition condition : conditions) {
+            if (condition.idRange() != null) {
+                return EntityClass.of(kind).hasLongId()
+                    ? datastore.loadByIdInNumericRange(kind, (ClosedRange<Long>) condition.idRange()).stream()
+                    : datastore.loadByIdInLexicographicalRange(kind, (ClosedRange<String>) condition.idRange()).stream();
+            }
+        }
+        for (InMemoryCondition condition : conditions) {
+            AttributeIndex index = condition.equalTo() == null ? null : indexes.get(condition.attributeName());
+            Object indexKey = index == null ? null : indexKeyOf(kind, condition);
+            if (indexKey != null) {
+                return ((List<T>) index.find(indexKey)).stream();
+            }
+        }
+        return datastore.scan(kind);
+    }
+    
+    /**
+     * @return The value of an equality condition converted to the type of the indexed attribute, since the index is
+     * keyed by the attribute values, or <code>null</code> if the index cannot be used.
+     */
+    @Nullable private static Object indexKeyOf(Class<?> kind, InMemoryCondition condition) {
+        Object value = condition.equalTo();
+        if (!(value instanceof Number)) {
+            return value;
+        }
+        Member member = memberOf(kind, condition.attributeName());
+        if (member == null) {
+            return null;
+        }
+        Class<?> type = member instanceof Method ? ((Method) member).getReturnType() : ((Field) member).getType();
+        return InMemoryCondition.convertNumber((Number) value, type.isPrimitive() ? BOXED_TYPES.get(type) : type);
+    }
+    
+    /**
+     * The candidates are ordered by id, so they are sorted only if ordered by anything else.
+     */
+    private Stream<T> sorted(Stream<T> entities) {
+        List<AttributeOrder> orders = entityQuery.attributeOrders();
+        if (orders.isEmpty() || orders.get(0).equals(new AttributeOrder(Entity.ID, true))) {
+            return entities;
+        }
+        Comparator<T> comparator = null;
+        for (AttributeOrder order : orders) {
+            Comparator<T> attributeComparator = Comparator.comparing(
+                entity -> (Comparable) attributeOf(entity, order.attributeName()),
+                Comparator.nullsLast(Comparator.naturalOrder()));
+            if (!order.ascending()) {
+                attributeComparator = attributeComparator.reversed();
+            }
+            comparator = comparator == null ? attributeComparator : comparator.thenComparing(attributeComparator);
+        }
+        return entities.sorted(comparator);
+    }
+    
+    @Nullable private static Object attributeOf(Entity entity, String attributeName) {
+        if (Entity.ID.equals(attributeName)) {
+            return entity.getId();
+        }
+        return ACCESSORS.get(entity.getClass()).computeIfAbsent(attributeName, name -> accessorOf(entity.getClass(), name)).apply(entity);
+    }
+    
+    private static Function<Object, Object> accessorOf(Class<?> type, String attributeName) {
+        Member member = memberOf(type, attributeName);
+        if (member instanceof Method) {
+            Method getter = (Method) member;
+            getter.setAccessible(true);
+            return entity -> read(() -> getter.invoke(entity), attributeName);
+        }
+        if (member instanceof Field) {
+            Field field = (Field) member;
+            field.setAccessible(true);
+            return entity -> read(() -> field.get(entity), attributeName);
+        }
+        throw new IllegalArgumentException("No attribute " + attributeName + " in: " + type.getName());
+    }
+    
+    /**
+     * @return The getter of the attribute, or its field if there are no getters.
+     */
+    @Nullable private static Member memberOf(Class<?> type, String attributeName) {
+        String capitalized = Character.toUpperCase(attributeName.charAt(0)) + attributeName.substring(1);
+        for (String getterName : Arrays.asList("get" + capitalized, "is" + capitalized)) {
+            try {
+                return type.getMethod(getterName);
+            } catch (NoSuchMethodException e) {
+                // attributes without getters are read from their fields
+            }
+        }
+        for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+            try {
+                return c.getDeclaredField(attributeName);
+            } catch (NoSuchFieldException e) {
+                // declared by a superclass
+            }
+        }
+        return null;
+    }
+    
+    private static Object read(Callable<Object> reader, String attributeName) {
+        try {
+            return reader.call();
+        } catch (Exception e) {
+            throw new IllegalStateException("Failed to read attribute: " + attributeName, e);
+        }
+    }
+    
+}
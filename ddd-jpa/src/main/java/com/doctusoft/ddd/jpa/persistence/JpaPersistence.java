@@ -1,6 +1,9 @@
 package com.doctusoft.ddd.jpa.persistence;
 
+import com.doctusoft.ddd.jpa.criteria.Comparison;
 import com.doctusoft.ddd.jpa.criteria.CustomQuery;
+import com.doctusoft.ddd.jpa.criteria.EntityCriteria;
+import com.doctusoft.ddd.jpa.criteria.EntityDelete;
 import com.doctusoft.ddd.jpa.criteria.EntityQuery;
 import com.doctusoft.ddd.model.*;
 import com.doctusoft.ddd.persistence.GenericPersistence;
@@ -17,11 +20,17 @@ import java.util.*;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 import static java.util.Objects.requireNonNull;
 
 public abstract class JpaPersistence implements GenericPersistence {
     
+    /**
+     * The maximum number of ids in an <code>IN</code> condition, which some databases (like Oracle) limit.
+     */
+    public static final int ID_LIST_CHUNK_SIZE = 1000;
+    
     @Inject private Instantiator instantiator;
     
     protected EntityManager em;
@@ -65,6 +74,71 @@ public abstract class JpaPersistence implements GenericPersistence {
             .getResultList();
     }
     
+    /**
+     * Loads the entities of each kind by <code>IN</code> queries of at most {@link #ID_LIST_CHUNK_SIZE} ids.
+     */
+    @NotNull public Map<EntityKey<?>, Entity> loadMany(@NotNull Collection<? extends EntityKey<?>> keys) {
+        Map<Class<? extends Entity>, List<Object>> idsByKind = new HashMap<>();
+        keys.forEach(key -> idsByKind.computeIfAbsent(key.getKind(), kind -> new ArrayList<>()).add(key.getId()));
+        Map<EntityKey<?>, Entity> resultMap = new HashMap<>();
+        idsByKind.forEach((kind, ids) -> forEachIdChunk(ids, chunk -> createEntityQuery(kind)
+            .where(e -> e.idIn(chunk))
+            .query()
+            .getResultList()
+            .forEach(entity -> resultMap.put(entity.getKey(), entity))));
+        return resultMap;
+    }
+    
+    /**
+     * Selects only the ids of the existing entities by <code>IN</code> queries of at most {@link #ID_LIST_CHUNK_SIZE}
+     * ids, so the entities are not loaded into the persistence context. Also used by the default
+     * {@link #saveMany(Class, Collection)} to split the entities into inserts and updates.
+     */
+    @NotNull public Set<Object> existingIds(@NotNull Class<? extends Entity> kind, @NotNull Collection idList) {
+        Set<Object> existingIds = new HashSet<>();
+        forEachIdChunk(idList, chunk -> existingIds.addAll(createEntityQuery(kind)
+            .where(e -> e.idIn(chunk))
+            .queryIds()
+            .getResultList()));
+        return existingIds;
+    }
+    
+    /**
+     * Removes the entities by bulk delete statements (see: {@link #removeWhere(Class, Consumer)}) of at most
+     * {@link #ID_LIST_CHUNK_SIZE} ids each, without loading them.
+     */
+    public <T extends Entity> int removeMany(@NotNull Class<T> kind, @NotNull Collection idList) {
+        int[] removed = {0};
+        forEachIdChunk(idList, chunk -> removed[0] += removeWhere(kind, e -> e.idIn(chunk)));
+        return removed[0];
+    }
+    
+    private static void forEachIdChunk(Collection<?> idList, Consumer<List<Object>> action) {
+        List<Object> ids = new ArrayList<>(idList);
+        for (int from = 0; from < ids.size(); from += ID_LIST_CHUNK_SIZE) {
+            action.accept(ids.subList(from, Math.min(from + ID_LIST_CHUNK_SIZE, ids.size())));
+        }
+    }
+    
+    /**
+     * Removes the entities of <code>kind</code> matching <code>conditions</code> by a single bulk delete statement,
+     * without loading them. The statement bypasses the persistence context: pending changes are flushed before it, but
+     * cascades and callbacks of {@link #remove(Entity)} are not applied, and managed instances of the removed entities
+     * are not detached (see: {@link #evictCache()}).
+     *
+     * @return The number of entities removed.
+     */
+    public <T extends Entity> int removeWhere(@NotNull Class<T> kind, @NotNull Consumer<EntityCriteria<? super T>> conditions) {
+        requireNonNull(kind, "kind");
+        requireNonNull(conditions, "conditions");
+        em.flush();
+        Class<? extends T> implementationClass = instantiator.getImplementationClass(kind);
+        return EntityDelete.<T>create(em, implementationClass)
+            .where(conditions)
+            .prepare()
+            .executeUpdate();
+    }
+    
     public <T extends Entity> List<T> loadSmallDataset(@NotNull Class<T> kind) throws IllegalArgumentException {
         List<T> result = createEntityQuery(kind)
             .query()
@@ -73,8 +147,50 @@ public abstract class JpaPersistence implements GenericPersistence {
         return GenericPersistence.checkSmallDataset(kind, result);
     }
     
+    /**
+     * Pages through the kind by queries ordered by id, each one reading after the last id of the previous page, and
+     * clears the persistence context between the pages, so memory use does not grow with the size of the kind.
+     * <p/>
+     * The pending changes are flushed before each clear, so the changes made to the streamed entities are written, but
+     * every managed instance is detached by it, including the ones loaded before the stream, which have to be merged
+     * (or reloaded) to be changed after the first page.
+     */
+    public <T extends Entity> Stream<T> stream(@NotNull Class<T> kind, int batchSize) {
+        requireNonNull(kind, "kind");
+        return GenericPersistence.streamByKeyset(batchSize, (lastId, limit) -> {
+            EntityQuery<T> query = createEntityQuery(kind).idAsc();
+            if (lastId != null) {
+                query.where(e -> e.compareId(Comparison.GREATER_THAN, (Comparable) lastId));
+            }
+            return query
+                .query()
+                .setMaxResults(limit)
+                .getResultList();
+        }, this::flushAndClear);
+    }
+    
+    private void flushAndClear() {
+        em.flush();
+        em.clear();
+    }
+    
+    /**
+     * Loads the entities not managed by the persistence context by <code>IN</code> queries of at most
+     * {@link #ID_LIST_CHUNK_SIZE} ids first, so they are merged into their managed instances without selecting them one
+     * by one.
+     */
     public <T extends Entity> void updateMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> changedEntities) {
         requireNonNull(kind, "kind");
+        List<Object> unmanagedIds = changedEntities.stream()
+            .filter(entity -> !em.contains(entity))
+            .map(Entity::getId)
+            .collect(Collectors.toList());
+        if (unmanagedIds.size() > 1) {
+            forEachIdChunk(unmanagedIds, chunk -> createEntityQuery(kind)
+                .where(e -> e.idIn(chunk))
+                .query()
+                .getResultList());
+        }
         changedEntities.forEach(createUpdateAction(kind));
     }
     
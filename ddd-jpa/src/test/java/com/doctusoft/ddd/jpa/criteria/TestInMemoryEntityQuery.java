@@ -0,0 +1,156 @@
+package com.doctusoft.ddd.jpa.criteria;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.model.EntityWithLongId;
+import com.doctusoft.ddd.persistence.EntityTableFactory;
+import com.doctusoft.ddd.persistence.HashIndex;
+import com.doctusoft.ddd.persistence.InMemoryDatastore;
+import com.doctusoft.java.AnException;
+import com.doctusoft.math.ClosedRange;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+import static com.doctusoft.java.LambdAssert.assertThrows;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class TestInMemoryEntityQuery {
+    
+    private final AtomicInteger scanCount = new AtomicInteger();
+    
+    private InMemoryDatastore datastore;
+    
+    @Before
+    public void setup() {
+        datastore = new InMemoryDatastore(EntityTableFactory.sorted(ConcurrentSkipListMap::new)) {
+            public <T extends Entity> Stream<T> scan(Class<T> kind, Predicate<? super T> predicate) {
+                scanCount.incrementAndGet();
+                return super.scan(kind, predicate);
+            }
+        };
+        datastore.insert(product(1L, "apple", "fruit", 10L));
+        datastore.insert(product(2L, "banana", "fruit", 20L));
+        datastore.insert(product(3L, "carrot", "vegetable", 10L));
+        datastore.insert(product(4L, "a.b", null, 30L));
+        datastore.insert(product(5L, "date", "fruit", null));
+    }
+    
+    @Test
+    public void likeIsTranslatedToRegex() {
+        Predicate<Object> like = InMemoryCondition.like("a%b_c");
+        assertThat(like.test("axxbyc"), is(true));
+        assertThat(like.test("abyc"), is(true));
+        assertThat(like.test("abc"), is(false));
+        assertThat(like.test("xabyc"), is(false));
+        assertThat(like.test(null), is(false));
+        assertThat(InMemoryCondition.like("a.b").test("axb"), is(false));
+        assertThat(InMemoryCondition.like("%\n%").test("line\nbreak"), is(true));
+        
+        assertThat(ids(query().where(e -> e.like("name", "%a%a%"))), equalTo(Arrays.asList(2L)));
+        assertThat(ids(query().where(e -> e.startsWith("name", "a."))), equalTo(Arrays.asList(4L)));
+    }
+    
+    @Test
+    public void idConditionsSelectTheCandidates() {
+        assertThat(ids(query().where(e -> e.idIn(Arrays.asList(4L, 2L, 9L)))), equalTo(Arrays.asList(2L, 4L)));
+        assertThat(ids(query().where(e -> e.idEquals(3L).equalTo("category", "fruit"))), equalTo(Collections.emptyList()));
+        assertThat(ids(query().where(e -> e.idInNumericRange(ClosedRange.create(2L, 4L)).equalTo("price", 10L))),
+            equalTo(Arrays.asList(3L)));
+        assertThat(scanCount.get(), is(0));
+        
+        assertThat(ids(query().where(e -> e.compareId(Comparison.GREATER_THAN, 3L))), equalTo(Arrays.asList(4L, 5L)));
+        assertThat(scanCount.get(), is(1));
+    }
+    
+    @Test
+    public void equalityIsAnsweredByIndex() {
+        HashIndex<Product, String> index = datastore.addHashIndex(Product.class, Product::getCategory);
+        InMemoryEntityQuery<Product> query = query()
+            .useIndex("category", index)
+            .where(e -> e.equalTo("category", "fruit").isNotNull("price"));
+        assertThat(ids(query), equalTo(Arrays.asList(1L, 2L)));
+        assertThat(query.count(), is(2));
+        assertThat(scanCount.get(), is(0));
+    }
+    
+    @Test
+    public void numbersAreComparedByValue() {
+        assertThat(ids(query().where(e -> e.equalTo("price", 10))), equalTo(Arrays.asList(1L, 3L)));
+        assertThat(ids(query().where(e -> e.equalTo("price", 20.0))), equalTo(Arrays.asList(2L)));
+        assertThat(ids(query().where(e -> e.equalTo("price", 20.5))), equalTo(Collections.emptyList()));
+        
+        HashIndex<Product, Long> index = datastore.addHashIndex(Product.class, Product::getPrice);
+        assertThat(ids(query().useIndex("price", index).where(e -> e.equalTo("price", 30))), equalTo(Arrays.asList(4L)));
+        assertThat(scanCount.get(), is(3));
+    }
+    
+    @Test
+    public void orderByMultipleAttributesWithNulls() {
+        assertThat(ids(query().asc("category").desc("price")), equalTo(Arrays.asList(5L, 2L, 1L, 3L, 4L)));
+        assertThat(ids(query().desc("category").asc("name")), equalTo(Arrays.asList(4L, 3L, 1L, 2L, 5L)));
+        assertThat(ids(query().asc("price").idDesc()), equalTo(Arrays.asList(3L, 1L, 2L, 4L, 5L)));
+        assertThat(ids(query().idDesc()), equalTo(Arrays.asList(5L, 4L, 3L, 2L, 1L)));
+    }
+    
+    @Test
+    public void firstAndMaxResults() {
+        InMemoryEntityQuery<Product> query = query().asc("name").setFirstResult(1).setMaxResults(2);
+        assertThat(ids(query), equalTo(Arrays.asList(1L, 2L)));
+        assertThat(query.count(), is(5));
+        assertThat(query.queryFirstResult().get().getId(), is(1L));
+        assertThat(ids(query().setFirstResult(5)), equalTo(Collections.emptyList()));
+        assertThat(ids(query().setMaxResults(0)), equalTo(Collections.emptyList()));
+        assertThat(query().where(e -> e.equalTo("name", "date")).querySingletonExpected().getId(), is(5L));
+        assertThrows(() -> query().where(e -> e.equalTo("category", "fruit")).queryOptionalExpected(),
+            AnException.of(IllegalStateException.class));
+        assertThrows(() -> query().setFirstResult(-1), AnException.of(IllegalArgumentException.class));
+    }
+    
+    @Test
+    public void customConditionsAreUnsupported() {
+        InMemoryEntityQuery<Product> query = query().where(e -> e.addCondition(root -> null));
+        assertThrows(query::getResultList, AnException.of(UnsupportedOperationException.class));
+        assertThrows(query::count, AnException.of(UnsupportedOperationException.class));
+        assertThrows(() -> query().where(e -> e.filter("name", attr -> null)).exists(),
+            AnException.of(UnsupportedOperationException.class));
+    }
+    
+    private InMemoryEntityQuery<Product> query() { return InMemoryEntityQuery.create(datastore, Product.class); }
+    
+    private static List<Long> ids(InMemoryEntityQuery<Product> query) {
+        return query.getResultList().stream().map(Product::getId).collect(Collectors.toList());
+    }
+    
+    private static Product product(long id, String name, String category, Long price) {
+        Product product = new Product();
+        product.setId(id);
+        product.setName(name);
+        product.setCategory(category);
+        product.setPrice(price);
+        return product;
+    }
+    
+    @Data
+    @NoArgsConstructor
+    public static class Product implements EntityWithLongId {
+        
+        public Class<Product> getKind() { return Product.class; }
+        
+        private Long id;
+        
+        private String name;
+        
+        private String category;
+        
+        private Long price;
+    }
+    
+}
@@ -0,0 +1,416 @@
+package com.doctusoft.ddd.model;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+import java.util.function.*;
+import java.util.zip.CRC32;
+
+import static java.util.Objects.*;
+
+/**
+ * Compact binary encoding of entities. The attributes of the entity are the properties of its kind having both a getter
+ * and a setter, encoded in the order of their names with a single byte type tag each. Integral numbers and characters
+ * are variable-length encoded, doubles and floats are written as their 8 and 4 bytes (their bits are rarely small
+ * numbers), and values of types not natively supported are encoded by Java serialization.
+ * <p/>
+ * The encoding does not include the kind nor the names of the attributes, so the same kind has to be specified for
+ * {@link #decode(Class, byte[])}. Data stored across restarts should be stored together with the
+ * {@link #schemaOf(Class)} of its kind, which changes whenever an attribute is added, removed, renamed or retyped.
+ * <p/>
+ * Only the classes accepted by the <code>serializableTypes</code> filter are deserialized, by default the types of
+ * <code>java.lang</code>, <code>java.util</code>, <code>java.math</code> and <code>java.time</code>, and the declared
+ * types of the attributes.
+ */
+public final class BinaryEntityCodec {
+    
+    private static final byte NULL = 0;
+    private static final byte STRING = 1;
+    private static final byte LONG = 2;
+    private static final byte INTEGER = 3;
+    private static final byte TRUE = 4;
+    private static final byte FALSE = 5;
+    private static final byte DOUBLE = 6;
+    private static final byte BIG_DECIMAL = 7;
+    private static final byte ENUM = 8;
+    private static final byte INSTANT = 9;
+    private static final byte LOCAL_DATE = 10;
+    private static final byte LOCAL_DATE_TIME = 11;
+    private static final byte DATE = 12;
+    private static final byte SERIALIZED = 13;
+    private static final byte FLOAT = 14;
+    private static final byte SHORT = 15;
+    private static final byte BYTE = 16;
+    private static final byte CHARACTER = 17;
+    
+    private static final Set<String> SERIALIZABLE_PACKAGES = new HashSet<>(Arrays.asList("java.lang", "java.util",
+        "java.math", "java.time"));
+    
+    private final Instantiator instantiator;
+    
+    private final Predicate<? super Class<?>> serializableTypes;
+    
+    public BinaryEntityCodec(@NotNull Instantiator instantiator) {
+        this(instantiator, type -> type.getPackage() != null && SERIALIZABLE_PACKAGES.contains(type.getPackage().getName()));
+    }
+    
+    /**
+     * @param serializableTypes The classes, besides the declared types of the attributes, allowed to be deserialized
+     * within the values encoded by Java serialization.
+     */
+    public BinaryEntityCodec(@NotNull Instantiator instantiator, @NotNull Predicate<? super Class<?>> serializableTypes) {
+        this.instantiator = requireNonNull(instantiator, "instantiator");
+        this.serializableTypes = requireNonNull(serializableTypes, "serializableTypes");
+    }
+    
+    /**
+     * @return The fingerprint of the names and types of the attributes of <code>kind</code>, the encoded data of the
+     * kind can only be decoded while it is unchanged.
+     */
+    public int schemaOf(@NotNull Class<? extends Entity> kind) { return SCHEMAS.get(requireNonNull(kind, "kind")); }
+    
+    @NotNull public byte[] encode(@NotNull Entity entity) {
+        requireNonNull(entity, "entity");
+        Output out = new Output();
+        for (Property property : PROPERTIES.get(entity.getKind())) {
+            try {
+                writeValue(out, property.getter.invoke(entity));
+            } catch (ReflectiveOperationException | IOException e) {
+                throw new IllegalArgumentException("Failed to encode " + property + " of: " + entity.getKey(), e);
+            }
+        }
+        return out.toByteArray();
+    }
+    
+    @NotNull public <T extends Entity> T decode(@NotNull Class<T> kind, @NotNull byte[] data) {
+        requireNonNull(data, "data");
+        T entity = instantiator.instantiate(kind);
+        Input in = new Input(data);
+        for (Property property : PROPERTIES.get(kind)) {
+            try {
+                property.setter.invoke(entity, readValue(in, property.type));
+            } catch (ReflectiveOperationException | IOException e) {
+                throw new IllegalArgumentException("Failed to decode " + property + " of kind: " + kind.getName(), e);
+            }
+        }
+        return entity;
+    }
+    
+    private static void writeValue(Output out, Object value) throws IOException {
+        if (value == null) {
+            out.write(NULL);
+        } else if (value instanceof String) {
+            out.write(STRING);
+            out.writeString((String) value);
+        } else if (value instanceof Long) {
+            out.write(LONG);
+            out.writeVarLong((Long) value);
+        } else if (value instanceof Integer) {
+            out.write(INTEGER);
+            out.writeVarLong((Integer) value);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TRUE : FALSE);
+        } else if (value instanceof Double) {
+            out.write(DOUBLE);
+            out.writeLong(Double.doubleToRawLongBits((Double) value));
+        } else if (value instanceof Float) {
+            out.write(FLOAT);
+            out.writeInt(Float.floatToRawIntBits((Float) value));
+        } else if (value instanceof Short) {
+            out.write(SHORT);
+            out.writeVarLong((Short) value);
+        } else if (value instanceof Byte) {
+            out.write(BYTE);
+            out.writeVarLong((Byte) value);
+        } else if (value instanceof Character) {
+            out.write(CHARACTER);
+            out.writeVarLong((Character) value);
+        } else if (value instanceof BigDecimal) {
+            out.write(BIG_DECIMAL);
+            out.writeString(value.toString());
+        } else if (value instanceof Enum) {
+            out.write(ENUM);
+            out.writeString(((Enum) value).name());
+        } else if (value instanceof Instant) {
+            out.write(INSTANT);
+            out.writeVarLong(((Instant) value).getEpochSecond());
+            out.writeVarLong(((Instant) value).getNano());
+        } else if (value instanceof LocalDate) {
+            out.write(LOCAL_DATE);
+            out.writeVarLong(((LocalDate) value).toEpochDay());
+        } else if (value instanceof LocalDateTime) {
+            out.write(LOCAL_DATE_TIME);
+            out.writeVarLong(((LocalDateTime) value).toEpochSecond(ZoneOffset.UTC));
+            out.writeVarLong(((LocalDateTime) value).getNano());
+        } else if (value.getClass() == Date.class) {
+            out.write(DATE);
+            out.writeVarLong(((Date) value).getTime());
+        } else {
+            out.write(SERIALIZED);
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            try (ObjectOutputStream objectOut = new ObjectOutputStream(buffer)) {
+                objectOut.writeObject(value);
+            }
+            out.writeBytes(buffer.toByteArray());
+        }
+    }
+    
+    private Object readValue(Input in, Class<?> type) throws IOException, ClassNotFoundException {
+        byte tag = in.read();
+        switch (tag) {
+            case NULL:
+                return null;
+            case STRING:
+                return in.readString();
+            case LONG:
+                return in.readVarLong();
+            case INTEGER:
+                return (int) in.readVarLong();
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case FLOAT:
+                return Float.intBitsToFloat(in.readInt());
+            case SHORT:
+                return (short) in.readVarLong();
+            case BYTE:
+                return (byte) in.readVarLong();
+            case CHARACTER:
+                return (char) in.readVarLong();
+            case BIG_DECIMAL:
+                return new BigDecimal(in.readString());
+            case ENUM:
+                return Enum.valueOf((Class) type, in.readString());
+            case INSTANT:
+                return Instant.ofEpochSecond(in.readVarLong(), in.readVarLong());
+            case LOCAL_DATE:
+                return LocalDate.ofEpochDay(in.readVarLong());
+            case LOCAL_DATE_TIME:
+                return LocalDateTime.ofEpochSecond(in.readVarLong(), (int) in.readVarLong(), ZoneOffset.UTC);
+            case DATE:
+                return new Date(in.readVarLong());
+            case SERIALIZED:
+                try (ObjectInputStream objectIn = new FilteringObjectInputStream(in.readBytes(), type)) {
+                    return objectIn.readObject();
+                }
+            default:
+                throw new StreamCorruptedException("Unknown type tag: " + tag);
+        }
+    }
+    
+    private static final ClassValue<Property[]> PROPERTIES = new ClassValue<Property[]>() {
+        protected Property[] computeValue(Class<?> kind) {
+            TreeMap<String, Property> properties = new TreeMap<>();
+            for (Method getter : kind.getMethods()) {
+                String name = propertyName(getter);
+                if (name != null && !properties.containsKey(name)) {
+                    try {
+                        Method setter = kind.getMethod("set" + name, getter.getReturnType());
+                        properties.put(name, new Property(name, getter.getReturnType(), getter, setter));
+                    } catch (NoSuchMethodException e) {
+                        // read-only properties (like kind and key) are not attributes
+                    }
+                }
+            }
+            return properties.values().toArray(new Property[properties.size()]);
+        }
+    };
+    
+    private static final ClassValue<Integer> SCHEMAS = new ClassValue<Integer>() {
+        protected Integer computeValue(Class<?> kind) {
+            StringBuilder schema = new StringBuilder();
+            for (Property property : PROPERTIES.get(kind)) {
+                schema.append(property.name).append(':').append(property.type.getName()).append(';');
+            }
+            CRC32 crc = new CRC32();
+            crc.update(schema.toString().getBytes(StandardCharsets.UTF_8));
+            return (int) crc.getValue();
+        }
+    };
+    
+    private static String propertyName(Method method) {
+        if (method.getParameterCount() != 0 || Modifier.isStatic(method.getModifiers())) {
+            return null;
+        }
+        String name = method.getName();
+        if (name.startsWith("get") && name.length() > 3 && method.getReturnType() != void.class) {
+            return name.substring(3);
+        }
+        if (name.startsWith("is") && name.length() > 2 && method.getReturnType() == boolean.class) {
+            return name.substring(2);
+        }
+        return null;
+    }
+    
+    private static final class Property {
+        
+        private final String name;
+        
+        private final Class<?> type;
+        
+        private final Method getter;
+        
+        private final Method setter;
+        
+        private Property(String name, Class<?> type, Method getter, Method setter) {
+            this.name = name;
+            this.type = type;
+            this.getter = getter;
+            this.setter = setter;
+        }
+        
+        public String toString() { return "property " + name; }
+    }
+    
+    /**
+     * Rejects every class not accepted by {@link #serializableTypes}, except the declared type of the attribute.
+     */
+    private final class FilteringObjectInputStream extends ObjectInputStream {
+        
+        private final Class<?> declaredType;
+        
+        FilteringObjectInputStream(byte[] data, Class<?> declaredType) throws IOException {
+            super(new ByteArrayInputStream(data));
+            this.declaredType = declaredType;
+        }
+        
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            Class<?> type = super.resolveClass(desc);
+            Class<?> componentType = type;
+            while (componentType.isArray()) {
+                componentType = componentType.getComponentType();
+            }
+            if (!componentType.isPrimitive() && componentType != declaredType && !serializableTypes.test(componentType)) {
+                throw new InvalidClassException(desc.getName(), "Not allowed to be deserialized");
+            }
+            return type;
+        }
+        
+        protected Class<?> resolveProxyClass(String[] interfaces) throws InvalidClassException {
+            throw new InvalidClassException(String.join(",", interfaces), "Proxies are not allowed to be deserialized");
+        }
+    }
+    
+    private static final class Output {
+        
+        private byte[] buffer = new byte[64];
+        
+        private int length;
+        
+        void write(byte b) {
+            ensureCapacity(1);
+            buffer[length++] = b;
+        }
+        
+        /**
+         * Zig-zag encoded, 7 bits per byte, so small negative numbers are compact too.
+         */
+        void writeVarLong(long value) {
+            long zigZag = (value << 1) ^ (value >> 63);
+            ensureCapacity(10);
+            while ((zigZag & ~0x7FL) != 0) {
+                buffer[length++] = (byte) ((zigZag & 0x7F) | 0x80);
+                zigZag >>>= 7;
+            }
+            buffer[length++] = (byte) zigZag;
+        }
+        
+        void writeLong(long value) {
+            ensureCapacity(8);
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                buffer[length++] = (byte) (value >>> shift);
+            }
+        }
+        
+        void writeInt(int value) {
+            ensureCapacity(4);
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                buffer[length++] = (byte) (value >>> shift);
+            }
+        }
+        
+        void writeBytes(byte[] bytes) {
+            writeVarLong(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, length, bytes.length);
+            length += bytes.length;
+        }
+        
+        void writeString(String value) { writeBytes(value.getBytes(StandardCharsets.UTF_8)); }
+        
+        byte[] toByteArray() { return Arrays.copyOf(buffer, length); }
+        
+        private void ensureCapacity(int additional) {
+            if (length + additional > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length << 1, length + additional));
+            }
+        }
+    }
+    
+    private static final class Input {
+        
+        private final byte[] data;
+        
+        private int position;
+        
+        Input(byte[] data) { this.data = data; }
+        
+        byte read() throws EOFException {
+            if (position >= data.length) {
+                throw new EOFException();
+            }
+            return data[position++];
+        }
+        
+        long readVarLong() throws EOFException {
+            long zigZag = 0L;
+            for (int shift = 0; ; shift += 7) {
+                byte b = read();
+                zigZag |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return (zigZag >>> 1) ^ -(zigZag & 1);
+                }
+            }
+        }
+        
+        long readLong() throws EOFException {
+            long value = 0L;
+            for (int i = 0; i < 8; ++i) {
+                value = (value << 8) | (read() & 0xFFL);
+            }
+            return value;
+        }
+        
+        int readInt() throws EOFException {
+            int value = 0;
+            for (int i = 0; i < 4; ++i) {
+                value = (value << 8) | (read() & 0xFF);
+            }
+            return value;
+        }
+        
+        byte[] readBytes() throws EOFException {
+            int count = Math.toIntExact(readVarLong());
+            if (count < 0 || position + count > data.length) {
+                throw new EOFException();
+            }
+            byte[] bytes = Arrays.copyOfRange(data, position, position + count);
+            position += count;
+            return bytes;
+        }
+        
+        String readString() throws EOFException { return new String(readBytes(), StandardCharsets.UTF_8); }
+    }
+    
+}
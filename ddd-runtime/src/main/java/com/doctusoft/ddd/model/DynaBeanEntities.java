@@ -2,7 +2,14 @@ package com.doctusoft.ddd.model;
 
 import com.doctusoft.dynabean.SharedDynaBeanFactory;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.lang.reflect.*;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.*;
+
+import static com.doctusoft.java.Failsafe.checkArgument;
 import static java.util.Objects.*;
 
 public class DynaBeanEntities implements Instantiator {
@@ -21,6 +28,163 @@ public class DynaBeanEntities implements Instantiator {
         return requireNonNull(copy, "Copy of: " + entity);
     }
     
+    /**
+     * Returns a view of <code>frozen</code> implementing its kind, whose setters throw
+     * {@link UnsupportedOperationException}. The <code>frozen</code> instance must not be modified afterwards.
+     * <p/>
+     * A view equals another view or the entity it reads, but the entity does not equal the view, as only the views
+     * unwrap the compared object.
+     *
+     * @throws IllegalArgumentException if the kind has an attribute of a mutable type (see: {@link #checkShareable(Class)})
+     */
+    public static <T extends Entity> @NotNull T readOnlyView(@NotNull T frozen) {
+        return createView(frozen, true);
+    }
+    
+    /**
+     * Returns a view of <code>frozen</code> implementing its kind, which reads the attributes of <code>frozen</code>
+     * until the first setter is invoked, when it switches to a private {@link #copy(Entity)} of it. The
+     * <code>frozen</code> instance itself is never modified. Equality is not symmetric, like the one of the
+     * {@link #readOnlyView(Entity)}.
+     *
+     * @throws IllegalArgumentException if the kind has an attribute of a mutable type (see: {@link #checkShareable(Class)})
+     */
+    public static <T extends Entity> @NotNull T copyOnWrite(@NotNull T frozen) {
+        return createView(frozen, false);
+    }
+    
+    /**
+     * @return The frozen instance if <code>entity</code> is a {@link #readOnlyView(Entity)} or an unmodified
+     * {@link #copyOnWrite(Entity)} view, otherwise <code>null</code>.
+     */
+    public static <T extends Entity> @Nullable T unmodifiedFrozenOf(@NotNull T entity) {
+        if (Proxy.isProxyClass(entity.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(entity);
+            if (handler instanceof FrozenView && ((FrozenView) handler).copy == null) {
+                return (T) ((FrozenView) handler).frozen;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Views share the attribute values of the frozen instance, so they can only be created of kinds whose attributes
+     * (the properties having both a getter and a setter) are of immutable types: primitives and their wrappers,
+     * {@link String}, enums, {@link BigDecimal}, {@link BigInteger}, the types of <code>java.time</code>,
+     * {@link EntityKey} and {@link CustomId}. Otherwise (e.g. a collection or a {@link Date}) the value returned by the
+     * getter of a view could be modified, changing the entity for every reader without copying it first.
+     *
+     * @throws IllegalArgumentException if an attribute of <code>kind</code> is of a mutable type
+     */
+    public static void checkShareable(@NotNull Class<? extends Entity> kind) {
+        Optional<String> mutableAttribute = MUTABLE_ATTRIBUTES.get(requireNonNull(kind, "kind"));
+        checkArgument(!mutableAttribute.isPresent(),
+            () -> "Attribute " + mutableAttribute.get() + " of " + kind.getName() + " is of a mutable type");
+    }
+    
+    private static <T extends Entity> T createView(T frozen, boolean readOnly) {
+        requireNonNull(frozen, "frozen");
+        Class<? extends Entity> kind = frozen.getKind();
+        checkShareable(kind);
+        return (T) Proxy.newProxyInstance(kind.getClassLoader(), new Class<?>[] { kind }, new FrozenView(frozen, readOnly));
+    }
+    
+    /**
+     * @return The instance currently read by <code>object</code> if it is a view, otherwise <code>object</code>
+     * itself.
+     */
+    private static Object unwrap(Object object) {
+        if (object != null && Proxy.isProxyClass(object.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(object);
+            if (handler instanceof FrozenView) {
+                return ((FrozenView) handler).target();
+            }
+        }
+        return object;
+    }
+    
     private static final SharedDynaBeanFactory FACTORY = new SharedDynaBeanFactory();
     
+    private static final ClassValue<Optional<String>> MUTABLE_ATTRIBUTES = new ClassValue<Optional<String>>() {
+        protected Optional<String> computeValue(Class<?> kind) {
+            for (Method getter : kind.getMethods()) {
+                String name = getter.getName();
+                if (getter.getParameterCount() == 0 && name.startsWith("get") && !isImmutable(getter.getReturnType())) {
+                    try {
+                        kind.getMethod("set" + name.substring(3), getter.getReturnType());
+                        return Optional.of(name.substring(3));
+                    } catch (NoSuchMethodException e) {
+                        // not an attribute
+                    }
+                }
+            }
+            return Optional.empty();
+        }
+    };
+    
+    private static boolean isImmutable(Class<?> type) {
+        return type.isPrimitive()
+            || type.isEnum()
+            || type == String.class
+            || type == Boolean.class
+            || type == Character.class
+            || type == Byte.class
+            || type == Short.class
+            || type == Integer.class
+            || type == Long.class
+            || type == Float.class
+            || type == Double.class
+            || type == BigDecimal.class
+            || type == BigInteger.class
+            || type.getName().startsWith("java.time.")
+            || EntityKey.class.isAssignableFrom(type)
+            || CustomId.class.isAssignableFrom(type);
+    }
+    
+    private static final class FrozenView implements InvocationHandler {
+        
+        private final Entity frozen;
+        
+        private final boolean readOnly;
+        
+        private Entity copy;
+        
+        private FrozenView(Entity frozen, boolean readOnly) {
+            this.frozen = frozen;
+            this.readOnly = readOnly;
+        }
+        
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (copy == null && isSetter(method)) {
+                if (readOnly) {
+                    throw new UnsupportedOperationException("Read-only view of: " + frozen.getKey());
+                }
+                copy = DynaBeanEntities.copy(frozen);
+            }
+            if (isEquals(method)) {
+                // views are compared by their targets, so a view equals another view or the entity it reads
+                return target().equals(unwrap(args[0]));
+            }
+            try {
+                return method.invoke(target(), args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+        
+        private Entity target() { return copy == null ? frozen : copy; }
+        
+        private static boolean isEquals(Method method) {
+            return method.getName().equals("equals")
+                && method.getParameterCount() == 1
+                && method.getParameterTypes()[0] == Object.class;
+        }
+        
+        private static boolean isSetter(Method method) {
+            return method.getParameterCount() == 1
+                && method.getReturnType() == void.class
+                && method.getName().startsWith("set");
+        }
+    }
+    
 }
@@ -0,0 +1,132 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import lombok.Getter;
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import static java.util.Objects.*;
+
+/**
+ * Count and sum of a measure of the entities of a kind stored in an {@link InMemoryDatastore}, in total and grouped by
+ * an attribute, maintained on every change of the kind, so all of them are read in constant time.
+ *
+ * @see InMemoryDatastore#addAggregate(Class, Function, ToLongFunction)
+ */
+public final class Aggregate<T extends Entity, G> {
+    
+    private static final Object NULL = new Object();
+    
+    @Getter private final Class<T> kind;
+    
+    private final Function<? super T, ? extends G> groupBy;
+    
+    private final ToLongFunction<? super T> measure;
+    
+    /**
+     * The contribution of each aggregated entity by its id, so it can be subtracted without reading the attributes of
+     * the removed (or even modified in place) entity instance.
+     */
+    private final ConcurrentMap<Object, Contribution> contributions = new ConcurrentHashMap<>();
+    
+    private final ConcurrentMap<Object, Totals> totalsByGroup = new ConcurrentHashMap<>();
+    
+    /**
+     * Changes of a kind are notified one at a time, so the totals are simply replaced.
+     */
+    private volatile Totals total = Totals.ZERO;
+    
+    final EntityChangeListener<T> listener = new EntityChangeListener<T>() {
+        
+        public void inserted(@NotNull T entity) {
+            Contribution contribution = contributionOf(entity);
+            contributions.put(InMemoryDatastore.idOf(entity), contribution);
+            add(contribution, 1);
+        }
+        
+        public void updated(@NotNull T entity) {
+            Contribution contribution = contributionOf(entity);
+            Contribution previous = contributions.put(InMemoryDatastore.idOf(entity), contribution);
+            if (previous != null) {
+                add(previous, -1);
+            }
+            add(contribution, 1);
+        }
+        
+        public void removed(@NotNull T entity) {
+            Contribution previous = contributions.remove(InMemoryDatastore.idOf(entity));
+            if (previous != null) {
+                add(previous, -1);
+            }
+        }
+    };
+    
+    Aggregate(@NotNull Class<T> kind, @NotNull Function<? super T, ? extends G> groupBy, @NotNull ToLongFunction<? super T> measure) {
+        this.kind = requireNonNull(kind, "kind");
+        this.groupBy = requireNonNull(groupBy, "groupBy");
+        this.measure = requireNonNull(measure, "measure");
+    }
+    
+    public long count() { return total.count; }
+    
+    public long sum() { return total.sum; }
+    
+    public long count(@Nullable G group) {
+        Totals totals = totalsByGroup.get(toGroupKey(group));
+        return totals == null ? 0L : totals.count;
+    }
+    
+    public long sum(@Nullable G group) {
+        Totals totals = totalsByGroup.get(toGroupKey(group));
+        return totals == null ? 0L : totals.sum;
+    }
+    
+    /**
+     * @return The count of the entities of each group having any.
+     */
+    @NotNull public Map<G, Long> countsByGroup() {
+        Map<G, Long> counts = new HashMap<>();
+        totalsByGroup.forEach((groupKey, totals) -> counts.put(groupKey == NULL ? null : (G) groupKey, totals.count));
+        return counts;
+    }
+    
+    private Contribution contributionOf(T entity) {
+        return new Contribution(toGroupKey(groupBy.apply(entity)), measure.applyAsLong(entity));
+    }
+    
+    private void add(Contribution contribution, int sign) {
+        total = total.plus(sign, contribution.value);
+        totalsByGroup.compute(contribution.groupKey, (k, totals) -> {
+            Totals result = (totals == null ? Totals.ZERO : totals).plus(sign, contribution.value);
+            return result.count == 0L ? null : result;
+        });
+    }
+    
+    private static Object toGroupKey(@Nullable Object group) { return group == null ? NULL : group; }
+    
+    @Value
+    private static class Contribution {
+        
+        Object groupKey;
+        
+        long value;
+    }
+    
+    @Value
+    private static class Totals {
+        
+        static final Totals ZERO = new Totals(0L, 0L);
+        
+        long count;
+        
+        long sum;
+        
+        Totals plus(int sign, long value) { return new Totals(count + sign, sum + sign * value); }
+    }
+    
+}
@@ -0,0 +1,280 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.model.EntityKey;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+import static com.doctusoft.java.Failsafe.checkArgument;
+import static java.util.Objects.*;
+
+/**
+ * Asynchronous facade of a {@link GenericPersistence}, running each operation on an executor and returning its
+ * result as a {@link CompletableFuture}, so independent operations (e.g. the loads of a request) run concurrently,
+ * and complete in the time of the slowest one instead of the sum of them.
+ * <p/>
+ * The wrapped persistence is invoked from multiple threads concurrently, so it must be thread-safe: an
+ * {@link InMemoryDatastore} is, but a persistence bound to a single <code>EntityManager</code> is not.
+ */
+public final class AsyncGenericPersistence implements AutoCloseable {
+    
+    /**
+     * @return An async facade of <code>persistence</code> running at most <code>maxConcurrency</code> operations at
+     * the same time on its own executor (see: {@link #boundedExecutor(int)}), which is shut down by {@link #close()}.
+     */
+    public static AsyncGenericPersistence create(@NotNull GenericPersistence persistence, int maxConcurrency) {
+        return new AsyncGenericPersistence(persistence, boundedExecutor(maxConcurrency), true);
+    }
+    
+    /**
+     * @return An async facade of <code>persistence</code> running the operations on <code>executor</code>, which is
+     * owned by the caller.
+     */
+    public static AsyncGenericPersistence create(@NotNull GenericPersistence persistence, @NotNull Executor executor) {
+        return new AsyncGenericPersistence(persistence, executor, false);
+    }
+    
+    /**
+     * @return An executor running at most <code>maxConcurrency</code> tasks at the same time, queueing the rest. Tasks
+     * run on virtual threads when the JVM supports them (Java 21+), otherwise on a pool of daemon threads.
+     */
+    public static ExecutorService boundedExecutor(int maxConcurrency) {
+        checkArgument(maxConcurrency > 0, () -> "maxConcurrency=" + maxConcurrency);
+        ExecutorService virtualThreads = newVirtualThreadPerTaskExecutor();
+        if (virtualThreads != null) {
+            return new BoundedExecutor(virtualThreads, maxConcurrency);
+        }
+        AtomicInteger threadCount = new AtomicInteger();
+        ThreadFactory threadFactory = runnable -> {
+            Thread thread = new Thread(runnable, "AsyncGenericPersistence-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+        ThreadPoolExecutor threadPool = new ThreadPoolExecutor(maxConcurrency, maxConcurrency, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(), threadFactory);
+        threadPool.allowCoreThreadTimeOut(true);
+        return threadPool;
+    }
+    
+    /**
+     * The factory method of Java 21 is looked up reflectively, so this compiles and runs on earlier versions too.
+     */
+    @Nullable private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+    
+    @Getter private final GenericPersistence persistence;
+    
+    private final Executor executor;
+    
+    private final boolean ownExecutor;
+    
+    private AsyncGenericPersistence(GenericPersistence persistence, Executor executor, boolean ownExecutor) {
+        this.persistence = requireNonNull(persistence, "persistence");
+        this.executor = requireNonNull(executor, "executor");
+        this.ownExecutor = ownExecutor;
+    }
+    
+    /**
+     * @return The result of <code>work</code> invoked with the wrapped persistence on the executor, so multiple
+     * operations can be combined into a single task.
+     */
+    public <R> CompletableFuture<R> execute(@NotNull Function<? super GenericPersistence, R> work) {
+        requireNonNull(work, "work");
+        return CompletableFuture.supplyAsync(() -> work.apply(persistence), executor);
+    }
+    
+    public CompletableFuture<Void> run(@NotNull Consumer<? super GenericPersistence> work) {
+        requireNonNull(work, "work");
+        return CompletableFuture.runAsync(() -> work.accept(persistence), executor);
+    }
+    
+    public <T extends Entity> CompletableFuture<T> load(@NotNull EntityKey<T> key) {
+        return execute(p -> p.load(key));
+    }
+    
+    public <T extends Entity> CompletableFuture<Optional<T>> find(@NotNull EntityKey<T> key) {
+        return execute(p -> p.find(key));
+    }
+    
+    /**
+     * @return A future completed exceptionally by {@link EntityNotFoundException} if the entity does not exist.
+     */
+    public <T extends Entity> CompletableFuture<T> require(@NotNull EntityKey<T> key) {
+        return execute(p -> p.require(key));
+    }
+    
+    /**
+     * @return The entities of <code>keys</code> (<code>null</code> for the ones not found) in the same order, loaded
+     * by concurrent tasks of at most <code>batchSize</code> keys each.
+     */
+    public <T extends Entity> CompletableFuture<List<T>> loadAll(@NotNull List<EntityKey<T>> keys, int batchSize) {
+        checkArgument(batchSize > 0, () -> "batchSize=" + batchSize);
+        List<CompletableFuture<Map<EntityKey<?>, Entity>>> batches = new ArrayList<>();
+        for (int from = 0; from < keys.size(); from += batchSize) {
+            List<EntityKey<T>> batch = keys.subList(from, Math.min(from + batchSize, keys.size()));
+            batches.add(loadMany(batch));
+        }
+        return CompletableFuture.allOf(batches.toArray(new CompletableFuture[0])).thenApply(ignored -> {
+            Map<EntityKey<?>, Entity> entities = new HashMap<>();
+            batches.forEach(batch -> entities.putAll(batch.join()));
+            return keys.stream().map(key -> (T) entities.get(key)).collect(Collectors.toList());
+        });
+    }
+    
+    public CompletableFuture<Map<EntityKey<?>, Entity>> loadMany(@NotNull Collection<? extends EntityKey<?>> keys) {
+        return execute(p -> p.loadMany(keys));
+    }
+    
+    public <T extends Entity> CompletableFuture<List<T>> loadByIdAsc(@NotNull Class<T> kind, @NotNull Collection idList) {
+        return execute(p -> p.loadByIdAsc(kind, idList));
+    }
+    
+    public <T extends Entity> CompletableFuture<List<T>> loadSmallDataset(@NotNull Class<T> kind) {
+        return execute(p -> p.loadSmallDataset(kind));
+    }
+    
+    public <T extends Entity> CompletableFuture<Void> insert(@NotNull T entity) {
+        return run(p -> p.insert(entity));
+    }
+    
+    public <T extends Entity> CompletableFuture<Void> update(@NotNull T entity) {
+        return run(p -> p.update(entity));
+    }
+    
+    public <T extends Entity> CompletableFuture<Void> remove(@NotNull T entity) {
+        return run(p -> p.remove(entity));
+    }
+    
+    public <T extends Entity> CompletableFuture<Void> save(@NotNull T entity) {
+        return run(p -> p.save(entity));
+    }
+    
+    public <T extends Entity> CompletableFuture<Void> insertMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> newEntities) {
+        return run(p -> p.insertMany(kind, newEntities));
+    }
+    
+    public <T extends Entity> CompletableFuture<Void> updateMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> changedEntities) {
+        return run(p -> p.updateMany(kind, changedEntities));
+    }
+    
+    public <T extends Entity> CompletableFuture<Void> saveMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> entities) {
+        return run(p -> p.saveMany(kind, entities));
+    }
+    
+    public <T extends Entity> CompletableFuture<Integer> removeMany(@NotNull Class<T> kind, @NotNull Collection idList) {
+        return execute(p -> p.removeMany(kind, idList));
+    }
+    
+    public CompletableFuture<Integer> removeByKeys(@NotNull Collection<? extends EntityKey<?>> keys) {
+        return execute(p -> p.removeByKeys(keys));
+    }
+    
+    /**
+     * Shuts down the executor if it was created by {@link #create(GenericPersistence, int)}, the tasks already
+     * submitted are still completed.
+     */
+    public void close() {
+        if (ownExecutor) {
+            ((ExecutorService) executor).shutdown();
+        }
+    }
+    
+    /**
+     * Limits the number of tasks running at the same time on an executor starting a new thread for each task, tasks
+     * waiting for a permit are queued without blocking the submitters. The queued tasks are still run after
+     * {@link #shutdown()}, the delegate is shut down when the queue is empty.
+     */
+    private static final class BoundedExecutor extends AbstractExecutorService {
+        
+        private final ExecutorService delegate;
+        
+        private final int maxConcurrency;
+        
+        private final Semaphore permits;
+        
+        private final Queue<Runnable> queue = new ConcurrentLinkedQueue<>();
+        
+        private volatile boolean shutdown;
+        
+        BoundedExecutor(ExecutorService delegate, int maxConcurrency) {
+            this.delegate = delegate;
+            this.maxConcurrency = maxConcurrency;
+            this.permits = new Semaphore(maxConcurrency);
+        }
+        
+        public void execute(@NotNull Runnable command) {
+            requireNonNull(command, "command");
+            if (shutdown) {
+                throw new RejectedExecutionException("Executor has been shut down");
+            }
+            queue.add(command);
+            drain();
+        }
+        
+        private void drain() {
+            while (!queue.isEmpty() && permits.tryAcquire()) {
+                Runnable command = queue.poll();
+                if (command == null) {
+                    permits.release();
+                    continue;
+                }
+                try {
+                    delegate.execute(() -> {
+                        try {
+                            command.run();
+                        } finally {
+                            permits.release();
+                            drain();
+                            shutdownIfIdle();
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    permits.release();
+                    throw e;
+                }
+            }
+        }
+        
+        private void shutdownIfIdle() {
+            if (shutdown && queue.isEmpty() && permits.availablePermits() == maxConcurrency) {
+                delegate.shutdown();
+            }
+        }
+        
+        public void shutdown() {
+            shutdown = true;
+            shutdownIfIdle();
+        }
+        
+        @NotNull public List<Runnable> shutdownNow() {
+            shutdown = true;
+            List<Runnable> pending = new ArrayList<>();
+            for (Runnable command = queue.poll(); command != null; command = queue.poll()) {
+                pending.add(command);
+            }
+            pending.addAll(delegate.shutdownNow());
+            return pending;
+        }
+        
+        public boolean isShutdown() { return shutdown; }
+        
+        public boolean isTerminated() { return delegate.isTerminated(); }
+        
+        public boolean awaitTermination(long timeout, @NotNull TimeUnit unit) throws InterruptedException {
+            return delegate.awaitTermination(timeout, unit);
+        }
+    }
+    
+}
@@ -0,0 +1,120 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+import static java.util.Objects.*;
+
+/**
+ * Secondary index of an entity kind stored in an {@link InMemoryDatastore}, maintained on every change of the kind.
+ *
+ * @see InMemoryDatastore#addHashIndex(Class, Function)
+ * @see InMemoryDatastore#addRangeIndex(Class, Function)
+ */
+public abstract class AttributeIndex<T extends Entity, A> {
+    
+    private final InMemoryDatastore datastore;
+    
+    @Getter private final Class<T> kind;
+    
+    private final Function<? super T, ? extends A> attribute;
+    
+    /**
+     * The index key of each indexed entity by its id, so entries can be removed without reading the attribute of the
+     * removed (or even modified in place) entity instance.
+     */
+    private final ConcurrentMap<Object, Object> indexKeys = new ConcurrentHashMap<>();
+    
+    final EntityChangeListener<T> listener = new EntityChangeListener<T>() {
+        
+        public void inserted(@NotNull T entity) {
+            Object indexKey = indexKeyOf(entity);
+            if (indexKey != null) {
+                Object id = InMemoryDatastore.idOf(entity);
+                add(indexKey, id);
+                indexKeys.put(id, indexKey);
+            }
+        }
+        
+        public void updated(@NotNull T entity) {
+            Object indexKey = indexKeyOf(entity);
+            Object id = InMemoryDatastore.idOf(entity);
+            Object previousKey = indexKey == null ? indexKeys.remove(id) : indexKeys.put(id, indexKey);
+            if (!Objects.equals(previousKey, indexKey)) {
+                remove(previousKey, id);
+                add(indexKey, id);
+            }
+        }
+        
+        public void removed(@NotNull T entity) {
+            Object id = InMemoryDatastore.idOf(entity);
+            remove(indexKeys.remove(id), id);
+        }
+    };
+    
+    AttributeIndex(@NotNull InMemoryDatastore datastore, @NotNull Class<T> kind, @NotNull Function<? super T, ? extends A> attribute) {
+        this.datastore = requireNonNull(datastore, "datastore");
+        this.kind = requireNonNull(kind, "kind");
+        this.attribute = requireNonNull(attribute, "attribute");
+    }
+    
+    /**
+     * @return The entities having the given attribute value, ordered by id.
+     */
+    @NotNull public List<T> find(@Nullable A value) {
+        Object indexKey = toIndexKey(value);
+        NavigableSet<Object> ids = indexKey == null ? null : idsByIndexKey().get(indexKey);
+        if (ids == null) {
+            return Collections.emptyList();
+        }
+        return load(ids.stream(), entity -> Objects.equals(attribute.apply(entity), value));
+    }
+    
+    public int count(@Nullable A value) {
+        Object indexKey = toIndexKey(value);
+        NavigableSet<Object> ids = indexKey == null ? null : idsByIndexKey().get(indexKey);
+        return ids == null ? 0 : ids.size();
+    }
+    
+    abstract ConcurrentMap<Object, NavigableSet<Object>> idsByIndexKey();
+    
+    /**
+     * @return The key under which entities having the given attribute value are indexed, or <code>null</code> if such
+     * entities are not indexed.
+     */
+    @Nullable abstract Object toIndexKey(@Nullable A value);
+    
+    /**
+     * Entities are loaded from the datastore and checked again, since the index may be modified concurrently.
+     */
+    final List<T> load(Stream<Object> ids, Predicate<? super T> check) {
+        return ids
+            .map(id -> datastore.loadById(kind, id))
+            .filter(entity -> entity != null && check.test(entity))
+            .collect(Collectors.toList());
+    }
+    
+    final A attributeOf(T entity) { return attribute.apply(entity); }
+    
+    @Nullable private Object indexKeyOf(T entity) { return toIndexKey(attribute.apply(entity)); }
+    
+    private void add(@Nullable Object indexKey, Object id) {
+        if (indexKey != null) {
+            idsByIndexKey().computeIfAbsent(indexKey, k -> new ConcurrentSkipListSet<>()).add(id);
+        }
+    }
+    
+    private void remove(@Nullable Object indexKey, Object id) {
+        if (indexKey != null) {
+            idsByIndexKey().computeIfPresent(indexKey, (k, ids) -> ids.remove(id) && ids.isEmpty() ? null : ids);
+        }
+    }
+    
+}
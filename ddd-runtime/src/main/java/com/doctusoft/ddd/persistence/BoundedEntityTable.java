@@ -0,0 +1,374 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import lombok.RequiredArgsConstructor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.*;
+
+import static com.doctusoft.java.Failsafe.checkArgument;
+
+/**
+ * Entity table holding at most <code>capacity</code> entities, evicting them by the W-TinyLFU policy: new entities
+ * enter a small LRU window, and entities leaving the window are only admitted to the main segmented LRU if they are
+ * estimated to be used more frequently than the entity they would replace. Frequencies are estimated by a count-min
+ * sketch, which is periodically halved so it adapts to changing workloads.
+ * <p/>
+ * Point reads are lock-free, their accesses are recorded only if the policy is not locked by a concurrent writer, so
+ * some of them are lost under contention, which does not affect the hit rate significantly. The ordered
+ * {@link #values()} are cached until the next modification, like the ones of {@link HashEntityTable}.
+ */
+final class BoundedEntityTable implements EntityTable {
+    
+    private static final byte WINDOW = 0;
+    
+    private static final byte PROBATION = 1;
+    
+    private static final byte PROTECTED = 2;
+    
+    private final ConcurrentHashMap<Object, Node> nodes = new ConcurrentHashMap<>();
+    
+    private final ReentrantLock policyLock = new ReentrantLock();
+    
+    private final FrequencySketch sketch;
+    
+    private final int windowCapacity;
+    
+    private final int protectedCapacity;
+    
+    private final int capacity;
+    
+    /**
+     * Heads of the circular doubly-linked LRU lists, the least recently used entity is <code>head.next</code>.
+     */
+    private final Node[] queues = { new Node(null, null), new Node(null, null), new Node(null, null) };
+    
+    private final int[] queueSizes = new int[3];
+    
+    private final List<Entity> evicted = new ArrayList<>();
+    
+    private final LongAdder hits = new LongAdder();
+    
+    private final LongAdder misses = new LongAdder();
+    
+    private final LongAdder evictions = new LongAdder();
+    
+    /**
+     * Incremented after each modification, a cached snapshot is only valid if it was taken at the current version.
+     */
+    private final AtomicLong version = new AtomicLong();
+    
+    private volatile SortedSnapshot sortedSnapshot;
+    
+    BoundedEntityTable(int capacity) {
+        checkArgument(capacity > 0, () -> "capacity=" + capacity);
+        this.capacity = capacity;
+        this.windowCapacity = Math.max(1, capacity / 100);
+        this.protectedCapacity = (capacity - windowCapacity) * 4 / 5;
+        this.sketch = new FrequencySketch(capacity);
+    }
+    
+    @Nullable public Entity get(@NotNull Object id) {
+        Node node = nodes.get(id);
+        if (node == null) {
+            misses.increment();
+            recordAccess(id, null);
+            return null;
+        }
+        hits.increment();
+        recordAccess(id, node);
+        return node.value;
+    }
+    
+    @Nullable public Entity peek(@NotNull Object id) {
+        Node node = nodes.get(id);
+        return node == null ? null : node.value;
+    }
+    
+    public void accessed(@NotNull Object id, boolean found) {
+        (found ? hits : misses).increment();
+        recordAccess(id, found ? nodes.get(id) : null);
+    }
+    
+    @Nullable public Entity putIfAbsent(@NotNull Object id, @NotNull Entity entity) {
+        policyLock.lock();
+        try {
+            Node existing = nodes.get(id);
+            if (existing != null) {
+                return existing.value;
+            }
+            Node node = new Node(id, entity);
+            nodes.put(id, node);
+            sketch.increment(id);
+            link(WINDOW, node);
+            evictIfNeeded();
+            version.incrementAndGet();
+            return null;
+        } finally {
+            policyLock.unlock();
+        }
+    }
+    
+    @Nullable public Entity replace(@NotNull Object id, @NotNull Entity entity) {
+        policyLock.lock();
+        try {
+            Node node = nodes.get(id);
+            if (node == null) {
+                return null;
+            }
+            Entity previous = node.value;
+            node.value = entity;
+            onAccess(node);
+            version.incrementAndGet();
+            return previous;
+        } finally {
+            policyLock.unlock();
+        }
+    }
+    
+    @Nullable public Entity remove(@NotNull Object id) {
+        policyLock.lock();
+        try {
+            Node node = nodes.remove(id);
+            if (node == null) {
+                return null;
+            }
+            unlink(node);
+            version.incrementAndGet();
+            return node.value;
+        } finally {
+            policyLock.unlock();
+        }
+    }
+    
+    public int size() { return nodes.size(); }
+    
+    @NotNull public Collection<Entity> values() {
+        long currentVersion = version.get();
+        SortedSnapshot snapshot = sortedSnapshot;
+        if (snapshot != null && snapshot.version == currentVersion) {
+            return snapshot.values;
+        }
+        Object[] ids = nodes.keySet().toArray();
+        Arrays.sort(ids);
+        List<Entity> values = new ArrayList<>(ids.length);
+        for (Object id : ids) {
+            Node node = nodes.get(id);
+            if (node != null) {
+                values.add(node.value);
+            }
+        }
+        snapshot = new SortedSnapshot(currentVersion, Collections.unmodifiableList(values));
+        sortedSnapshot = snapshot;
+        return snapshot.values;
+    }
+    
+    @NotNull public Collection<Entity> drainEvicted() {
+        policyLock.lock();
+        try {
+            if (evicted.isEmpty()) {
+                return Collections.emptyList();
+            }
+            List<Entity> drained = new ArrayList<>(evicted);
+            evicted.clear();
+            return drained;
+        } finally {
+            policyLock.unlock();
+        }
+    }
+    
+    public void evictAll() {
+        policyLock.lock();
+        try {
+            nodes.values().forEach(node -> {
+                evicted.add(node.value);
+                // detached, so concurrent readers holding the node do not relink it
+                node.prev = null;
+                node.next = null;
+                node.queue = -1;
+            });
+            evictions.add(nodes.size());
+            nodes.clear();
+            for (int queue = WINDOW; queue <= PROTECTED; ++queue) {
+                queues[queue].prev = queues[queue];
+                queues[queue].next = queues[queue];
+                queueSizes[queue] = 0;
+            }
+            version.incrementAndGet();
+        } finally {
+            policyLock.unlock();
+        }
+    }
+    
+    @NotNull CacheStats stats() {
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum());
+    }
+    
+    private void recordAccess(Object id, @Nullable Node node) {
+        if (policyLock.tryLock()) {
+            try {
+                sketch.increment(id);
+                if (node != null) {
+                    onAccess(node);
+                }
+            } finally {
+                policyLock.unlock();
+            }
+        }
+    }
+    
+    private void onAccess(Node node) {
+        if (node.queue < 0) {
+            return;
+        }
+        if (node.queue == PROBATION) {
+            unlink(node);
+            link(PROTECTED, node);
+            while (queueSizes[PROTECTED] > protectedCapacity) {
+                Node demoted = queues[PROTECTED].next;
+                unlink(demoted);
+                link(PROBATION, demoted);
+            }
+        } else {
+            byte queue = node.queue;
+            unlink(node);
+            link(queue, node);
+        }
+    }
+    
+    private void evictIfNeeded() {
+        while (queueSizes[WINDOW] > windowCapacity) {
+            Node candidate = queues[WINDOW].next;
+            unlink(candidate);
+            link(PROBATION, candidate);
+            if (nodes.size() > capacity) {
+                Node victim = queues[PROBATION].next;
+                evict(sketch.frequency(candidate.id) > sketch.frequency(victim.id) ? victim : candidate);
+            }
+        }
+        while (nodes.size() > capacity) {
+            evict(queues[queueSizes[PROBATION] > 0 ? PROBATION : queueSizes[PROTECTED] > 0 ? PROTECTED : WINDOW].next);
+        }
+    }
+    
+    private void evict(Node node) {
+        unlink(node);
+        nodes.remove(node.id);
+        evicted.add(node.value);
+        evictions.increment();
+    }
+    
+    private void link(byte queue, Node node) {
+        Node head = queues[queue];
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+        node.queue = queue;
+        ++queueSizes[queue];
+    }
+    
+    private void unlink(Node node) {
+        if (node.queue >= 0) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+            --queueSizes[node.queue];
+            node.queue = -1;
+        }
+    }
+    
+    @RequiredArgsConstructor
+    private static final class SortedSnapshot {
+        
+        private final long version;
+        
+        private final List<Entity> values;
+    }
+    
+    private static final class Node {
+        
+        private final Object id;
+        
+        private volatile Entity value;
+        
+        private Node prev;
+        
+        private Node next;
+        
+        private byte queue = -1;
+        
+        Node(Object id, Entity value) {
+            this.id = id;
+            this.value = value;
+            this.prev = this;
+            this.next = this;
+        }
+    }
+    
+    /**
+     * Count-min sketch of 4 rows with counters saturating at 15, all of them halved after every
+     * <code>10 * capacity</code> increments.
+     */
+    private static final class FrequencySketch {
+        
+        private static final int[] SEEDS = { 0x97CB3127, 0xB8D4C3F5, 0x5A0F2C6B, 0xE4C2F1A9 };
+        
+        private final byte[] counters;
+        
+        private final int mask;
+        
+        private final int sampleSize;
+        
+        private int increments;
+        
+        FrequencySketch(int capacity) {
+            // 8 counters per entity keep the estimation error low, while using less memory than the entities
+            int width = Integer.highestOneBit(Math.max(2, Math.min(capacity, 1 << 24)) - 1) << 4;
+            this.counters = new byte[width];
+            this.mask = width - 1;
+            this.sampleSize = (int) Math.min(Integer.MAX_VALUE, 10L * capacity);
+        }
+        
+        void increment(Object id) {
+            int hash = spread(id.hashCode());
+            for (int seed : SEEDS) {
+                int index = indexOf(hash, seed);
+                if (counters[index] < 15) {
+                    ++counters[index];
+                }
+            }
+            if (++increments >= sampleSize) {
+                for (int i = 0; i < counters.length; ++i) {
+                    counters[i] >>= 1;
+                }
+                increments /= 2;
+            }
+        }
+        
+        int frequency(Object id) {
+            int hash = spread(id.hashCode());
+            int frequency = 15;
+            for (int seed : SEEDS) {
+                frequency = Math.min(frequency, counters[indexOf(hash, seed)]);
+            }
+            return frequency;
+        }
+        
+        private int indexOf(int hash, int seed) {
+            int h = (hash ^ seed) * 0x9E3779B9;
+            return (h ^ (h >>> 16)) & mask;
+        }
+        
+        private static int spread(int hash) {
+            int h = hash * 0x85EBCA6B;
+            return h ^ (h >>> 13);
+        }
+    }
+    
+}
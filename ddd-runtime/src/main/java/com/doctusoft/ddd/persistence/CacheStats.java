@@ -0,0 +1,23 @@
+package com.doctusoft.ddd.persistence;
+
+import lombok.Value;
+
+/**
+ * Counters of the cache of an entity kind since it has been created, e.g. of a bounded {@link InMemoryDatastore} or
+ * of a {@link CachingPersistence}.
+ */
+@Value
+public class CacheStats {
+    
+    long hitCount;
+    
+    long missCount;
+    
+    long evictionCount;
+    
+    public double hitRate() {
+        long requestCount = hitCount + missCount;
+        return requestCount == 0L ? 1.0 : (double) hitCount / requestCount;
+    }
+    
+}
@@ -0,0 +1,403 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.model.EntityKey;
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+import static com.doctusoft.java.Failsafe.checkArgument;
+import static java.util.Objects.*;
+
+/**
+ * Read-through cache of the point reads ({@link #load(EntityKey)}, {@link #find(EntityKey)},
+ * {@link #require(EntityKey)} and {@link #loadMany(Collection)}) of another {@link GenericPersistence}, holding at
+ * most a given number of entities of each cached kind for a given time, and evicting the least recently used ones.
+ * Missing keys are cached as well, unless disabled by {@link Builder#negativeCaching(boolean)}.
+ * <p/>
+ * Keys written through this persistence are invalidated, and {@link #evictCache()} invalidates every key, but changes
+ * made by others are seen only after the entries expire. If the delegate is transactional, the transactions have to
+ * be exposed by {@link Builder#afterCompletion(Predicate)}: the keys written by a transaction are neither read from
+ * nor put into the cache until it completes, and they are invalidated again after its completion, so neither the
+ * uncommitted changes nor the states loaded by others before the commit remain cached.
+ * <p/>
+ * The cached instances are shared between the readers, so they must not be modified in place. They are not attached
+ * to the unit of work of the reader either: e.g. over a <code>JpaPersistence</code> a cache hit is detached from the
+ * current <code>EntityManager</code>, so it cannot be passed to {@link #remove(Entity)}, the entity has to be loaded
+ * by {@link #selectForUpdate(EntityKey)} (which is not cached) to be changed.
+ */
+public final class CachingPersistence extends ForwardingGenericPersistence {
+    
+    public static Builder builder(@NotNull GenericPersistence delegate) { return new Builder(delegate); }
+    
+    private final Map<Class<? extends Entity>, KindCache> caches;
+    
+    private final boolean negativeCaching;
+    
+    private final LongSupplier ticker;
+    
+    private final Predicate<Runnable> afterCompletion;
+    
+    /**
+     * The keys written by the transaction of the current thread, if it has written any.
+     */
+    private final ThreadLocal<TransactionWrites> transactionWrites = new ThreadLocal<>();
+    
+    private CachingPersistence(Builder builder) {
+        super(builder.delegate);
+        Map<Class<? extends Entity>, KindCache> caches = new HashMap<>();
+        builder.policies.forEach((kind, policy) -> caches.put(kind, new KindCache(policy)));
+        this.caches = caches;
+        this.negativeCaching = builder.negativeCaching;
+        this.ticker = builder.ticker;
+        this.afterCompletion = builder.afterCompletion;
+    }
+    
+    @Nullable public <T extends Entity> T load(@NotNull EntityKey<T> key) {
+        KindCache cache = caches.get(key.getKind());
+        if (cache == null || isWrittenInTransaction(cache, key.getId())) {
+            return super.load(key);
+        }
+        long now = ticker.getAsLong();
+        CachedValue cached = cache.get(key.getId(), now);
+        if (cached != null) {
+            return (T) cached.entity;
+        }
+        long generation = cache.generation();
+        T entity = super.load(key);
+        if (entity != null || negativeCaching) {
+            cache.put(key.getId(), entity, generation, now);
+        }
+        return entity;
+    }
+    
+    @NotNull public <T extends Entity> Optional<T> find(@NotNull EntityKey<T> key) { return Optional.ofNullable(load(key)); }
+    
+    @NotNull public <T extends Entity> T require(@NotNull EntityKey<T> key) {
+        return find(key).orElseThrow(() -> new EntityNotFoundException(key));
+    }
+    
+    /**
+     * Only the keys not cached are loaded from the delegate, by a single invocation.
+     */
+    @NotNull public Map<EntityKey<?>, Entity> loadMany(@NotNull Collection<? extends EntityKey<?>> keys) {
+        long now = ticker.getAsLong();
+        Map<EntityKey<?>, Entity> resultMap = new HashMap<>();
+        List<EntityKey<?>> missingKeys = new ArrayList<>();
+        Map<Class<? extends Entity>, Long> generations = new HashMap<>();
+        for (EntityKey<?> key : keys) {
+            KindCache cache = caches.get(key.getKind());
+            if (cache != null && isWrittenInTransaction(cache, key.getId())) {
+                cache = null;
+            }
+            CachedValue cached = cache == null ? null : cache.get(key.getId(), now);
+            if (cached == null) {
+                missingKeys.add(key);
+                if (cache != null) {
+                    generations.putIfAbsent(key.getKind(), cache.generation());
+                }
+            } else if (cached.entity != null) {
+                resultMap.put(key, cached.entity);
+            }
+        }
+        if (!missingKeys.isEmpty()) {
+            Map<EntityKey<?>, Entity> loaded = super.loadMany(missingKeys);
+            resultMap.putAll(loaded);
+            for (EntityKey<?> key : missingKeys) {
+                KindCache cache = caches.get(key.getKind());
+                Entity entity = loaded.get(key);
+                if (cache != null && generations.containsKey(key.getKind()) && !isWrittenInTransaction(cache, key.getId())
+                    && (entity != null || negativeCaching)) {
+                    cache.put(key.getId(), entity, generations.get(key.getKind()), now);
+                }
+            }
+        }
+        return resultMap;
+    }
+    
+    public <T extends Entity> void insert(@NotNull T entity) {
+        try {
+            super.insert(entity);
+        } finally {
+            invalidate(entity);
+        }
+    }
+    
+    public <T extends Entity> void update(@NotNull T entity) {
+        try {
+            super.update(entity);
+        } finally {
+            invalidate(entity);
+        }
+    }
+    
+    public <T extends Entity> void remove(@NotNull T entity) {
+        try {
+            super.remove(entity);
+        } finally {
+            invalidate(entity);
+        }
+    }
+    
+    public <T extends Entity> void save(@NotNull T entity) {
+        try {
+            super.save(entity);
+        } finally {
+            invalidate(entity);
+        }
+    }
+    
+    public <T extends Entity> void insertMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> newEntities) {
+        try {
+            super.insertMany(kind, newEntities);
+        } finally {
+            newEntities.forEach(this::invalidate);
+        }
+    }
+    
+    public <T extends Entity> void updateMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> changedEntities) {
+        try {
+            super.updateMany(kind, changedEntities);
+        } finally {
+            changedEntities.forEach(this::invalidate);
+        }
+    }
+    
+    public <T extends Entity> void saveMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> entities) {
+        try {
+            super.saveMany(kind, entities);
+        } finally {
+            entities.forEach(this::invalidate);
+        }
+    }
+    
+    public <T extends Entity> int removeMany(@NotNull Class<T> kind, @NotNull Collection idList) {
+        try {
+            return super.removeMany(kind, idList);
+        } finally {
+            idList.forEach(id -> invalidate(kind, id));
+        }
+    }
+    
+    public int removeByKeys(@NotNull Collection<? extends EntityKey<?>> keys) {
+        try {
+            return super.removeByKeys(keys);
+        } finally {
+            keys.forEach(key -> invalidate(key.getKind(), key.getId()));
+        }
+    }
+    
+    /**
+     * Invalidates every cached entry, and evicts the cache of the delegate.
+     */
+    public void evictCache() {
+        caches.values().forEach(KindCache::clear);
+        super.evictCache();
+    }
+    
+    /**
+     * @return The counters of the cache of <code>kind</code>, if it is cached. Reads of missing keys cached are
+     * counted as hits, and expired entries as evicted.
+     */
+    public Optional<CacheStats> cacheStats(@NotNull Class<? extends Entity> kind) {
+        return Optional.ofNullable(caches.get(requireNonNull(kind, "kind"))).map(KindCache::stats);
+    }
+    
+    private void invalidate(Entity entity) { invalidate(entity.getKind(), entity.getId()); }
+    
+    /**
+     * Invalidates the key, and records it as written by the current transaction, so it is invalidated again after the
+     * transaction completes.
+     */
+    private void invalidate(Class<? extends Entity> kind, Object id) {
+        KindCache cache = caches.get(kind);
+        if (cache == null) {
+            return;
+        }
+        cache.invalidate(id);
+        TransactionWrites writes = transactionWrites.get();
+        if (writes == null) {
+            TransactionWrites newWrites = new TransactionWrites();
+            if (!afterCompletion.test(() -> complete(newWrites))) {
+                // there is no transaction, the write has been committed already
+                return;
+            }
+            transactionWrites.set(newWrites);
+            writes = newWrites;
+        }
+        writes.add(cache, id);
+    }
+    
+    private boolean isWrittenInTransaction(KindCache cache, Object id) {
+        TransactionWrites writes = transactionWrites.get();
+        return writes != null && writes.contains(cache, id);
+    }
+    
+    private void complete(TransactionWrites writes) {
+        if (transactionWrites.get() == writes) {
+            transactionWrites.remove();
+        }
+        writes.invalidateAll();
+    }
+    
+    public static final class Builder {
+        
+        private final GenericPersistence delegate;
+        
+        private final Map<Class<? extends Entity>, Policy> policies = new HashMap<>();
+        
+        private boolean negativeCaching = true;
+        
+        private LongSupplier ticker = System::nanoTime;
+        
+        private Predicate<Runnable> afterCompletion = callback -> false;
+        
+        private Builder(GenericPersistence delegate) {
+            this.delegate = requireNonNull(delegate, "delegate");
+        }
+        
+        /**
+         * Caches at most <code>maxSize</code> keys of <code>kind</code>, each one for <code>ttl</code> after it has been
+         * loaded. Kinds not configured are not cached.
+         */
+        public Builder cache(@NotNull Class<? extends Entity> kind, int maxSize, long ttl, @NotNull TimeUnit unit) {
+            checkArgument(maxSize > 0, () -> "maxSize=" + maxSize);
+            checkArgument(ttl > 0L, () -> "ttl=" + ttl);
+            policies.put(requireNonNull(kind, "kind"), new Policy(maxSize, unit.toNanos(ttl)));
+            return this;
+        }
+        
+        public Builder negativeCaching(boolean negativeCaching) {
+            this.negativeCaching = negativeCaching;
+            return this;
+        }
+        
+        /**
+         * The source of the time in nanoseconds, which is {@link System#nanoTime()} by default.
+         */
+        Builder ticker(@NotNull LongSupplier ticker) {
+            this.ticker = requireNonNull(ticker, "ticker");
+            return this;
+        }
+        
+        /**
+         * @param afterCompletion Registers the given callback to be run after the transaction of the current thread is
+         * committed or rolled back (e.g. by {@link TransactionalInMemoryDatastore#afterCompletion(Runnable)} or a JTA
+         * <code>Synchronization</code>), and returns <code>false</code> if there is no transaction, in which case the
+         * writes are committed immediately. By default writes are assumed to be committed immediately.
+         */
+        public Builder afterCompletion(@NotNull Predicate<Runnable> afterCompletion) {
+            this.afterCompletion = requireNonNull(afterCompletion, "afterCompletion");
+            return this;
+        }
+        
+        public CachingPersistence build() { return new CachingPersistence(this); }
+    }
+    
+    @Value
+    private static class Policy {
+        
+        int maxSize;
+        
+        long ttlNanos;
+    }
+    
+    private static final class CachedValue {
+        
+        @Nullable private final Entity entity;
+        
+        private final long expiresAt;
+        
+        CachedValue(@Nullable Entity entity, long expiresAt) {
+            this.entity = entity;
+            this.expiresAt = expiresAt;
+        }
+    }
+    
+    private static final class TransactionWrites {
+        
+        private final Map<KindCache, Set<Object>> idsByCache = new HashMap<>();
+        
+        synchronized void add(KindCache cache, Object id) {
+            idsByCache.computeIfAbsent(cache, c -> new HashSet<>()).add(id);
+        }
+        
+        synchronized boolean contains(KindCache cache, Object id) {
+            Set<Object> ids = idsByCache.get(cache);
+            return ids != null && ids.contains(id);
+        }
+        
+        synchronized void invalidateAll() {
+            idsByCache.forEach((cache, ids) -> ids.forEach(cache::invalidate));
+        }
+    }
+    
+    /**
+     * The cached entries of a kind in least recently used order, guarded by the monitor of the cache.
+     */
+    private static final class KindCache {
+        
+        private final Policy policy;
+        
+        private final LinkedHashMap<Object, CachedValue> entries = new LinkedHashMap<>(16, 0.75f, true);
+        
+        /**
+         * Incremented by every invalidation, so a value loaded concurrently with an invalidation is not cached.
+         */
+        private long generation;
+        
+        private final LongAdder hits = new LongAdder();
+        
+        private final LongAdder misses = new LongAdder();
+        
+        private final LongAdder evictions = new LongAdder();
+        
+        KindCache(Policy policy) {
+            this.policy = policy;
+        }
+        
+        @Nullable synchronized CachedValue get(Object id, long now) {
+            CachedValue cached = entries.get(id);
+            if (cached != null && cached.expiresAt - now <= 0L) {
+                entries.remove(id);
+                evictions.increment();
+                cached = null;
+            }
+            (cached == null ? misses : hits).increment();
+            return cached;
+        }
+        
+        synchronized long generation() { return generation; }
+        
+        synchronized void put(Object id, @Nullable Entity entity, long loadedGeneration, long now) {
+            if (loadedGeneration != generation) {
+                return;
+            }
+            entries.put(id, new CachedValue(entity, now + policy.ttlNanos));
+            Iterator<CachedValue> iterator = entries.values().iterator();
+            while (entries.size() > policy.maxSize) {
+                iterator.next();
+                iterator.remove();
+                evictions.increment();
+            }
+        }
+        
+        synchronized void invalidate(Object id) {
+            ++generation;
+            entries.remove(id);
+        }
+        
+        synchronized void clear() {
+            ++generation;
+            entries.clear();
+        }
+        
+        CacheStats stats() { return new CacheStats(hits.sum(), misses.sum(), evictions.sum()); }
+    }
+    
+}
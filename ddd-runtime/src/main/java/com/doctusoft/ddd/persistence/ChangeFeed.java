@@ -0,0 +1,133 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.model.EntityKey;
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import static com.doctusoft.java.Failsafe.checkArgument;
+
+/**
+ * Feed of the changes of some entity kinds of an {@link InMemoryDatastore}, published into a lock-free ring buffer of
+ * fixed capacity and consumed in batches by any number of {@link Subscription subscriptions}.
+ * <p/>
+ * Publishing never waits for the subscribers: a subscriber falling behind by more than the capacity of the buffer
+ * misses events, which is signalled by {@link Batch#isResyncRequired()}. It should then rebuild its state from the
+ * datastore (e.g. by {@link InMemoryDatastore#allInstanceOf(Class)}), and apply the events received afterwards.
+ * Events of a rolled back change are followed by their compensating events, so applying them in order converges.
+ *
+ * @see InMemoryDatastore#addChangeFeed(int, Class[])
+ */
+public final class ChangeFeed {
+    
+    public enum Operation { INSERTED, UPDATED, REMOVED }
+    
+    @Value
+    public static class ChangeEvent {
+        
+        long sequence;
+        
+        @NotNull Operation operation;
+        
+        @NotNull EntityKey<?> key;
+    }
+    
+    @Value
+    public static class Batch {
+        
+        /**
+         * The subscriber missed some events before the {@link #events}, so it has to rebuild its state.
+         */
+        boolean resyncRequired;
+        
+        @NotNull List<ChangeEvent> events;
+    }
+    
+    private final AtomicReferenceArray<ChangeEvent> ring;
+    
+    private final int mask;
+    
+    /**
+     * The next sequence to be claimed by a publisher.
+     */
+    private final AtomicLong claimed = new AtomicLong();
+    
+    final EntityChangeListener<Entity> listener = new EntityChangeListener<Entity>() {
+        
+        public void inserted(@NotNull Entity entity) { publish(Operation.INSERTED, entity); }
+        
+        public void updated(@NotNull Entity entity) { publish(Operation.UPDATED, entity); }
+        
+        public void removed(@NotNull Entity entity) { publish(Operation.REMOVED, entity); }
+        
+        public void evicted(@NotNull Entity entity) {
+            // evicted entities are not changed
+        }
+    };
+    
+    ChangeFeed(int capacity) {
+        checkArgument(capacity > 0 && Integer.bitCount(capacity) == 1, () -> "capacity must be a power of two: " + capacity);
+        this.ring = new AtomicReferenceArray<>(capacity);
+        this.mask = capacity - 1;
+    }
+    
+    /**
+     * @return A new subscription receiving the events published after its creation.
+     */
+    @NotNull public Subscription subscribe() { return new Subscription(claimed.get()); }
+    
+    private void publish(Operation operation, Entity entity) {
+        long sequence = claimed.getAndIncrement();
+        ring.set((int) sequence & mask, new ChangeEvent(sequence, operation, entity.getKey()));
+    }
+    
+    /**
+     * A consumer of the feed, which is not thread-safe: a subscription should be polled by a single thread.
+     */
+    public final class Subscription {
+        
+        private long cursor;
+        
+        private Subscription(long cursor) {
+            this.cursor = cursor;
+        }
+        
+        /**
+         * @return At most <code>maxEvents</code> events published after the ones already polled, which is empty if
+         * there are none yet.
+         */
+        @NotNull public Batch poll(int maxEvents) {
+            checkArgument(maxEvents > 0, () -> "maxEvents=" + maxEvents);
+            if (claimed.get() - cursor > ring.length()) {
+                return lapped();
+            }
+            List<ChangeEvent> events = new ArrayList<>(Math.min(maxEvents, ring.length()));
+            while (events.size() < maxEvents) {
+                ChangeEvent event = ring.get((int) cursor & mask);
+                if (event == null || event.sequence < cursor) {
+                    break; // not published yet
+                }
+                if (event.sequence > cursor) {
+                    return lapped();
+                }
+                events.add(event);
+                ++cursor;
+            }
+            return new Batch(false, events);
+        }
+        
+        /**
+         * @return The number of events published but not polled yet.
+         */
+        public long lag() { return Math.max(0L, claimed.get() - cursor); }
+        
+        private Batch lapped() {
+            cursor = claimed.get();
+            return new Batch(true, Collections.emptyList());
+        }
+    }
+    
+}
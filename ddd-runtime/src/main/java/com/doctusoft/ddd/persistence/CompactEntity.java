@@ -0,0 +1,32 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.model.EntityKey;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * The stored form of an entity encoded by a {@link com.doctusoft.ddd.model.BinaryEntityCodec}, which only exposes
+ * the kind and the id of the entity without decoding it.
+ */
+@Getter
+@RequiredArgsConstructor
+final class CompactEntity implements Entity {
+    
+    @NotNull private final Class<? extends Entity> kind;
+    
+    @NotNull private final Object id;
+    
+    @NotNull private final String idAsString;
+    
+    /**
+     * Kept as it is, since ids of custom types cannot be parsed from {@link #idAsString}.
+     */
+    @NotNull private final EntityKey key;
+    
+    @NotNull private final byte[] data;
+    
+    public String toString() { return kind.getSimpleName() + "(" + idAsString + ")"; }
+    
+}
@@ -0,0 +1,30 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Notified of the changes of an entity kind in an {@link InMemoryDatastore}, right after the change is applied and
+ * while the kind is still locked for writing, so listeners should return quickly.
+ *
+ * @see InMemoryDatastore#addChangeListener(Class, EntityChangeListener)
+ */
+public interface EntityChangeListener<T extends Entity> {
+    
+    void inserted(@NotNull T entity);
+    
+    void updated(@NotNull T entity);
+    
+    /**
+     * Only the kind and the id of the <code>entity</code> should be relied upon, its other attributes may differ from
+     * the ones of the removed instance.
+     */
+    void removed(@NotNull T entity);
+    
+    /**
+     * The entity has been released by the datastore without being removed (see: {@link InMemoryDatastore#evictCache()}),
+     * which is handled as a removal by default.
+     */
+    default void evicted(@NotNull T entity) { removed(entity); }
+    
+}
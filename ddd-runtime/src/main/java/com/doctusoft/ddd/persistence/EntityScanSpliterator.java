@@ -0,0 +1,75 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Spliterator over a snapshot array of the stored entities of a kind, split in halves so the parts are balanced even
+ * for millions of entities. Entities are decoded and filtered by the optional predicate within the traversal, so
+ * parallel streams do both on their worker threads.
+ */
+final class EntityScanSpliterator<T extends Entity> implements Spliterator<T> {
+    
+    private static final int MIN_SPLIT_SIZE = 1024;
+    
+    private final Entity[] entities;
+    
+    private final Function<Entity, T> decoder;
+    
+    @Nullable private final Predicate<? super T> predicate;
+    
+    private int index;
+    
+    private final int end;
+    
+    EntityScanSpliterator(Entity[] entities, int index, int end, Function<Entity, T> decoder, @Nullable Predicate<? super T> predicate) {
+        this.entities = entities;
+        this.index = index;
+        this.end = end;
+        this.decoder = decoder;
+        this.predicate = predicate;
+    }
+    
+    public boolean tryAdvance(Consumer<? super T> action) {
+        while (index < end) {
+            T entity = decoder.apply(entities[index++]);
+            if (predicate == null || predicate.test(entity)) {
+                action.accept(entity);
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    public void forEachRemaining(Consumer<? super T> action) {
+        int i = index;
+        index = end;
+        for (; i < end; ++i) {
+            T entity = decoder.apply(entities[i]);
+            if (predicate == null || predicate.test(entity)) {
+                action.accept(entity);
+            }
+        }
+    }
+    
+    @Nullable public Spliterator<T> trySplit() {
+        int middle = (index + end) >>> 1;
+        if (middle - index < MIN_SPLIT_SIZE) {
+            return null;
+        }
+        Spliterator<T> prefix = new EntityScanSpliterator<>(entities, index, middle, decoder, predicate);
+        index = middle;
+        return prefix;
+    }
+    
+    public long estimateSize() { return end - index; }
+    
+    public int characteristics() {
+        int characteristics = ORDERED | NONNULL | IMMUTABLE;
+        return predicate == null ? characteristics | SIZED | SUBSIZED : characteristics;
+    }
+    
+}
@@ -0,0 +1,122 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Storage of the entities of a single kind in an {@link InMemoryDatastore}, keyed by the native id of the entities.
+ * Implementations used by a multi-threaded datastore must be thread-safe.
+ *
+ * @see EntityTableFactory
+ */
+public interface EntityTable {
+    
+    @Nullable Entity get(@NotNull Object id);
+    
+    /**
+     * Looks up the entity like {@link #get(Object)}, without recording the access in tables keeping statistics of
+     * them, so a lookup retried by the datastore is recorded only once by {@link #accessed(Object, boolean)}.
+     */
+    @Nullable default Entity peek(@NotNull Object id) { return get(id); }
+    
+    /**
+     * Records the result of a lookup by {@link #peek(Object)}, nothing to do by default.
+     */
+    default void accessed(@NotNull Object id, boolean found) {
+        // nothing to do
+    }
+    
+    /**
+     * @return The entity already stored with the same id, in which case nothing is changed.
+     */
+    @Nullable Entity putIfAbsent(@NotNull Object id, @NotNull Entity entity);
+    
+    /**
+     * @return The entity previously stored with the same id, or <code>null</code> if there was none, in which case
+     * nothing is changed.
+     */
+    @Nullable Entity replace(@NotNull Object id, @NotNull Entity entity);
+    
+    @Nullable Entity remove(@NotNull Object id);
+    
+    int size();
+    
+    /**
+     * @return The stored entities ordered by their ids. Depending on the implementation this is either a live view
+     * or a snapshot taken at the time of the invocation.
+     */
+    @NotNull Collection<Entity> values();
+    
+    /**
+     * @return The stored entities with ids between <code>fromId</code> and <code>toId</code> (both inclusive) ordered
+     * by their ids. By default the range is looked up by binary search if the {@link #values()} are a random access
+     * list, otherwise the values are iterated until the end of the range.
+     */
+    @NotNull default Iterable<Entity> valuesBetween(@NotNull Object fromId, @NotNull Object toId) {
+        Collection<Entity> values = values();
+        if (values instanceof List && values instanceof RandomAccess) {
+            List<Entity> list = (List<Entity>) values;
+            List<Comparable<Object>> ids = new AbstractList<Comparable<Object>>() {
+                
+                public Comparable<Object> get(int index) { return (Comparable<Object>) InMemoryDatastore.idOf(list.get(index)); }
+                
+                public int size() { return list.size(); }
+            };
+            int from = Collections.binarySearch(ids, fromId);
+            int to = Collections.binarySearch(ids, toId);
+            from = from >= 0 ? from : -from - 1;
+            to = to >= 0 ? to + 1 : -to - 1;
+            return from < to ? list.subList(from, to) : Collections.emptyList();
+        }
+        List<Entity> range = new ArrayList<>();
+        for (Entity entity : values) {
+            Comparable id = (Comparable) InMemoryDatastore.idOf(entity);
+            if (id.compareTo(toId) > 0) {
+                break;
+            }
+            if (id.compareTo(fromId) >= 0) {
+                range.add(entity);
+            }
+        }
+        return range;
+    }
+    
+    /**
+     * @return The stored entities with ids greater than <code>afterId</code> (or all of them if it is
+     * <code>null</code>) ordered by their ids, so a kind can be paged through by the last id of each page. By default
+     * the first entity is looked up by binary search in the {@link #values()}.
+     */
+    @NotNull default Iterable<Entity> valuesAfter(@Nullable Object afterId) {
+        Collection<Entity> values = values();
+        if (afterId == null) {
+            return values;
+        }
+        List<Entity> list = values instanceof List && values instanceof RandomAccess ? (List<Entity>) values : new ArrayList<>(values);
+        List<Comparable<Object>> ids = new AbstractList<Comparable<Object>>() {
+            
+            public Comparable<Object> get(int index) { return (Comparable<Object>) InMemoryDatastore.idOf(list.get(index)); }
+            
+            public int size() { return list.size(); }
+        };
+        int from = Collections.binarySearch(ids, afterId);
+        from = from >= 0 ? from + 1 : -from - 1;
+        return list.subList(from, list.size());
+    }
+    
+    /**
+     * @return The entities removed by the table itself (e.g. evicted from a cache) since the last invocation, so the
+     * datastore can notify its listeners of them.
+     */
+    @NotNull default Collection<Entity> drainEvicted() { return Collections.emptyList(); }
+    
+    /**
+     * Removes every entity the table is not required to keep, invoked by {@link InMemoryDatastore#evictCache()}.
+     */
+    default void evictAll() {
+        // entities are kept by default
+    }
+    
+}
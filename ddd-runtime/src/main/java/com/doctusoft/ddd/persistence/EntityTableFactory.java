@@ -0,0 +1,55 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.model.EntityWithLongId;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import static java.util.Objects.*;
+
+/**
+ * Creates the {@link EntityTable} of an entity kind when it is first used in an {@link InMemoryDatastore}.
+ */
+@FunctionalInterface
+public interface EntityTableFactory {
+    
+    @NotNull EntityTable create(@NotNull Class<? extends Entity> kind);
+    
+    /**
+     * Every kind is stored in a {@link NavigableMap} created by <code>entityMapFactory</code>.
+     */
+    static EntityTableFactory sorted(@NotNull Supplier<? extends NavigableMap> entityMapFactory) {
+        requireNonNull(entityMapFactory, "entityMapFactory");
+        return kind -> new SortedMapEntityTable(entityMapFactory.get());
+    }
+    
+    /**
+     * Every kind is stored in a {@link ConcurrentHashMap} for O(1) point operations, ordered iteration is served from
+     * a sorted snapshot built on demand and cached until the next write of the kind.
+     */
+    static EntityTableFactory hashed() {
+        return kind -> new HashEntityTable();
+    }
+    
+    /**
+     * Every kind is stored in a {@link BoundedEntityTable} holding at most as many entities as returned by
+     * <code>capacityByKind</code>, the others are evicted by the W-TinyLFU policy.
+     */
+    static EntityTableFactory bounded(@NotNull ToIntFunction<Class<? extends Entity>> capacityByKind) {
+        requireNonNull(capacityByKind, "capacityByKind");
+        return kind -> new BoundedEntityTable(capacityByKind.applyAsInt(kind));
+    }
+    
+    /**
+     * Kinds of {@link EntityWithLongId} are stored in a {@link LongIdEntityTable} keyed by primitive <code>long</code>
+     * values, all the other kinds are stored in a {@link NavigableMap} created by <code>entityMapFactory</code>.
+     */
+    static EntityTableFactory compactLongIds(@NotNull Supplier<? extends NavigableMap> entityMapFactory) {
+        EntityTableFactory fallback = sorted(entityMapFactory);
+        return kind -> EntityWithLongId.class.isAssignableFrom(kind) ? new LongIdEntityTable() : fallback.create(kind);
+    }
+    
+}
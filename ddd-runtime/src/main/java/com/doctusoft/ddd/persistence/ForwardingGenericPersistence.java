@@ -0,0 +1,86 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.model.EntityKey;
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.stream.*;
+
+import static java.util.Objects.*;
+
+/**
+ * Base class of {@link GenericPersistence} decorators, forwarding every operation (the default ones included) to the
+ * delegate, so a decorator overrides only the operations it is interested in.
+ */
+public abstract class ForwardingGenericPersistence implements GenericPersistence {
+    
+    @Getter(AccessLevel.PROTECTED)
+    private final GenericPersistence delegate;
+    
+    protected ForwardingGenericPersistence(@NotNull GenericPersistence delegate) {
+        this.delegate = requireNonNull(delegate, "delegate");
+    }
+    
+    @Nullable public <T extends Entity> T load(@NotNull EntityKey<T> key) { return delegate.load(key); }
+    
+    @NotNull public <T extends Entity> Optional<T> find(@NotNull EntityKey<T> key) { return delegate.find(key); }
+    
+    @NotNull public <T extends Entity> T require(@NotNull EntityKey<T> key) { return delegate.require(key); }
+    
+    public <T extends Entity> void insert(@NotNull T entity) { delegate.insert(entity); }
+    
+    public <T extends Entity> void update(@NotNull T entity) { delegate.update(entity); }
+    
+    public <T extends Entity> void remove(@NotNull T entity) { delegate.remove(entity); }
+    
+    public <T extends Entity> void save(@NotNull T entity) { delegate.save(entity); }
+    
+    @Nullable public <T extends Entity> T selectForUpdate(@NotNull EntityKey<T> key) { return delegate.selectForUpdate(key); }
+    
+    @NotNull public <T extends Entity> T requireForUpdate(@NotNull EntityKey<T> key) { return delegate.requireForUpdate(key); }
+    
+    public void evictCache() { delegate.evictCache(); }
+    
+    public <T extends Entity> List<T> loadByIdAsc(@NotNull Class<T> kind, @NotNull Collection idList) {
+        return delegate.loadByIdAsc(kind, idList);
+    }
+    
+    @NotNull public Map<EntityKey<?>, Entity> loadMany(@NotNull Collection<? extends EntityKey<?>> keys) {
+        return delegate.loadMany(keys);
+    }
+    
+    public <T extends Entity> void insertMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> newEntities) {
+        delegate.insertMany(kind, newEntities);
+    }
+    
+    public <T extends Entity> void updateMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> changedEntities) {
+        delegate.updateMany(kind, changedEntities);
+    }
+    
+    public <T extends Entity> void saveMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> entities) {
+        delegate.saveMany(kind, entities);
+    }
+    
+    public <T extends Entity> int removeMany(@NotNull Class<T> kind, @NotNull Collection idList) {
+        return delegate.removeMany(kind, idList);
+    }
+    
+    public int removeByKeys(@NotNull Collection<? extends EntityKey<?>> keys) { return delegate.removeByKeys(keys); }
+    
+    @NotNull public Set<Object> existingIds(@NotNull Class<? extends Entity> kind, @NotNull Collection idList) {
+        return delegate.existingIds(kind, idList);
+    }
+    
+    public <T extends Entity> List<T> loadSmallDataset(@NotNull Class<T> kind) throws IllegalArgumentException {
+        return delegate.loadSmallDataset(kind);
+    }
+    
+    public <T extends Entity> Stream<T> stream(@NotNull Class<T> kind, int batchSize) {
+        return delegate.stream(kind, batchSize);
+    }
+    
+}
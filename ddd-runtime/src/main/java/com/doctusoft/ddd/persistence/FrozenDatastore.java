@@ -0,0 +1,191 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.model.EntityClass;
+import com.doctusoft.ddd.model.EntityKey;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+import static com.doctusoft.java.Failsafe.checkArgument;
+import static java.util.Objects.*;
+
+/**
+ * Read-only datastore of reference data, which is frozen into sorted arrays per kind and looked up by binary search
+ * without any locking. Kinds of long ids are keyed by a primitive <code>long[]</code>.
+ * <p/>
+ * The frozen data can be replaced atomically by {@link #refresh(Builder)}, readers see either the previous or the new
+ * version of all the kinds. Every write operation throws {@link UnsupportedOperationException}. The stored instances
+ * are shared between the readers, so they must not be modified.
+ */
+public final class FrozenDatastore implements GenericPersistence {
+    
+    public static Builder builder() { return new Builder(); }
+    
+    /**
+     * @return A datastore of the given kinds loaded by {@link GenericPersistence#loadSmallDataset(Class)}.
+     */
+    @SafeVarargs
+    public static FrozenDatastore freeze(@NotNull GenericPersistence source, @NotNull Class<? extends Entity>... kinds) {
+        return builder().loadSmallDatasets(source, kinds).build();
+    }
+    
+    private volatile Map<Class<? extends Entity>, FrozenKind> kinds;
+    
+    private FrozenDatastore(Map<Class<? extends Entity>, FrozenKind> kinds) {
+        this.kinds = kinds;
+    }
+    
+    /**
+     * Replaces all the frozen kinds atomically with the ones of <code>builder</code>.
+     */
+    public void refresh(@NotNull Builder builder) {
+        kinds = builder.freeze();
+    }
+    
+    @NotNull public Set<Class<? extends Entity>> getKinds() { return kinds.keySet(); }
+    
+    @Nullable public <T extends Entity> T load(@NotNull EntityKey<T> key) {
+        FrozenKind frozenKind = kinds.get(key.getKind());
+        return frozenKind == null ? null : (T) frozenKind.get(key.getId());
+    }
+    
+    public <T extends Entity> void insert(@NotNull T entity) { throw readOnly(); }
+    
+    public <T extends Entity> void update(@NotNull T entity) { throw readOnly(); }
+    
+    public <T extends Entity> void remove(@NotNull T entity) { throw readOnly(); }
+    
+    public <T extends Entity> void insertMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> newEntities) {
+        throw readOnly();
+    }
+    
+    public <T extends Entity> void updateMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> changedEntities) {
+        throw readOnly();
+    }
+    
+    public <T extends Entity> void save(@NotNull T entity) { throw readOnly(); }
+    
+    public <T extends Entity> int removeMany(@NotNull Class<T> kind, @NotNull Collection idList) { throw readOnly(); }
+    
+    public <T extends Entity> List<T> loadByIdAsc(@NotNull Class<T> kind, @NotNull Collection idList) {
+        EntityClass<T> entityClass = EntityClass.of(kind);
+        Object[] ids = new Object[idList.size()];
+        int count = 0;
+        for (Object id : idList) {
+            ids[count++] = entityClass.checkId(id);
+        }
+        Arrays.sort(ids, 0, count);
+        List<T> resultList = new ArrayList<>(count);
+        FrozenKind frozenKind = kinds.get(kind);
+        if (frozenKind != null) {
+            for (int i = 0; i < count; ++i) {
+                Entity entity = frozenKind.get(ids[i]);
+                if (entity != null) {
+                    resultList.add((T) entity);
+                }
+            }
+        }
+        return resultList;
+    }
+    
+    public <T extends Entity> List<T> loadSmallDataset(@NotNull Class<T> kind) throws IllegalArgumentException {
+        return GenericPersistence.checkSmallDataset(kind, allInstanceOf(kind));
+    }
+    
+    /**
+     * @return An unmodifiable list of the entities of <code>kind</code> ordered by id.
+     */
+    @NotNull public <T extends Entity> List<T> allInstanceOf(@NotNull Class<T> kind) {
+        FrozenKind frozenKind = kinds.get(requireNonNull(kind, "kind"));
+        return frozenKind == null ? Collections.emptyList() : (List<T>) Collections.unmodifiableList(Arrays.asList(frozenKind.entities));
+    }
+    
+    public void evictCache() {
+        // nothing to do
+    }
+    
+    private static UnsupportedOperationException readOnly() {
+        return new UnsupportedOperationException("FrozenDatastore is read-only");
+    }
+    
+    /**
+     * Collects the entities of the kinds to be frozen, which is not thread-safe.
+     */
+    public static final class Builder {
+        
+        private final Map<Class<? extends Entity>, List<Entity>> entitiesByKind = new HashMap<>();
+        
+        private Builder() {}
+        
+        public <T extends Entity> Builder add(@NotNull Class<T> kind, @NotNull Collection<? extends T> entities) {
+            EntityClass<T> entityClass = EntityClass.of(kind);
+            List<Entity> kindEntities = entitiesByKind.computeIfAbsent(kind, k -> new ArrayList<>());
+            entities.forEach(entity -> {
+                entityClass.checkInstance(entity);
+                kindEntities.add(entity);
+            });
+            return this;
+        }
+        
+        @SafeVarargs
+        public final Builder loadSmallDatasets(@NotNull GenericPersistence source, @NotNull Class<? extends Entity>... kinds) {
+            requireNonNull(source, "source");
+            for (Class<? extends Entity> kind : kinds) {
+                add((Class) kind, source.loadSmallDataset(kind));
+            }
+            return this;
+        }
+        
+        public FrozenDatastore build() { return new FrozenDatastore(freeze()); }
+        
+        private Map<Class<? extends Entity>, FrozenKind> freeze() {
+            Map<Class<? extends Entity>, FrozenKind> kinds = new HashMap<>();
+            entitiesByKind.forEach((kind, entities) -> kinds.put(kind, FrozenKind.of(kind, entities)));
+            return Collections.unmodifiableMap(kinds);
+        }
+    }
+    
+    /**
+     * The entities of a kind sorted by id, with their ids in a parallel array.
+     */
+    private static final class FrozenKind {
+        
+        static FrozenKind of(Class<? extends Entity> kind, List<Entity> entities) {
+            Entity[] sorted = entities.toArray(new Entity[entities.size()]);
+            Arrays.sort(sorted, (e1, e2) -> ((Comparable) InMemoryDatastore.idOf(e1)).compareTo(InMemoryDatastore.idOf(e2)));
+            boolean longIds = EntityClass.of(kind).hasLongId();
+            long[] longIdArray = longIds ? new long[sorted.length] : null;
+            Object[] idArray = longIds ? null : new Object[sorted.length];
+            for (int i = 0; i < sorted.length; ++i) {
+                Object id = InMemoryDatastore.idOf(sorted[i]);
+                if (longIds) {
+                    longIdArray[i] = (Long) id;
+                } else {
+                    idArray[i] = id;
+                }
+                checkArgument(i == 0 || !id.equals(InMemoryDatastore.idOf(sorted[i - 1])), () -> "Duplicate key: " + kind.getSimpleName() + "(" + id + ")");
+            }
+            return new FrozenKind(longIdArray, idArray, sorted);
+        }
+        
+        @Nullable private final long[] longIds;
+        
+        @Nullable private final Object[] ids;
+        
+        private final Entity[] entities;
+        
+        private FrozenKind(long[] longIds, Object[] ids, Entity[] entities) {
+            this.longIds = longIds;
+            this.ids = ids;
+            this.entities = entities;
+        }
+        
+        @Nullable Entity get(Object id) {
+            int index = longIds != null ? Arrays.binarySearch(longIds, (Long) id) : Arrays.binarySearch(ids, id);
+            return index >= 0 ? entities[index] : null;
+        }
+    }
+    
+}
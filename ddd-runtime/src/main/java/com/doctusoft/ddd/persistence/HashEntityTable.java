@@ -0,0 +1,84 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import lombok.RequiredArgsConstructor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Entity table backed by a {@link ConcurrentHashMap}, so point operations are O(1). The ordered {@link #values()} are
+ * built lazily and cached until the next write, which suits workloads dominated by point lookups, where ordered
+ * iteration is rare compared to the writes.
+ */
+final class HashEntityTable implements EntityTable {
+    
+    private final ConcurrentHashMap<Object, Entity> entityMap = new ConcurrentHashMap<>();
+    
+    /**
+     * Incremented after each modification, a cached snapshot is only valid if it was taken at the current version.
+     */
+    private final AtomicLong version = new AtomicLong();
+    
+    private volatile SortedSnapshot sortedSnapshot;
+    
+    @Nullable public Entity get(@NotNull Object id) { return entityMap.get(id); }
+    
+    @Nullable public Entity putIfAbsent(@NotNull Object id, @NotNull Entity entity) {
+        Entity existing = entityMap.putIfAbsent(id, entity);
+        if (existing == null) {
+            version.incrementAndGet();
+        }
+        return existing;
+    }
+    
+    @Nullable public Entity replace(@NotNull Object id, @NotNull Entity entity) {
+        Entity existing = entityMap.replace(id, entity);
+        if (existing != null) {
+            version.incrementAndGet();
+        }
+        return existing;
+    }
+    
+    @Nullable public Entity remove(@NotNull Object id) {
+        Entity existing = entityMap.remove(id);
+        if (existing != null) {
+            version.incrementAndGet();
+        }
+        return existing;
+    }
+    
+    public int size() { return entityMap.size(); }
+    
+    @NotNull public Collection<Entity> values() {
+        long currentVersion = version.get();
+        SortedSnapshot snapshot = sortedSnapshot;
+        if (snapshot != null && snapshot.version == currentVersion) {
+            return snapshot.values;
+        }
+        Object[] ids = entityMap.keySet().toArray();
+        Arrays.sort(ids);
+        List<Entity> values = new ArrayList<>(ids.length);
+        for (Object id : ids) {
+            Entity entity = entityMap.get(id);
+            if (entity != null) {
+                values.add(entity);
+            }
+        }
+        snapshot = new SortedSnapshot(currentVersion, Collections.unmodifiableList(values));
+        sortedSnapshot = snapshot;
+        return snapshot.values;
+    }
+    
+    @RequiredArgsConstructor
+    private static final class SortedSnapshot {
+        
+        private final long version;
+        
+        private final List<Entity> values;
+    }
+    
+}
@@ -0,0 +1,28 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/**
+ * Index supporting equality lookups, including lookup of the entities with <code>null</code> attribute value.
+ */
+public final class HashIndex<T extends Entity, A> extends AttributeIndex<T, A> {
+    
+    private static final Object NULL = new Object();
+    
+    private final ConcurrentMap<Object, NavigableSet<Object>> idsByValue = new ConcurrentHashMap<>();
+    
+    HashIndex(@NotNull InMemoryDatastore datastore, @NotNull Class<T> kind, @NotNull Function<? super T, ? extends A> attribute) {
+        super(datastore, kind, attribute);
+    }
+    
+    ConcurrentMap<Object, NavigableSet<Object>> idsByIndexKey() { return idsByValue; }
+    
+    @NotNull Object toIndexKey(@Nullable A value) { return value == null ? NULL : value; }
+    
+}
@@ -1,62 +1,343 @@
 package com.doctusoft.ddd.persistence;
 
 import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.model.EntityClass;
 import com.doctusoft.ddd.model.EntityKey;
-import lombok.EqualsAndHashCode;
+import com.doctusoft.ddd.model.EntityWithLongId;
+import com.doctusoft.ddd.model.EntityWithStringId;
+import com.doctusoft.math.ClosedRange;
+import lombok.RequiredArgsConstructor;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
 import java.util.function.*;
+import java.util.stream.*;
 
+import static com.doctusoft.java.Failsafe.checkArgument;
+import static com.doctusoft.java.Failsafe.checkState;
 import static java.util.Objects.*;
 
 public class InMemoryDatastore implements GenericPersistence {
     
     public static InMemoryDatastore singleThreaded() {
-        return new InMemoryDatastore(TreeMap::new);
+        return new InMemoryDatastore(EntityTableFactory.sorted(TreeMap::new));
     }
     
     public static InMemoryDatastore multiThreaded() {
-        return new InMemoryDatastore(ConcurrentSkipListMap::new);
+        return new InMemoryDatastore(EntityTableFactory.sorted(ConcurrentSkipListMap::new));
     }
     
-    private final NavigableMap<KeyWrapper, Entity> entityMap;
+    /**
+     * Multi-threaded datastore storing the kinds of {@link EntityWithLongId} in compact primitive long-keyed tables,
+     * which is recommended for large amount of entities of such kinds.
+     *
+     * @see EntityTableFactory#compactLongIds(Supplier)
+     */
+    public static InMemoryDatastore compactLongIds() {
+        return new InMemoryDatastore(EntityTableFactory.compactLongIds(ConcurrentSkipListMap::new));
+    }
+    
+    /**
+     * Multi-threaded datastore storing every kind in a hash table, which is recommended when point operations
+     * dominate and ordered iteration (e.g. {@link #allInstanceOf(Class)}) is rare.
+     *
+     * @see EntityTableFactory#hashed()
+     */
+    public static InMemoryDatastore hashed() {
+        return new InMemoryDatastore(EntityTableFactory.hashed());
+    }
+    
+    /**
+     * Multi-threaded datastore holding at most <code>capacity</code> entities of each kind, which is recommended as a
+     * near-cache in front of another {@link GenericPersistence}.
+     *
+     * @see EntityTableFactory#bounded(ToIntFunction)
+     */
+    public static InMemoryDatastore bounded(int capacity) {
+        return bounded(kind -> capacity);
+    }
+    
+    public static InMemoryDatastore bounded(@NotNull ToIntFunction<Class<? extends Entity>> capacityByKind) {
+        return new InMemoryDatastore(EntityTableFactory.bounded(capacityByKind));
+    }
+    
+    private final EntityTableFactory tableFactory;
+    
+    /**
+     * One table per entity kind, keyed directly by the native id of the entities (see: {@link #idOf(EntityKey)}).
+     */
+    private final ConcurrentMap<Class<? extends Entity>, KindStore> stores = new ConcurrentHashMap<>();
     
     public InMemoryDatastore(Supplier<? extends NavigableMap> entityMapFactory) {
-        this.entityMap = entityMapFactory.get();
+        this(EntityTableFactory.sorted(entityMapFactory));
+    }
+    
+    protected InMemoryDatastore(@NotNull EntityTableFactory tableFactory) {
+        this.tableFactory = requireNonNull(tableFactory, "tableFactory");
     }
     
     @Nullable public <T extends Entity> T load(@NotNull EntityKey<T> key) {
-        Entity entity = entityMap.get(new KeyWrapper(key));
-        if (entity == null) {
-            return null;
-        }
-        return decodeEntity((T) entity);
+        return loadById(key.getKind(), idOf(key));
     }
     
     public <T extends Entity> void insert(@NotNull T entity) {
-        EntityKey entityKey = entity.getKey();
-        KeyWrapper mapKey = new KeyWrapper(entityKey);
-        Entity existing = entityMap.putIfAbsent(mapKey, encodeEntity(entity));
-        if (existing != null) {
-            throw new IllegalStateException("Entity with key " + entityKey + " already exists: " + existing);
+        Object id = idOf(entity);
+        KindStore store = storeOf(entity.getKind());
+        Entity encoded = encodeEntity(entity);
+        long stamp = store.lockForWrite();
+        try {
+            Entity existing = store.table.putIfAbsent(id, encoded);
+            if (existing != null) {
+                throw new IllegalStateException("Entity with key " + entity.getKey() + " already exists: " + existing);
+            }
+            store.notifyListeners(
+                listener -> listener.inserted(entity),
+                listener -> listener.removed(entity),
+                () -> store.table.remove(id));
+            notifyEvicted(store);
+        } finally {
+            store.lock.unlock(stamp);
         }
     }
     
     public <T extends Entity> void update(@NotNull T entity) {
-        EntityKey entityKey = entity.getKey();
-        KeyWrapper mapKey = new KeyWrapper(entityKey);
-        Entity nullIfNotExisting = entityMap.computeIfPresent(mapKey, (k, oldValue) -> encodeEntity(entity));
-        if (nullIfNotExisting == null) {
-            throw new IllegalStateException("Entity with key " + entityKey + " did not exist");
+        Object id = idOf(entity);
+        KindStore store = stores.get(entity.getKind());
+        Entity previous = null;
+        if (store != null) {
+            Entity encoded = encodeEntity(entity);
+            long stamp = store.lockForWrite();
+            try {
+                previous = store.table.replace(id, encoded);
+                if (previous != null) {
+                    Entity restored = previous;
+                    store.notifyListeners(
+                        listener -> listener.updated(entity),
+                        listener -> listener.updated(decodeEntity(restored)),
+                        () -> store.table.replace(id, restored));
+                }
+            } finally {
+                store.lock.unlock(stamp);
+            }
+        }
+        if (previous == null) {
+            throw new IllegalStateException("Entity with key " + entity.getKey() + " did not exist");
         }
     }
     
     public <T extends Entity> void remove(@NotNull T entity) {
-        EntityKey key = entity.getKey();
-        entityMap.remove(new KeyWrapper(key));
+        Object id = idOf(entity);
+        KindStore store = stores.get(entity.getKind());
+        if (store != null) {
+            long stamp = store.lockForWrite();
+            try {
+                Entity previous = store.table.remove(id);
+                if (previous != null) {
+                    store.notifyListeners(
+                        listener -> listener.removed(entity),
+                        listener -> listener.inserted(decodeEntity(previous)),
+                        () -> store.table.putIfAbsent(id, previous));
+                }
+            } finally {
+                store.lock.unlock(stamp);
+            }
+        }
+    }
+    
+    public <T extends Entity> List<T> loadByIdAsc(@NotNull Class<T> kind, @NotNull Collection idList) {
+        EntityClass<T> entityClass = EntityClass.of(kind);
+        Object[] ids = new Object[idList.size()];
+        int count = 0;
+        for (Object id : idList) {
+            ids[count++] = entityClass.checkId(id);
+        }
+        Arrays.sort(ids, 0, count);
+        List<T> resultList = new ArrayList<>(count);
+        KindStore store = stores.get(kind);
+        if (store != null) {
+            Entity[] entities = new Entity[count];
+            long stamp = store.lock.tryOptimisticRead();
+            getAll(store, ids, entities);
+            if (!store.lock.validate(stamp)) {
+                stamp = store.lock.readLock();
+                try {
+                    getAll(store, ids, entities);
+                } finally {
+                    store.lock.unlockRead(stamp);
+                }
+            }
+            for (int i = 0; i < count; ++i) {
+                store.table.accessed(ids[i], entities[i] != null);
+            }
+            for (Entity entity : entities) {
+                if (entity != null) {
+                    resultList.add(decodeEntity((T) entity));
+                }
+            }
+        }
+        return resultList;
+    }
+    
+    /**
+     * Loads the entities of all the kinds in a single pass over the keys.
+     */
+    @NotNull public Map<EntityKey<?>, Entity> loadMany(@NotNull Collection<? extends EntityKey<?>> keys) {
+        Map<EntityKey<?>, Entity> resultMap = new HashMap<>();
+        for (EntityKey<?> key : keys) {
+            Entity entity = load(key);
+            if (entity != null) {
+                resultMap.put(key, entity);
+            }
+        }
+        return resultMap;
+    }
+    
+    /**
+     * Inserts the entities in the order of their ids while the kind is locked exclusively, so point reads never see the
+     * batch partially applied. Either all of the entities are inserted, or none of them if any of them already exists.
+     */
+    public <T extends Entity> void insertMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> newEntities) {
+        Entity[] entities = sortedBatch(kind, newEntities);
+        Entity[] encoded = encodeBatch(entities);
+        KindStore store = storeOf(kind);
+        long stamp = store.lock.writeLock();
+        try {
+            for (int i = 0; i < entities.length; ++i) {
+                Entity entity = entities[i];
+                Object id = idOf(entity);
+                Entity existing = store.table.putIfAbsent(id, encoded[i]);
+                if (existing != null) {
+                    rollbackInserted(store, entities, i);
+                    throw new IllegalStateException("Entity with key " + entity.getKey() + " already exists: " + existing);
+                }
+                try {
+                    store.notifyListeners(
+                        listener -> listener.inserted(entity),
+                        listener -> listener.removed(entity),
+                        () -> store.table.remove(id));
+                } catch (RuntimeException | Error e) {
+                    rollbackInserted(store, entities, i);
+                    throw e;
+                }
+            }
+            notifyEvicted(store);
+        } finally {
+            store.lock.unlock(stamp);
+        }
+    }
+    
+    /**
+     * Updates the entities in the order of their ids while the kind is locked exclusively, so point reads never see the
+     * batch partially applied. Either all of the entities are updated, or none of them if any of them does not exist.
+     */
+    public <T extends Entity> void updateMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> changedEntities) {
+        Entity[] entities = sortedBatch(kind, changedEntities);
+        Entity[] encoded = encodeBatch(entities);
+        Entity[] previous = new Entity[entities.length];
+        KindStore store = storeOf(kind);
+        long stamp = store.lock.writeLock();
+        try {
+            for (int i = 0; i < entities.length; ++i) {
+                Entity entity = entities[i];
+                Object id = idOf(entity);
+                Entity restored = store.table.replace(id, encoded[i]);
+                if (restored == null) {
+                    rollbackUpdated(store, entities, previous, i);
+                    throw new IllegalStateException("Entity with key " + entity.getKey() + " did not exist");
+                }
+                previous[i] = restored;
+                try {
+                    store.notifyListeners(
+                        listener -> listener.updated(entity),
+                        listener -> listener.updated(decodeEntity(restored)),
+                        () -> store.table.replace(id, restored));
+                } catch (RuntimeException | Error e) {
+                    rollbackUpdated(store, entities, previous, i);
+                    throw e;
+                }
+            }
+        } finally {
+            store.lock.unlock(stamp);
+        }
+    }
+    
+    /**
+     * Removes the entities in the order of their ids while the kind is locked exclusively, the ids of missing entities
+     * are ignored. Either all of the entities are removed, or none of them if a listener fails.
+     */
+    public <T extends Entity> int removeMany(@NotNull Class<T> kind, @NotNull Collection idList) {
+        EntityClass<T> entityClass = EntityClass.of(kind);
+        Object[] ids = new Object[idList.size()];
+        int count = 0;
+        for (Object id : idList) {
+            ids[count++] = entityClass.checkId(id);
+        }
+        Arrays.sort(ids, 0, count);
+        KindStore store = stores.get(kind);
+        if (store == null) {
+            return 0;
+        }
+        Entity[] removed = new Entity[count];
+        int removedCount = 0;
+        long stamp = store.lock.writeLock();
+        try {
+            for (int i = 0; i < count; ++i) {
+                Object id = ids[i];
+                Entity previous = store.table.remove(id);
+                if (previous == null) {
+                    continue;
+                }
+                removed[removedCount++] = previous;
+                if (store.listeners.length != 0) {
+                    Entity entity = decodeEntity(previous);
+                    try {
+                        store.notifyListeners(
+                            listener -> listener.removed(entity),
+                            listener -> listener.inserted(entity),
+                            () -> store.table.putIfAbsent(id, previous));
+                    } catch (RuntimeException | Error e) {
+                        rollbackRemoved(store, removed, removedCount - 1);
+                        throw e;
+                    }
+                }
+            }
+        } finally {
+            store.lock.unlock(stamp);
+        }
+        return removedCount;
+    }
+    
+    /**
+     * Removes the entities of <code>kind</code> with ids in <code>idRange</code> by {@link #removeMany(Class,
+     * Collection)}, reading the ids from the sub-map of the range. Entities inserted into the range concurrently may
+     * be kept.
+     *
+     * @return The number of entities removed.
+     */
+    public <T extends Entity> int removeByIdInNumericRange(@NotNull Class<T> kind, @NotNull ClosedRange<Long> idRange) {
+        checkState(EntityClass.of(kind).hasLongId(), () -> "Not EntityWithLongId: " + kind.getName());
+        return removeByIdInRange(kind, idRange);
+    }
+    
+    /**
+     * @see #removeByIdInNumericRange(Class, ClosedRange)
+     */
+    public <T extends Entity> int removeByIdInLexicographicalRange(@NotNull Class<T> kind, @NotNull ClosedRange<String> idRange) {
+        checkState(EntityClass.of(kind).hasStringId(), () -> "Not EntityWithStringId: " + kind.getName());
+        return removeByIdInRange(kind, idRange);
+    }
+    
+    private <T extends Entity> int removeByIdInRange(Class<T> kind, ClosedRange<?> idRange) {
+        KindStore store = stores.get(kind);
+        if (store == null) {
+            return 0;
+        }
+        List<Object> ids = new ArrayList<>();
+        store.table.valuesBetween(idRange.getLowerBound(), idRange.getUpperBound()).forEach(entity -> ids.add(idOf(entity)));
+        return removeMany(kind, ids);
     }
     
     public <T extends Entity> List<T> loadSmallDataset(@NotNull Class<T> kind) throws IllegalArgumentException {
@@ -64,53 +345,434 @@ public class InMemoryDatastore implements GenericPersistence {
         return GenericPersistence.checkSmallDataset(kind, allInstances);
     }
     
+    /**
+     * @return An unmodifiable collection of the entities of <code>kind</code> ordered by id, each decoded when iterated.
+     */
     public <T extends Entity> Collection<T> allInstanceOf(Class<T> kind) {
-        Collection entities = entityMap.subMap(KeyWrapper.startOf(kind), KeyWrapper.endOf(kind)).values();
-        return Collections.unmodifiableCollection(entities);
+        Collection<T> entities = (Collection) storeOf(kind).table.values();
+        return new AbstractCollection<T>() {
+            
+            public Iterator<T> iterator() {
+                Iterator<T> iterator = entities.iterator();
+                return new Iterator<T>() {
+                    
+                    public boolean hasNext() { return iterator.hasNext(); }
+                    
+                    public T next() { return decodeEntity(iterator.next()); }
+                };
+            }
+            
+            public int size() { return entities.size(); }
+        };
+    }
+    
+    public <T extends Entity> List<T> loadByIdInNumericRange(@NotNull Class<T> kind, @NotNull ClosedRange<Long> idRange) {
+        return loadByIdInNumericRange(kind, idRange, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * @return At most <code>limit</code> entities of a kind of {@link EntityWithLongId} with ids in the given range,
+     * ordered by id. Sorted tables are walked from the lower bound, so iterating a kind in batches is O(log n + limit)
+     * per batch.
+     */
+    public <T extends Entity> List<T> loadByIdInNumericRange(@NotNull Class<T> kind, @NotNull ClosedRange<Long> idRange, int limit) {
+        checkState(EntityClass.of(kind).hasLongId(), () -> "Not EntityWithLongId: " + kind.getName());
+        return loadByIdInRange(kind, idRange, limit);
+    }
+    
+    public <T extends Entity> List<T> loadByIdInLexicographicalRange(@NotNull Class<T> kind, @NotNull ClosedRange<String> idRange) {
+        return loadByIdInLexicographicalRange(kind, idRange, Integer.MAX_VALUE);
+    }
+    
+    /**
+     * @return At most <code>limit</code> entities of a kind of {@link EntityWithStringId} with ids in the given range,
+     * ordered by id.
+     * @see #loadByIdInNumericRange(Class, ClosedRange, int)
+     */
+    public <T extends Entity> List<T> loadByIdInLexicographicalRange(@NotNull Class<T> kind, @NotNull ClosedRange<String> idRange, int limit) {
+        checkState(EntityClass.of(kind).hasStringId(), () -> "Not EntityWithStringId: " + kind.getName());
+        return loadByIdInRange(kind, idRange, limit);
+    }
+    
+    private <T extends Entity> List<T> loadByIdInRange(Class<T> kind, ClosedRange<?> idRange, int limit) {
+        checkArgument(limit > 0, () -> "limit=" + limit);
+        KindStore store = stores.get(kind);
+        if (store == null) {
+            return new ArrayList<>();
+        }
+        return decodeAtMost(store.table.valuesBetween(idRange.getLowerBound(), idRange.getUpperBound()), limit);
+    }
+    
+    /**
+     * Pages through the kind in batches read after the last id of the previous batch, so each batch is O(log n +
+     * batchSize) for sorted tables. The batches are not isolated from each other, concurrent changes of the entities
+     * not streamed yet are seen.
+     */
+    public <T extends Entity> Stream<T> stream(@NotNull Class<T> kind, int batchSize) {
+        requireNonNull(kind, "kind");
+        return GenericPersistence.streamByKeyset(batchSize, (lastId, limit) -> {
+            KindStore store = stores.get(kind);
+            return store == null ? new ArrayList<>() : decodeAtMost(store.table.valuesAfter(lastId), limit);
+        }, () -> {});
+    }
+    
+    private <T extends Entity> List<T> decodeAtMost(Iterable<Entity> entities, int limit) {
+        List<T> resultList = new ArrayList<>();
+        for (Entity entity : entities) {
+            resultList.add(decodeEntity((T) entity));
+            if (resultList.size() == limit) {
+                break;
+            }
+        }
+        return resultList;
+    }
+    
+    /**
+     * @return A stream of the entities of <code>kind</code> ordered by id, which can be processed in parallel.
+     * @see #scan(Class, Predicate)
+     */
+    public <T extends Entity> Stream<T> scan(@NotNull Class<T> kind) {
+        return scan(kind, null);
+    }
+    
+    /**
+     * @return A stream of the entities of <code>kind</code> matching the predicate, ordered by id. The stream is
+     * backed by a snapshot of the kind taken by this invocation, which splits evenly for parallel processing, and the
+     * entities are decoded and filtered by the workers of the stream.
+     */
+    public <T extends Entity> Stream<T> scan(@NotNull Class<T> kind, @Nullable Predicate<? super T> predicate) {
+        KindStore store = stores.get(requireNonNull(kind, "kind"));
+        if (store == null) {
+            return Stream.empty();
+        }
+        Entity[] entities = store.table.values().toArray(new Entity[0]);
+        Function<Entity, T> decoder = entity -> decodeEntity((T) entity);
+        return StreamSupport.stream(new EntityScanSpliterator<>(entities, 0, entities.length, decoder, predicate), false);
     }
     
     @NotNull protected <T extends Entity> T decodeEntity(@NotNull T entity) { return entity; }
     
     @NotNull protected <T extends Entity> T encodeEntity(@NotNull T entity) { return entity; }
     
+    /**
+     * Releases the entities of the kinds stored in tables not required to keep them (see: {@link #bounded(int)}),
+     * notifying the listeners of their removal.
+     */
     public void evictCache() {
-        // nothing to do
+        stores.values().forEach(store -> {
+            long stamp = store.lock.writeLock();
+            try {
+                store.table.evictAll();
+                notifyEvicted(store);
+            } finally {
+                store.lock.unlockWrite(stamp);
+            }
+        });
     }
     
-    @EqualsAndHashCode(of = "asString", doNotUseGetters = true)
-    private static final class KeyWrapper implements Comparable<KeyWrapper> {
-        
-        public static KeyWrapper startOf(Class<?> kind) {
-            return new KeyWrapper(kind.getSimpleName() + "(");
+    /**
+     * @return The counters of <code>kind</code> if it is stored in a bounded table (see: {@link #bounded(int)}).
+     */
+    public Optional<CacheStats> cacheStats(@NotNull Class<? extends Entity> kind) {
+        KindStore store = stores.get(requireNonNull(kind, "kind"));
+        if (store == null || !(store.table instanceof BoundedEntityTable)) {
+            return Optional.empty();
         }
-        
-        public static KeyWrapper endOf(Class<?> kind) {
-            return new KeyWrapper(kind.getSimpleName() + ")");
+        return Optional.of(((BoundedEntityTable) store.table).stats());
+    }
+    
+    /**
+     * Runs <code>read</code> holding the read lock of every kind, so it sees no batch partially applied (or rolled
+     * back later). Kinds stored meanwhile for the first time are locked by retrying.
+     */
+    <R> R readLockingAllKinds(@NotNull Supplier<R> read) {
+        while (true) {
+            KindStore[] locked = stores.values().toArray(new KindStore[0]);
+            long[] stamps = new long[locked.length];
+            for (int i = 0; i < locked.length; ++i) {
+                stamps[i] = locked[i].lock.readLock();
+            }
+            try {
+                if (stores.size() == locked.length) {
+                    return read.get();
+                }
+            } finally {
+                for (int i = 0; i < locked.length; ++i) {
+                    locked[i].lock.unlockRead(stamps[i]);
+                }
+            }
         }
+    }
+    
+    /**
+     * @return <code>true</code> if the table of <code>kind</code> removes entities by itself (see:
+     * {@link EntityTable#drainEvicted()}).
+     */
+    boolean isEvicting(@NotNull Class<? extends Entity> kind) { return storeOf(kind).table instanceof BoundedEntityTable; }
+    
+    /**
+     * Registers a listener notified of every change of the given kind, while the kind is locked for writing. Changes
+     * are rolled back if a listener fails, and the listeners notified earlier are notified of the rollback too.
+     */
+    public <T extends Entity> void addChangeListener(@NotNull Class<T> kind, @NotNull EntityChangeListener<? super T> listener) {
+        requireNonNull(listener, "listener");
+        storeOf(kind).updateListeners(listeners -> listeners.add(listener));
+    }
+    
+    public <T extends Entity> void removeChangeListener(@NotNull Class<T> kind, @NotNull EntityChangeListener<? super T> listener) {
+        KindStore store = stores.get(requireNonNull(kind, "kind"));
+        if (store != null) {
+            store.updateListeners(listeners -> listeners.remove(listener));
+        }
+    }
+    
+    /**
+     * Registers an index of the entities of <code>kind</code> by the value of the given attribute, which can be
+     * queried by equality. Entities already stored are indexed immediately.
+     */
+    public <T extends Entity, A> HashIndex<T, A> addHashIndex(@NotNull Class<T> kind, @NotNull Function<? super T, ? extends A> attribute) {
+        return addIndex(new HashIndex<>(this, kind, attribute));
+    }
+    
+    /**
+     * Registers an index of the entities of <code>kind</code> by the value of the given attribute, which can be
+     * queried by equality and by range. Entities already stored are indexed immediately.
+     */
+    public <T extends Entity, A extends Comparable<? super A>> RangeIndex<T, A> addRangeIndex(@NotNull Class<T> kind, @NotNull Function<? super T, ? extends A> attribute) {
+        return addIndex(new RangeIndex<>(this, kind, attribute));
+    }
+    
+    /**
+     * Registers the count and the sum of <code>measure</code> of the entities of <code>kind</code>, in total and by
+     * the value of <code>groupBy</code>, which are maintained incrementally. Entities already stored are aggregated
+     * immediately.
+     */
+    public <T extends Entity, G> Aggregate<T, G> addAggregate(@NotNull Class<T> kind, @NotNull Function<? super T, ? extends G> groupBy, @NotNull ToLongFunction<? super T> measure) {
+        Aggregate<T, G> aggregate = new Aggregate<>(kind, groupBy, measure);
+        addInitializedListener(kind, aggregate.listener);
+        return aggregate;
+    }
+    
+    /**
+     * Registers the count and the sum of <code>measure</code> of all the entities of <code>kind</code>.
+     */
+    public <T extends Entity> Aggregate<T, Void> addAggregate(@NotNull Class<T> kind, @NotNull ToLongFunction<? super T> measure) {
+        return addAggregate(kind, entity -> null, measure);
+    }
+    
+    /**
+     * Registers the count of the entities of <code>kind</code> by the value of <code>groupBy</code>.
+     */
+    public <T extends Entity, G> Aggregate<T, G> addGroupCounter(@NotNull Class<T> kind, @NotNull Function<? super T, ? extends G> groupBy) {
+        return addAggregate(kind, groupBy, entity -> 0L);
+    }
+    
+    /**
+     * Registers a feed publishing the changes of the given kinds into a ring buffer of <code>capacity</code> events,
+     * which must be a power of two.
+     */
+    @SafeVarargs
+    public final ChangeFeed addChangeFeed(int capacity, @NotNull Class<? extends Entity>... kinds) {
+        ChangeFeed changeFeed = new ChangeFeed(capacity);
+        for (Class<? extends Entity> kind : kinds) {
+            storeOf(kind).updateListeners(listeners -> listeners.add(changeFeed.listener));
+        }
+        return changeFeed;
+    }
+    
+    public void removeChangeFeed(@NotNull ChangeFeed changeFeed) {
+        stores.values().forEach(store -> store.updateListeners(listeners -> listeners.remove(changeFeed.listener)));
+    }
+    
+    private <I extends AttributeIndex<T, ?>, T extends Entity> I addIndex(I index) {
+        addInitializedListener(index.getKind(), index.listener);
+        return index;
+    }
+    
+    /**
+     * Registers a listener after notifying it of the insertion of every entity already stored.
+     */
+    private <T extends Entity> void addInitializedListener(Class<T> kind, EntityChangeListener<T> listener) {
+        storeOf(kind).updateListeners(listeners -> {
+            Collection<T> entities = (Collection) storeOf(kind).table.values();
+            entities.forEach(entity -> listener.inserted(decodeEntity(entity)));
+            listeners.add(listener);
+        });
+    }
+    
+    /**
+     * Validates the entities of a batch at once, and orders them by id, so they are applied in a single ordered pass.
+     */
+    private static Entity[] sortedBatch(@NotNull Class<? extends Entity> kind, @NotNull Collection<? extends Entity> batch) {
+        EntityClass<?> entityClass = EntityClass.of(kind);
+        Entity[] entities = batch.toArray(new Entity[batch.size()]);
+        for (Entity entity : entities) {
+            entityClass.checkInstance(entity);
+            idOf(entity);
+        }
+        Arrays.sort(entities, (e1, e2) -> ((Comparable) idOf(e1)).compareTo(idOf(e2)));
+        for (int i = 1; i < entities.length; ++i) {
+            if (idOf(entities[i - 1]).equals(idOf(entities[i]))) {
+                throw new IllegalArgumentException("Duplicate key in batch: " + entities[i].getKey());
+            }
+        }
+        return entities;
+    }
+    
+    private Entity[] encodeBatch(Entity[] entities) {
+        Entity[] encoded = new Entity[entities.length];
+        for (int i = 0; i < entities.length; ++i) {
+            encoded[i] = encodeEntity(entities[i]);
+        }
+        return encoded;
+    }
+    
+    private void notifyEvicted(KindStore store) {
+        Collection<Entity> evicted = store.table.drainEvicted();
+        if (!evicted.isEmpty() && store.listeners.length != 0) {
+            evicted.forEach(entity -> store.notifyAllListeners(listener -> listener.evicted(decodeEntity(entity))));
+        }
+    }
+    
+    private static void getAll(KindStore store, Object[] ids, Entity[] entities) {
+        for (int i = 0; i < entities.length; ++i) {
+            entities[i] = store.table.peek(ids[i]);
+        }
+    }
+    
+    private void rollbackInserted(KindStore store, Entity[] entities, int count) {
+        for (int i = count - 1; i >= 0; --i) {
+            Entity entity = entities[i];
+            store.table.remove(idOf(entity));
+            store.notifyAllListeners(listener -> listener.removed(entity));
+        }
+    }
+    
+    private void rollbackUpdated(KindStore store, Entity[] entities, Entity[] previous, int count) {
+        for (int i = count - 1; i >= 0; --i) {
+            Entity restored = previous[i];
+            store.table.replace(idOf(entities[i]), restored);
+            store.notifyAllListeners(listener -> listener.updated(decodeEntity(restored)));
+        }
+    }
+    
+    private void rollbackRemoved(KindStore store, Entity[] removed, int count) {
+        for (int i = count - 1; i >= 0; --i) {
+            Entity restored = removed[i];
+            store.table.putIfAbsent(idOf(restored), restored);
+            store.notifyAllListeners(listener -> listener.inserted(decodeEntity(restored)));
+        }
+    }
+    
+    @Nullable <T extends Entity> T loadById(@NotNull Class<T> kind, @NotNull Object id) {
+        KindStore store = stores.get(kind);
+        if (store == null) {
+            return null;
+        }
+        long stamp = store.lock.tryOptimisticRead();
+        Entity entity = store.table.peek(id);
+        if (!store.lock.validate(stamp)) {
+            stamp = store.lock.readLock();
+            try {
+                entity = store.table.peek(id);
+            } finally {
+                store.lock.unlockRead(stamp);
+            }
+        }
+        store.table.accessed(id, entity != null);
+        if (entity == null) {
+            return null;
+        }
+        return decodeEntity((T) entity);
+    }
+    
+    private KindStore storeOf(@NotNull Class<? extends Entity> kind) {
+        KindStore store = stores.get(requireNonNull(kind, "kind"));
+        if (store == null) {
+            store = stores.computeIfAbsent(kind, k -> new KindStore(tableFactory.create(k)));
+        }
+        return store;
+    }
+    
+    @RequiredArgsConstructor
+    private static final class KindStore {
+        
+        private static final EntityChangeListener[] NO_LISTENERS = new EntityChangeListener[0];
         
-        private final
-        @Nullable EntityKey entityKey;
+        private final EntityTable table;
         
-        private final
-        @NotNull String asString;
+        /**
+         * Writers of single entities share the read lock as long as there are no listeners, otherwise they take the
+         * write lock, so the changes of the table and the notification of the listeners are atomic. Batches always take
+         * the write lock, so they are never interleaved with other writers, and point reads validate their optimistic
+         * stamp against it, so they never see a batch partially applied.
+         */
+        private final StampedLock lock = new StampedLock();
         
-        private KeyWrapper(String asString) {
-            this.entityKey = null;
-            this.asString = requireNonNull(asString);
+        private volatile EntityChangeListener[] listeners = NO_LISTENERS;
+        
+        long lockForWrite() {
+            long stamp = lock.readLock();
+            if (listeners.length == 0) {
+                return stamp;
+            }
+            lock.unlockRead(stamp);
+            return lock.writeLock();
         }
         
-        public KeyWrapper(EntityKey entityKey) {
-            this.entityKey = requireNonNull(entityKey);
-            this.asString = entityKey.getKind().getSimpleName() + "(" + entityKey.getIdAsString() + ")";
+        void updateListeners(Consumer<List<EntityChangeListener>> updateFun) {
+            long stamp = lock.writeLock();
+            try {
+                List<EntityChangeListener> list = new ArrayList<>(Arrays.asList(listeners));
+                updateFun.accept(list);
+                listeners = list.toArray(NO_LISTENERS);
+            } finally {
+                lock.unlockWrite(stamp);
+            }
         }
         
-        public String toString() {
-            return asString;
+        void notifyListeners(Consumer<EntityChangeListener> event, Consumer<EntityChangeListener> compensation, Runnable rollback) {
+            EntityChangeListener[] current = listeners;
+            for (int i = 0; i < current.length; ++i) {
+                try {
+                    event.accept(current[i]);
+                } catch (RuntimeException | Error e) {
+                    rollback.run();
+                    for (int j = i - 1; j >= 0; --j) {
+                        compensation.accept(current[j]);
+                    }
+                    throw e;
+                }
+            }
         }
         
-        public int compareTo(KeyWrapper other) {
-            return asString.compareTo(other.asString);
+        /**
+         * Notifies every listener in reverse order of an event which cannot be rolled back, like the rollback of a
+         * change they have already been notified of.
+         */
+        void notifyAllListeners(Consumer<EntityChangeListener> compensation) {
+            EntityChangeListener[] current = listeners;
+            for (int i = current.length - 1; i >= 0; --i) {
+                compensation.accept(current[i]);
+            }
+        }
+    }
+    
+    /**
+     * The native {@link Long} or {@link String} id is used as is, custom ids are only used when they are
+     * {@link Comparable}, otherwise their injective String representation is used instead.
+     */
+    static Object idOf(@NotNull EntityKey<?> key) {
+        Object id = key.getId();
+        return id instanceof Comparable ? id : key.getIdAsString();
+    }
+    
+    static Object idOf(@NotNull Entity entity) {
+        Object id = entity.getId();
+        if (id == null) {
+            throw new NullPointerException("id of: " + entity);
         }
+        return id instanceof Comparable ? id : entity.getIdAsString();
     }
     
 }
@@ -0,0 +1,550 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.BinaryEntityCodec;
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.model.EntityKey;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+import java.util.stream.*;
+import java.util.zip.CRC32;
+
+import static com.doctusoft.java.Failsafe.checkArgument;
+import static com.doctusoft.java.Failsafe.checkState;
+import static java.util.Objects.*;
+
+/**
+ * Optional durability for an {@link InMemoryDatastore}: every change of the attached kinds is appended to a journal,
+ * which is compacted into a snapshot by {@link #compact()}, optionally scheduled periodically. On
+ * {@link #attach(InMemoryDatastore, Class[])} the snapshot and the journal are read through memory-mapped files to
+ * restore the state of the datastore.
+ * <p/>
+ * Changes are buffered in memory and written to the journal in batches by a background thread every
+ * <code>flushIntervalMillis</code> (group commit), so writes of the datastore never wait for the disk. Invoke
+ * {@link #sync()} to wait until every change made before the invocation is durable.
+ * <p/>
+ * Records are framed with their length and CRC, so a record torn by a crash ends the replay of its journal file.
+ * Every record holds the {@link BinaryEntityCodec#schemaOf(Class)} of its kind, so the restore fails with an
+ * {@link InvalidClassException} instead of decoding the attributes wrongly, if the attributes of a kind were changed
+ * since the record was written.
+ * Replay is idempotent: inserts and updates are both applied as "save", which makes it safe to compact while the
+ * datastore is being written.
+ * <p/>
+ * Snapshots are taken from the datastore, so kinds stored in bounded tables (see: {@link InMemoryDatastore#bounded(int)})
+ * cannot be journaled, their evicted entities would be lost at the next compaction.
+ */
+public final class InMemoryJournal implements Closeable {
+    
+    public static InMemoryJournal open(@NotNull Path directory, @NotNull BinaryEntityCodec codec) throws IOException {
+        return open(directory, codec, 10L);
+    }
+    
+    public static InMemoryJournal open(@NotNull Path directory, @NotNull BinaryEntityCodec codec, long flushIntervalMillis)
+        throws IOException {
+        Files.createDirectories(requireNonNull(directory, "directory"));
+        return new InMemoryJournal(directory, requireNonNull(codec, "codec"), flushIntervalMillis);
+    }
+    
+    private static final String SNAPSHOT_FILE = "snapshot.dat";
+    
+    private static final Pattern JOURNAL_FILE = Pattern.compile("journal-(\\d+)\\.log");
+    
+    private static final Pattern TEMPORARY_SNAPSHOT_FILE = Pattern.compile("snapshot-.*\\.tmp");
+    
+    private static final int SNAPSHOT_MAGIC = 0x44444453;
+    
+    private static final int JOURNAL_MAGIC = 0x4444444A;
+    
+    /**
+     * Follows the header of the snapshot and of each journal file, incremented on incompatible changes of the format.
+     */
+    private static final int FORMAT_VERSION = 1;
+    
+    private static final long SNAPSHOT_HEADER_SIZE = 16L;
+    
+    private static final long JOURNAL_HEADER_SIZE = 8L;
+    
+    private static final byte SAVE = 1;
+    
+    private static final byte REMOVE = 2;
+    
+    /**
+     * Records are read through mapped windows of this size, so files larger than 2GB can be read too.
+     */
+    private static final long MAPPED_WINDOW_SIZE = 256L << 20;
+    
+    private final Path directory;
+    
+    private final BinaryEntityCodec codec;
+    
+    private final ScheduledExecutorService flusher;
+    
+    /**
+     * Runs the scheduled compactions, created by the first {@link #scheduleCompaction(long, TimeUnit)}.
+     */
+    private ScheduledExecutorService compactor;
+    
+    private final Object pendingLock = new Object();
+    
+    private final Object writeLock = new Object();
+    
+    /**
+     * Serializes the compactions, so a snapshot is never replaced by one of an older generation.
+     */
+    private final Object compactLock = new Object();
+    
+    private final Map<String, Class<? extends Entity>> kinds = new ConcurrentHashMap<>();
+    
+    private final EntityChangeListener<Entity> listener = new EntityChangeListener<Entity>() {
+        
+        public void inserted(@NotNull Entity entity) { append(saveRecord(entity)); }
+        
+        public void updated(@NotNull Entity entity) { append(saveRecord(entity)); }
+        
+        public void removed(@NotNull Entity entity) { append(removeRecord(entity)); }
+        
+        public void evicted(@NotNull Entity entity) {
+            // only bounded kinds evict entities, which are rejected by attach
+        }
+    };
+    
+    private InMemoryDatastore datastore;
+    
+    private List<byte[]> pending = new ArrayList<>();
+    
+    private long appendedSequence;
+    
+    private volatile long durableSequence;
+    
+    private volatile IOException failure;
+    
+    private long generation;
+    
+    private FileChannel journal;
+    
+    private boolean closed;
+    
+    private InMemoryJournal(Path directory, BinaryEntityCodec codec, long flushIntervalMillis) {
+        this.directory = directory;
+        this.codec = codec;
+        this.flusher = newDaemonExecutor("InMemoryJournal-flusher");
+        flusher.scheduleWithFixedDelay(this::flushQuietly, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+    
+    /**
+     * Restores the snapshot and the journal into <code>datastore</code>, then starts journaling the changes of the
+     * given kinds and of every kind restored.
+     *
+     * @throws IllegalArgumentException if any of the kinds is stored in a bounded table of <code>datastore</code>
+     */
+    @SafeVarargs
+    public final void attach(@NotNull InMemoryDatastore datastore, @NotNull Class<? extends Entity>... kinds)
+        throws IOException {
+        requireNonNull(datastore, "datastore");
+        synchronized (writeLock) {
+            checkState(this.datastore == null, "Already attached");
+            Arrays.stream(kinds).forEach(kind -> this.kinds.put(kind.getName(), kind));
+            checkNotEvicting(datastore);
+            deleteTemporarySnapshots();
+            long baseGeneration = restoreSnapshot(datastore);
+            List<Long> generations = journalGenerations();
+            for (long journalGeneration : generations) {
+                if (journalGeneration >= baseGeneration) {
+                    replay(directory.resolve(journalFileName(journalGeneration)), datastore);
+                }
+            }
+            // a new journal is started on each restart, so a torn record is never followed by new records
+            openJournal(generations.isEmpty() ? baseGeneration
+                : Math.max(baseGeneration, generations.get(generations.size() - 1) + 1));
+            checkNotEvicting(datastore);
+            this.kinds.values().forEach(kind -> datastore.addChangeListener(kind, listener));
+            this.datastore = datastore;
+        }
+    }
+    
+    /**
+     * Writes a snapshot of the attached kinds and deletes the journal files covered by it. The datastore can be
+     * written meanwhile, concurrent compactions are run one after the other.
+     */
+    public void compact() throws IOException {
+        synchronized (compactLock) {
+            long baseGeneration;
+            synchronized (writeLock) {
+                checkState(datastore != null, "Not attached");
+                checkState(!closed, "Closed");
+                flush();
+                journal.close();
+                openJournal(generation + 1);
+                baseGeneration = generation;
+            }
+            Path snapshot = directory.resolve(SNAPSHOT_FILE);
+            Path temporary = Files.createTempFile(directory, "snapshot-", ".tmp");
+            try {
+                try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE);
+                    OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16)) {
+                    DataOutputStream header = new DataOutputStream(out);
+                    header.writeInt(SNAPSHOT_MAGIC);
+                    header.writeInt(FORMAT_VERSION);
+                    header.writeLong(baseGeneration);
+                    for (Class<? extends Entity> kind : kinds.values()) {
+                        for (Entity entity : datastore.allInstanceOf(kind)) {
+                            out.write(saveRecord(entity));
+                        }
+                    }
+                    out.flush();
+                    channel.force(true);
+                }
+                long currentGeneration = snapshotGeneration(snapshot);
+                checkState(currentGeneration < baseGeneration,
+                    () -> "Snapshot of generation " + currentGeneration + " is newer than " + baseGeneration);
+                Files.move(temporary, snapshot, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+            for (long journalGeneration : journalGenerations()) {
+                if (journalGeneration < baseGeneration) {
+                    Files.deleteIfExists(directory.resolve(journalFileName(journalGeneration)));
+                }
+            }
+        }
+    }
+    
+    /**
+     * Schedules {@link #compact()} periodically on a background thread of its own, so writing the snapshot does not
+     * delay the flushes of the journal.
+     */
+    public synchronized void scheduleCompaction(long period, @NotNull TimeUnit unit) {
+        if (compactor == null) {
+            compactor = newDaemonExecutor("InMemoryJournal-compactor");
+        }
+        compactor.scheduleWithFixedDelay(() -> {
+            try {
+                compact();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }, period, period, unit);
+    }
+    
+    /**
+     * Waits until every change appended before the invocation is written and forced to the disk. Concurrent callers
+     * share the same write and force of the journal.
+     */
+    public void sync() throws IOException {
+        long target;
+        synchronized (pendingLock) {
+            target = appendedSequence;
+        }
+        synchronized (writeLock) {
+            if (durableSequence < target) {
+                flush();
+            }
+        }
+        IOException e = failure;
+        if (e != null) {
+            throw new IOException("Journal is failed", e);
+        }
+    }
+    
+    /**
+     * Waits for the running compaction, then flushes and closes the journal.
+     */
+    public void close() throws IOException {
+        flusher.shutdown();
+        ScheduledExecutorService compactor;
+        synchronized (this) {
+            compactor = this.compactor;
+        }
+        if (compactor != null) {
+            compactor.shutdown();
+            try {
+                compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the compaction");
+            }
+        }
+        synchronized (writeLock) {
+            closed = true;
+            if (datastore != null) {
+                kinds.values().forEach(kind -> datastore.removeChangeListener(kind, listener));
+            }
+            if (journal != null) {
+                flush();
+                journal.close();
+            }
+        }
+    }
+    
+    private void checkNotEvicting(InMemoryDatastore datastore) {
+        kinds.values().forEach(kind -> checkArgument(!datastore.isEvicting(kind), () -> "Bounded kind: " + kind.getName()));
+    }
+    
+    private void append(byte[] record) {
+        synchronized (pendingLock) {
+            pending.add(record);
+            ++appendedSequence;
+        }
+    }
+    
+    private void flushQuietly() {
+        synchronized (writeLock) {
+            try {
+                if (journal != null) {
+                    flush();
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+    }
+    
+    /**
+     * Must be invoked holding the {@link #writeLock}.
+     */
+    private void flush() throws IOException {
+        List<byte[]> records;
+        long sequence;
+        synchronized (pendingLock) {
+            records = pending;
+            sequence = appendedSequence;
+            pending = new ArrayList<>();
+        }
+        if (!records.isEmpty()) {
+            ByteBuffer[] buffers = records.stream().map(ByteBuffer::wrap).toArray(ByteBuffer[]::new);
+            long remaining = records.stream().mapToLong(record -> record.length).sum();
+            while (remaining > 0) {
+                remaining -= journal.write(buffers);
+            }
+            journal.force(false);
+        }
+        durableSequence = sequence;
+    }
+    
+    private void openJournal(long newGeneration) throws IOException {
+        journal = FileChannel.open(directory.resolve(journalFileName(newGeneration)), StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        generation = newGeneration;
+        if (journal.size() == 0L) {
+            ByteBuffer header = ByteBuffer.allocate((int) JOURNAL_HEADER_SIZE).putInt(JOURNAL_MAGIC).putInt(FORMAT_VERSION);
+            header.flip();
+            while (header.hasRemaining()) {
+                journal.write(header);
+            }
+        }
+    }
+    
+    /**
+     * @return The base generation of <code>snapshot</code>, -1 if it does not exist.
+     */
+    private static long snapshotGeneration(Path snapshot) throws IOException {
+        if (!Files.exists(snapshot)) {
+            return -1L;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(snapshot))) {
+            checkHeader(snapshot, in.readInt(), SNAPSHOT_MAGIC, in.readInt());
+            return in.readLong();
+        }
+    }
+    
+    /**
+     * Snapshots left behind by compactions interrupted by a crash.
+     */
+    private void deleteTemporarySnapshots() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (TEMPORARY_SNAPSHOT_FILE.matcher(file.getFileName().toString()).matches()) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+    
+    private long restoreSnapshot(InMemoryDatastore datastore) throws IOException {
+        Path snapshot = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(snapshot)) {
+            return 0L;
+        }
+        try (FileChannel channel = FileChannel.open(snapshot, StandardOpenOption.READ)) {
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0L, SNAPSHOT_HEADER_SIZE);
+            checkHeader(snapshot, header.getInt(), SNAPSHOT_MAGIC, header.getInt());
+            long baseGeneration = header.getLong();
+            if (!readRecords(channel, SNAPSHOT_HEADER_SIZE, datastore)) {
+                throw new StreamCorruptedException("Corrupted snapshot: " + snapshot);
+            }
+            return baseGeneration;
+        }
+    }
+    
+    /**
+     * A torn record (or header) at the end of a journal is expected after a crash, it ends the replay of the journal
+     * silently.
+     */
+    private void replay(Path journalFile, InMemoryDatastore datastore) throws IOException {
+        try (FileChannel channel = FileChannel.open(journalFile, StandardOpenOption.READ)) {
+            if (channel.size() < JOURNAL_HEADER_SIZE) {
+                return;
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0L, JOURNAL_HEADER_SIZE);
+            checkHeader(journalFile, header.getInt(), JOURNAL_MAGIC, header.getInt());
+            readRecords(channel, JOURNAL_HEADER_SIZE, datastore);
+        }
+    }
+    
+    private static void checkHeader(Path file, int magic, int expectedMagic, int version) throws IOException {
+        if (magic != expectedMagic) {
+            throw new StreamCorruptedException("Not a " + (expectedMagic == SNAPSHOT_MAGIC ? "snapshot" : "journal") + ": " + file);
+        }
+        if (version != FORMAT_VERSION) {
+            throw new StreamCorruptedException("Unsupported format version " + version + " of: " + file);
+        }
+    }
+    
+    /**
+     * @return <code>false</code> if a torn or corrupted record was found, which ends the reading.
+     */
+    private boolean readRecords(FileChannel channel, long position, InMemoryDatastore datastore) throws IOException {
+        long size = channel.size();
+        MappedByteBuffer window = null;
+        long windowStart = position;
+        CRC32 crc = new CRC32();
+        while (position < size) {
+            if (size - position < 8L) {
+                return false;
+            }
+            if (window == null || position + 8L > windowStart + window.limit()) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAPPED_WINDOW_SIZE, size - position));
+            }
+            int offset = (int) (position - windowStart);
+            int length = window.getInt(offset);
+            int checksum = window.getInt(offset + 4);
+            if (length <= 0 || position + 8L + length > size) {
+                return false;
+            }
+            if (offset + 8L + length > window.limit()) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(Math.max(MAPPED_WINDOW_SIZE,
+                    8L + length), size - position));
+                offset = 0;
+            }
+            byte[] body = new byte[length];
+            ByteBuffer slice = window.duplicate();
+            slice.position(offset + 8);
+            slice.get(body);
+            crc.reset();
+            crc.update(body, 0, length);
+            if ((int) crc.getValue() != checksum) {
+                return false;
+            }
+            apply(body, datastore);
+            position += 8L + length;
+        }
+        return true;
+    }
+    
+    private void apply(byte[] body, InMemoryDatastore datastore) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte operation = in.readByte();
+        Class<? extends Entity> kind = resolveKind(in.readUTF());
+        int schema = in.readInt();
+        if (schema != codec.schemaOf(kind)) {
+            throw new InvalidClassException(kind.getName(), "Attributes changed since the record was written");
+        }
+        if (operation == SAVE) {
+            byte[] data = new byte[in.available()];
+            in.readFully(data);
+            datastore.save(codec.decode(kind, data));
+        } else if (operation == REMOVE) {
+            byte[] data = new byte[in.available()];
+            in.readFully(data);
+            EntityKey<? extends Entity> key = codec.decode(kind, data).getKey();
+            datastore.find(key).ifPresent(datastore::remove);
+        } else {
+            throw new StreamCorruptedException("Unknown operation: " + operation);
+        }
+    }
+    
+    private Class<? extends Entity> resolveKind(String kindName) throws IOException {
+        Class<? extends Entity> kind = kinds.get(kindName);
+        if (kind == null) {
+            try {
+                kind = Class.forName(kindName, false, getClass().getClassLoader()).asSubclass(Entity.class);
+            } catch (ClassNotFoundException e) {
+                throw new InvalidClassException(kindName, "Unknown kind");
+            }
+            kinds.put(kindName, kind);
+        }
+        return kind;
+    }
+    
+    private byte[] saveRecord(Entity entity) {
+        byte[] data = codec.encode(entity);
+        return record(SAVE, entity.getKind(), out -> out.write(data));
+    }
+    
+    /**
+     * The removed entity is encoded like the saved ones, so its id is restored without parsing it from a string.
+     */
+    private byte[] removeRecord(Entity entity) {
+        byte[] data = codec.encode(entity);
+        return record(REMOVE, entity.getKind(), out -> out.write(data));
+    }
+    
+    private byte[] record(byte operation, Class<? extends Entity> kind, RecordWriter writer) {
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeByte(operation);
+            out.writeUTF(kind.getName());
+            out.writeInt(codec.schemaOf(kind));
+            writer.write(out);
+            byte[] record = buffer.toByteArray();
+            int length = record.length - 8;
+            CRC32 crc = new CRC32();
+            crc.update(record, 8, length);
+            ByteBuffer.wrap(record).putInt(length).putInt((int) crc.getValue());
+            return record;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+    
+    private List<Long> journalGenerations() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files
+                .map(file -> JOURNAL_FILE.matcher(file.getFileName().toString()))
+                .filter(Matcher::matches)
+                .map(matcher -> Long.valueOf(matcher.group(1)))
+                .sorted()
+                .collect(Collectors.toList());
+        }
+    }
+    
+    private static ScheduledExecutorService newDaemonExecutor(String threadName) {
+        return Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, threadName);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+    
+    private static String journalFileName(long generation) { return "journal-" + generation + ".log"; }
+    
+    @FunctionalInterface
+    private interface RecordWriter {
+        
+        void write(DataOutputStream out) throws IOException;
+    }
+    
+}
@@ -1,5 +1,6 @@
 package com.doctusoft.ddd.persistence;
 
+import com.doctusoft.ddd.model.BinaryEntityCodec;
 import com.doctusoft.ddd.model.DynaBeanEntities;
 import com.doctusoft.ddd.model.Entity;
 import org.jetbrains.annotations.NotNull;
@@ -8,8 +9,42 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
 
+import static java.util.Objects.*;
+
 public class InMemorySharedDatastore extends InMemoryDatastore {
     
+    /**
+     * How entity instances are isolated from the ones stored in the datastore.
+     */
+    public enum Sharing {
+        
+        /**
+         * Entities are copied both when stored and when loaded.
+         */
+        COPY,
+        
+        /**
+         * Entities are stored as frozen copies, and loaded as {@link DynaBeanEntities#copyOnWrite(Entity)} views of
+         * them, so an entity is only copied when it is modified after being loaded. Only kinds with attributes of
+         * immutable types can be stored (see: {@link DynaBeanEntities#checkShareable(Class)}).
+         */
+        COPY_ON_WRITE,
+        
+        /**
+         * Entities are stored as {@link DynaBeanEntities#readOnlyView(Entity)} of frozen copies and loaded as is,
+         * without any allocation. Modifying a loaded entity throws {@link UnsupportedOperationException}, so it has to
+         * be copied before being updated. Only kinds with attributes of immutable types can be stored, like in
+         * {@link #COPY_ON_WRITE}.
+         */
+        READ_ONLY,
+        
+        /**
+         * Entities are stored in a compact binary form by a {@link BinaryEntityCodec}, and decoded into a new
+         * instance on every load. This trades some CPU time on reads for a much smaller heap footprint.
+         */
+        COMPACT_BINARY
+    }
+    
     public static InMemorySharedDatastore singleThreaded() {
         return new InMemorySharedDatastore(TreeMap::new);
     }
@@ -18,16 +53,55 @@ public class InMemorySharedDatastore extends InMemoryDatastore {
         return new InMemorySharedDatastore(ConcurrentSkipListMap::new);
     }
     
+    public static InMemorySharedDatastore singleThreaded(@NotNull Sharing sharing) {
+        return new InMemorySharedDatastore(TreeMap::new, sharing);
+    }
+    
+    public static InMemorySharedDatastore multiThreaded(@NotNull Sharing sharing) {
+        return new InMemorySharedDatastore(ConcurrentSkipListMap::new, sharing);
+    }
+    
+    private static final BinaryEntityCodec CODEC = new BinaryEntityCodec(new DynaBeanEntities());
+    
+    private final Sharing sharing;
+    
     public InMemorySharedDatastore(Supplier<? extends NavigableMap> entityMapFactory) {
+        this(entityMapFactory, Sharing.COPY);
+    }
+    
+    public InMemorySharedDatastore(Supplier<? extends NavigableMap> entityMapFactory, @NotNull Sharing sharing) {
         super(entityMapFactory);
+        this.sharing = requireNonNull(sharing, "sharing");
     }
     
     protected <T extends Entity> @NotNull T encodeEntity(@NotNull T entity) {
-        return DynaBeanEntities.copy(entity);
+        if (sharing == Sharing.COPY) {
+            return DynaBeanEntities.copy(entity);
+        }
+        if (sharing == Sharing.COMPACT_BINARY) {
+            byte[] data = CODEC.encode(entity);
+            return (T) new CompactEntity(entity.getKind(), entity.getId(), entity.getIdAsString(), entity.getKey(), data);
+        }
+        DynaBeanEntities.checkShareable(entity.getKind());
+        T frozen = DynaBeanEntities.unmodifiedFrozenOf(entity);
+        if (frozen == null) {
+            frozen = DynaBeanEntities.copy(entity);
+        }
+        return sharing == Sharing.READ_ONLY ? DynaBeanEntities.readOnlyView(frozen) : frozen;
     }
     
     protected <T extends Entity> @NotNull T decodeEntity(@NotNull T entity) {
-        return DynaBeanEntities.copy(entity);
+        switch (sharing) {
+            case COPY_ON_WRITE:
+                return DynaBeanEntities.copyOnWrite(entity);
+            case READ_ONLY:
+                return entity;
+            case COMPACT_BINARY:
+                CompactEntity compact = (CompactEntity) entity;
+                return (T) CODEC.decode(compact.getKind(), compact.getData());
+            default:
+                return DynaBeanEntities.copy(entity);
+        }
     }
     
 }
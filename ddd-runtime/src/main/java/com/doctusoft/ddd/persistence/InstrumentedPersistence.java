@@ -0,0 +1,148 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.model.EntityKey;
+import com.doctusoft.ddd.persistence.PersistenceMetrics.Operation;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+import static java.util.Objects.*;
+
+/**
+ * Measures the latency of every operation of another {@link GenericPersistence} (e.g. an {@link InMemoryDatastore} or
+ * a <code>JpaPersistence</code>), and reports it to {@link PersistenceMetrics} together with the kind, the batch size
+ * and the failure of the operation.
+ * <p/>
+ * Only the invocations of the decorator are measured, not the ones the delegate makes internally (e.g. the loads of
+ * its default <code>loadByIdAsc</code>). {@link #stream(Class, int)} is measured until the stream is created, the
+ * batches it loads lazily are not.
+ */
+public final class InstrumentedPersistence extends ForwardingGenericPersistence {
+    
+    public static InstrumentedPersistence create(@NotNull GenericPersistence delegate, @NotNull PersistenceMetrics metrics) {
+        return new InstrumentedPersistence(delegate, metrics, System::nanoTime);
+    }
+    
+    /**
+     * @param ticker The source of the time in nanoseconds.
+     */
+    static InstrumentedPersistence create(@NotNull GenericPersistence delegate, @NotNull PersistenceMetrics metrics,
+        @NotNull LongSupplier ticker) {
+        return new InstrumentedPersistence(delegate, metrics, ticker);
+    }
+    
+    private final PersistenceMetrics metrics;
+    
+    private final LongSupplier ticker;
+    
+    private InstrumentedPersistence(GenericPersistence delegate, PersistenceMetrics metrics, LongSupplier ticker) {
+        super(delegate);
+        this.metrics = requireNonNull(metrics, "metrics");
+        this.ticker = requireNonNull(ticker, "ticker");
+    }
+    
+    @Nullable public <T extends Entity> T load(@NotNull EntityKey<T> key) {
+        return measure(Operation.LOAD, key.getKind(), 1, () -> super.load(key));
+    }
+    
+    @NotNull public <T extends Entity> Optional<T> find(@NotNull EntityKey<T> key) {
+        return measure(Operation.FIND, key.getKind(), 1, () -> super.find(key));
+    }
+    
+    @NotNull public <T extends Entity> T require(@NotNull EntityKey<T> key) {
+        return measure(Operation.REQUIRE, key.getKind(), 1, () -> super.require(key));
+    }
+    
+    public <T extends Entity> void insert(@NotNull T entity) {
+        measureRun(Operation.INSERT, entity.getKind(), 1, () -> super.insert(entity));
+    }
+    
+    public <T extends Entity> void update(@NotNull T entity) {
+        measureRun(Operation.UPDATE, entity.getKind(), 1, () -> super.update(entity));
+    }
+    
+    public <T extends Entity> void remove(@NotNull T entity) {
+        measureRun(Operation.REMOVE, entity.getKind(), 1, () -> super.remove(entity));
+    }
+    
+    public <T extends Entity> void save(@NotNull T entity) {
+        measureRun(Operation.SAVE, entity.getKind(), 1, () -> super.save(entity));
+    }
+    
+    @Nullable public <T extends Entity> T selectForUpdate(@NotNull EntityKey<T> key) {
+        return measure(Operation.SELECT_FOR_UPDATE, key.getKind(), 1, () -> super.selectForUpdate(key));
+    }
+    
+    @NotNull public <T extends Entity> T requireForUpdate(@NotNull EntityKey<T> key) {
+        return measure(Operation.REQUIRE_FOR_UPDATE, key.getKind(), 1, () -> super.requireForUpdate(key));
+    }
+    
+    public void evictCache() {
+        measureRun(Operation.EVICT_CACHE, Entity.class, 0, super::evictCache);
+    }
+    
+    public <T extends Entity> List<T> loadByIdAsc(@NotNull Class<T> kind, @NotNull Collection idList) {
+        return measure(Operation.LOAD_BY_ID_ASC, kind, idList.size(), () -> super.loadByIdAsc(kind, idList));
+    }
+    
+    @NotNull public Map<EntityKey<?>, Entity> loadMany(@NotNull Collection<? extends EntityKey<?>> keys) {
+        return measure(Operation.LOAD_MANY, Entity.class, keys.size(), () -> super.loadMany(keys));
+    }
+    
+    public <T extends Entity> void insertMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> newEntities) {
+        measureRun(Operation.INSERT_MANY, kind, newEntities.size(), () -> super.insertMany(kind, newEntities));
+    }
+    
+    public <T extends Entity> void updateMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> changedEntities) {
+        measureRun(Operation.UPDATE_MANY, kind, changedEntities.size(), () -> super.updateMany(kind, changedEntities));
+    }
+    
+    public <T extends Entity> void saveMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> entities) {
+        measureRun(Operation.SAVE_MANY, kind, entities.size(), () -> super.saveMany(kind, entities));
+    }
+    
+    @NotNull public Set<Object> existingIds(@NotNull Class<? extends Entity> kind, @NotNull Collection idList) {
+        return measure(Operation.EXISTING_IDS, kind, idList.size(), () -> super.existingIds(kind, idList));
+    }
+    
+    public <T extends Entity> int removeMany(@NotNull Class<T> kind, @NotNull Collection idList) {
+        return measure(Operation.REMOVE_MANY, kind, idList.size(), () -> super.removeMany(kind, idList));
+    }
+    
+    public int removeByKeys(@NotNull Collection<? extends EntityKey<?>> keys) {
+        return measure(Operation.REMOVE_BY_KEYS, Entity.class, keys.size(), () -> super.removeByKeys(keys));
+    }
+    
+    public <T extends Entity> List<T> loadSmallDataset(@NotNull Class<T> kind) throws IllegalArgumentException {
+        return measure(Operation.LOAD_SMALL_DATASET, kind, 0, () -> super.loadSmallDataset(kind));
+    }
+    
+    public <T extends Entity> Stream<T> stream(@NotNull Class<T> kind, int batchSize) {
+        return measure(Operation.STREAM, kind, batchSize, () -> super.stream(kind, batchSize));
+    }
+    
+    private <R> R measure(Operation operation, Class<? extends Entity> kind, int batchSize, Supplier<R> call) {
+        long start = ticker.getAsLong();
+        R result;
+        try {
+            result = call.get();
+        } catch (RuntimeException | Error e) {
+            metrics.record(operation, kind, batchSize, ticker.getAsLong() - start, e);
+            throw e;
+        }
+        metrics.record(operation, kind, batchSize, ticker.getAsLong() - start, null);
+        return result;
+    }
+    
+    private void measureRun(Operation operation, Class<? extends Entity> kind, int batchSize, Runnable call) {
+        measure(operation, kind, batchSize, () -> {
+            call.run();
+            return null;
+        });
+    }
+    
+}
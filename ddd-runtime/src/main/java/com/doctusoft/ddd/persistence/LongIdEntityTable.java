@@ -0,0 +1,249 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import lombok.RequiredArgsConstructor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+/**
+ * Open-addressing hash table with linear probing keyed by primitive <code>long</code> ids. Each entry costs a slot in
+ * a <code>long[]</code> and an <code>Entity[]</code> array only, there are no map nodes and boxed keys to allocate.
+ * <p/>
+ * Writes are guarded by a {@link StampedLock}, point reads are optimistic and only fall back to a read lock when they
+ * overlap with a concurrent write. The {@link #values()} are a snapshot ordered by id, which is cached until the next
+ * modification, so paging through the kind by {@link #valuesAfter(Object)} does not sort it again for every page.
+ */
+final class LongIdEntityTable implements EntityTable {
+    
+    private static final int INITIAL_CAPACITY = 16;
+    
+    private final StampedLock lock = new StampedLock();
+    
+    /**
+     * A slot is free if its value is <code>null</code>, since every possible long value is a valid id.
+     */
+    private long[] keys = new long[INITIAL_CAPACITY];
+    
+    private Entity[] values = new Entity[INITIAL_CAPACITY];
+    
+    private int size;
+    
+    /**
+     * Incremented after each modification, a cached snapshot is only valid if it was taken at the current version.
+     */
+    private long version;
+    
+    private volatile SortedSnapshot sortedSnapshot;
+    
+    @Nullable public Entity get(@NotNull Object id) {
+        long key = (Long) id;
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0L) {
+            Entity entity = find(keys, values, key);
+            if (lock.validate(stamp)) {
+                return entity;
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return find(keys, values, key);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+    
+    @Nullable public Entity putIfAbsent(@NotNull Object id, @NotNull Entity entity) {
+        long key = (Long) id;
+        long stamp = lock.writeLock();
+        try {
+            int slot = slotOf(keys, values, key);
+            Entity existing = values[slot];
+            if (existing != null) {
+                return existing;
+            }
+            keys[slot] = key;
+            values[slot] = entity;
+            ++version;
+            if (++size > threshold(values.length)) {
+                resize(values.length << 1);
+            }
+            return null;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+    
+    @Nullable public Entity replace(@NotNull Object id, @NotNull Entity entity) {
+        long key = (Long) id;
+        long stamp = lock.writeLock();
+        try {
+            int slot = slotOf(keys, values, key);
+            Entity existing = values[slot];
+            if (existing != null) {
+                values[slot] = entity;
+                ++version;
+            }
+            return existing;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+    
+    @Nullable public Entity remove(@NotNull Object id) {
+        long key = (Long) id;
+        long stamp = lock.writeLock();
+        try {
+            int slot = slotOf(keys, values, key);
+            Entity existing = values[slot];
+            if (existing != null) {
+                deleteSlot(slot);
+                --size;
+                ++version;
+            }
+            return existing;
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+    
+    public int size() {
+        long stamp = lock.readLock();
+        try {
+            return size;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+    
+    @NotNull public Collection<Entity> values() { return sortedSnapshot().values; }
+    
+    @NotNull public Iterable<Entity> valuesBetween(@NotNull Object fromId, @NotNull Object toId) {
+        SortedSnapshot snapshot = sortedSnapshot();
+        int from = Arrays.binarySearch(snapshot.ids, (Long) fromId);
+        int to = Arrays.binarySearch(snapshot.ids, (Long) toId);
+        from = from >= 0 ? from : -from - 1;
+        to = to >= 0 ? to + 1 : -to - 1;
+        return from < to ? snapshot.values.subList(from, to) : Collections.emptyList();
+    }
+    
+    @NotNull public Iterable<Entity> valuesAfter(@Nullable Object afterId) {
+        SortedSnapshot snapshot = sortedSnapshot();
+        if (afterId == null) {
+            return snapshot.values;
+        }
+        int from = Arrays.binarySearch(snapshot.ids, (Long) afterId);
+        from = from >= 0 ? from + 1 : -from - 1;
+        return snapshot.values.subList(from, snapshot.ids.length);
+    }
+    
+    private SortedSnapshot sortedSnapshot() {
+        long stamp = lock.readLock();
+        try {
+            SortedSnapshot snapshot = sortedSnapshot;
+            if (snapshot != null && snapshot.version == version) {
+                return snapshot;
+            }
+            long[] sortedKeys = new long[size];
+            int count = 0;
+            for (int i = 0; i < values.length; ++i) {
+                if (values[i] != null) {
+                    sortedKeys[count++] = keys[i];
+                }
+            }
+            Arrays.sort(sortedKeys);
+            Entity[] sortedValues = new Entity[count];
+            for (int i = 0; i < count; ++i) {
+                sortedValues[i] = find(keys, values, sortedKeys[i]);
+            }
+            // concurrent readers may build the same snapshot, whichever is cached last is equally valid
+            snapshot = new SortedSnapshot(version, sortedKeys, Collections.unmodifiableList(Arrays.asList(sortedValues)));
+            sortedSnapshot = snapshot;
+            return snapshot;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+    
+    /**
+     * Backward shift deletion: the entries following the freed slot in the same probe sequence are moved back, so
+     * there is no need for tombstones.
+     */
+    private void deleteSlot(int slot) {
+        int mask = values.length - 1;
+        int free = slot;
+        int next = (free + 1) & mask;
+        while (values[next] != null) {
+            int home = hash(keys[next]) & mask;
+            if (((next - home) & mask) >= ((next - free) & mask)) {
+                keys[free] = keys[next];
+                values[free] = values[next];
+                free = next;
+            }
+            next = (next + 1) & mask;
+        }
+        values[free] = null;
+    }
+    
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        Entity[] oldValues = values;
+        long[] newKeys = new long[capacity];
+        Entity[] newValues = new Entity[capacity];
+        for (int i = 0; i < oldValues.length; ++i) {
+            if (oldValues[i] != null) {
+                int slot = slotOf(newKeys, newValues, oldKeys[i]);
+                newKeys[slot] = oldKeys[i];
+                newValues[slot] = oldValues[i];
+            }
+        }
+        keys = newKeys;
+        values = newValues;
+    }
+    
+    @Nullable private static Entity find(long[] keys, Entity[] values, long key) {
+        // an optimistic read may observe an inconsistent state, even arrays of different lengths during a resize
+        int mask = Math.min(keys.length, values.length) - 1;
+        int slot = hash(key) & mask;
+        for (int probes = 0; probes <= mask; ++probes) {
+            Entity entity = values[slot];
+            if (entity == null || keys[slot] == key) {
+                return entity;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return null;
+    }
+    
+    /**
+     * @return The slot holding <code>key</code> or the free slot where it should be inserted.
+     */
+    private static int slotOf(long[] keys, Entity[] values, long key) {
+        int mask = values.length - 1;
+        int slot = hash(key) & mask;
+        while (values[slot] != null && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+    
+    private static int threshold(int capacity) { return capacity - (capacity >>> 2); }
+    
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+    
+    @RequiredArgsConstructor
+    private static final class SortedSnapshot {
+        
+        private final long version;
+        
+        private final long[] ids;
+        
+        private final List<Entity> values;
+    }
+    
+}
@@ -0,0 +1,60 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.persistence.PersistenceMetrics.Operation;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Value;
+
+import static com.doctusoft.java.Failsafe.checkArgument;
+
+/**
+ * Counters of an operation on an entity kind recorded by a {@link PersistenceMetricsRegistry}.
+ */
+@Value
+public class OperationStats {
+    
+    Class<? extends Entity> kind;
+    
+    Operation operation;
+    
+    long callCount;
+    
+    long errorCount;
+    
+    /**
+     * The sum of the batch sizes of the calls.
+     */
+    long itemCount;
+    
+    long totalNanos;
+    
+    long maxNanos;
+    
+    @Getter(AccessLevel.NONE)
+    long[] histogram;
+    
+    public long meanNanos() { return callCount == 0L ? 0L : totalNanos / callCount; }
+    
+    /**
+     * @return The latency not exceeded by <code>quantile</code> of the calls (e.g. 0.99), estimated by the upper bound
+     * of its histogram bucket.
+     */
+    public long percentileNanos(double quantile) {
+        checkArgument(quantile >= 0.0 && quantile <= 1.0, () -> "quantile=" + quantile);
+        long total = 0L;
+        for (long count : histogram) {
+            total += count;
+        }
+        long rank = Math.max(1L, (long) Math.ceil(quantile * total));
+        long seen = 0L;
+        for (int bucket = 0; bucket < histogram.length; ++bucket) {
+            seen += histogram[bucket];
+            if (seen >= rank) {
+                return Math.min(PersistenceMetricsRegistry.upperBoundOf(bucket), maxNanos);
+            }
+        }
+        return maxNanos;
+    }
+    
+}
@@ -0,0 +1,30 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Receives the measurements of the operations of an {@link InstrumentedPersistence}, so they can be forwarded to any
+ * metrics library, or aggregated in memory by a {@link PersistenceMetricsRegistry}. Implementations are invoked by
+ * every operation on the calling thread, so they must be thread-safe and cheap.
+ */
+@FunctionalInterface
+public interface PersistenceMetrics {
+    
+    /**
+     * @param kind The kind of the entities of the operation, or {@link Entity} for operations of multiple kinds (e.g.
+     * {@link GenericPersistence#loadMany(java.util.Collection)}).
+     * @param batchSize The number of entities, ids or keys passed to the operation, 1 for single entity operations.
+     * @param failure The exception thrown by the operation, <code>null</code> if it completed normally.
+     */
+    void record(@NotNull Operation operation, @NotNull Class<? extends Entity> kind, int batchSize, long elapsedNanos,
+        @Nullable Throwable failure);
+    
+    enum Operation {
+        LOAD, FIND, REQUIRE, INSERT, UPDATE, REMOVE, SAVE, SELECT_FOR_UPDATE, REQUIRE_FOR_UPDATE, EVICT_CACHE,
+        LOAD_BY_ID_ASC, LOAD_MANY, INSERT_MANY, UPDATE_MANY, SAVE_MANY, EXISTING_IDS, REMOVE_MANY, REMOVE_BY_KEYS,
+        LOAD_SMALL_DATASET, STREAM
+    }
+    
+}
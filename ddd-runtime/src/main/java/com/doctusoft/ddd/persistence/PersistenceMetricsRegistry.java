@@ -0,0 +1,130 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import static java.util.Objects.*;
+
+/**
+ * Aggregates the measurements of {@link PersistenceMetrics} in memory per kind and operation, recording the latencies
+ * in a lock-free histogram of logarithmic buckets (with a relative error of at most 25%), so they can be read as
+ * {@link OperationStats} or exported periodically.
+ */
+public final class PersistenceMetricsRegistry implements PersistenceMetrics {
+    
+    private static final int OPERATION_COUNT = Operation.values().length;
+    
+    private final ConcurrentMap<Class<? extends Entity>, AtomicReferenceArray<Recorder>> recordersByKind = new ConcurrentHashMap<>();
+    
+    public void record(@NotNull Operation operation, @NotNull Class<? extends Entity> kind, int batchSize, long elapsedNanos,
+        @Nullable Throwable failure) {
+        AtomicReferenceArray<Recorder> recorders = recordersByKind.get(kind);
+        if (recorders == null) {
+            recorders = recordersByKind.computeIfAbsent(requireNonNull(kind, "kind"), k -> new AtomicReferenceArray<>(OPERATION_COUNT));
+        }
+        Recorder recorder = recorders.get(operation.ordinal());
+        if (recorder == null) {
+            recorders.compareAndSet(operation.ordinal(), null, new Recorder());
+            recorder = recorders.get(operation.ordinal());
+        }
+        recorder.record(batchSize, elapsedNanos, failure != null);
+    }
+    
+    /**
+     * @return The counters of <code>operation</code> on <code>kind</code>, if it has been invoked.
+     */
+    public Optional<OperationStats> stats(@NotNull Class<? extends Entity> kind, @NotNull Operation operation) {
+        AtomicReferenceArray<Recorder> recorders = recordersByKind.get(requireNonNull(kind, "kind"));
+        Recorder recorder = recorders == null ? null : recorders.get(operation.ordinal());
+        return recorder == null ? Optional.empty() : Optional.of(recorder.stats(kind, operation));
+    }
+    
+    /**
+     * @return The counters of every operation invoked so far.
+     */
+    public List<OperationStats> allStats() {
+        List<OperationStats> allStats = new ArrayList<>();
+        recordersByKind.forEach((kind, recorders) -> {
+            for (Operation operation : Operation.values()) {
+                Recorder recorder = recorders.get(operation.ordinal());
+                if (recorder != null) {
+                    allStats.add(recorder.stats(kind, operation));
+                }
+            }
+        });
+        return allStats;
+    }
+    
+    public void clear() { recordersByKind.clear(); }
+    
+    /**
+     * Latencies below 4 nanoseconds have their own buckets, the rest are bucketed by their highest bit and the 2 bits
+     * after it, so each power of two is split into 4 buckets.
+     */
+    static int bucketOf(long nanos) {
+        if (nanos < 4L) {
+            return (int) Math.max(nanos, 0L);
+        }
+        int highestBit = 63 - Long.numberOfLeadingZeros(nanos);
+        return (highestBit - 1) * 4 + (int) ((nanos >>> (highestBit - 2)) & 3L);
+    }
+    
+    /**
+     * @return The greatest latency counted in <code>bucket</code>.
+     */
+    static long upperBoundOf(int bucket) {
+        if (bucket < 4) {
+            return bucket;
+        }
+        int highestBit = bucket / 4 + 1;
+        long nextLowerBound = (long) (4 + bucket % 4 + 1) << (highestBit - 2);
+        return nextLowerBound - 1L;
+    }
+    
+    static final int BUCKET_COUNT = bucketOf(Long.MAX_VALUE) + 1;
+    
+    private static final class Recorder {
+        
+        private final LongAdder calls = new LongAdder();
+        
+        private final LongAdder errors = new LongAdder();
+        
+        private final LongAdder items = new LongAdder();
+        
+        private final LongAdder totalNanos = new LongAdder();
+        
+        private final AtomicLong maxNanos = new AtomicLong();
+        
+        private final AtomicLongArray histogram = new AtomicLongArray(BUCKET_COUNT);
+        
+        void record(int batchSize, long elapsedNanos, boolean failed) {
+            calls.increment();
+            if (failed) {
+                errors.increment();
+            }
+            items.add(batchSize);
+            totalNanos.add(elapsedNanos);
+            for (long max = maxNanos.get(); elapsedNanos > max; max = maxNanos.get()) {
+                if (maxNanos.compareAndSet(max, elapsedNanos)) {
+                    break;
+                }
+            }
+            histogram.incrementAndGet(bucketOf(elapsedNanos));
+        }
+        
+        OperationStats stats(Class<? extends Entity> kind, Operation operation) {
+            long[] counts = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; ++i) {
+                counts[i] = histogram.get(i);
+            }
+            return new OperationStats(kind, operation, calls.sum(), errors.sum(), items.sum(), totalNanos.sum(),
+                maxNanos.get(), counts);
+        }
+    }
+    
+}
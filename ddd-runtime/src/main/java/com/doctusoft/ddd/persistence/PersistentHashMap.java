@@ -0,0 +1,258 @@
+package com.doctusoft.ddd.persistence;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.function.*;
+
+/**
+ * Immutable hash array mapped trie: every modification returns a new map sharing all the unmodified nodes with the
+ * original one, so it costs O(log32 n) new nodes only, and any version can be kept as a snapshot for free.
+ */
+final class PersistentHashMap<K, V> {
+    
+    private static final PersistentHashMap EMPTY = new PersistentHashMap<>(0, BitmapNode.EMPTY);
+    
+    static <K, V> PersistentHashMap<K, V> empty() { return EMPTY; }
+    
+    private final int size;
+    
+    private final Node root;
+    
+    private PersistentHashMap(int size, Node root) {
+        this.size = size;
+        this.root = root;
+    }
+    
+    int size() { return size; }
+    
+    @Nullable V get(@NotNull K key) { return (V) root.find(0, hash(key), key); }
+    
+    @NotNull PersistentHashMap<K, V> put(@NotNull K key, @NotNull V value) {
+        boolean[] added = { false };
+        Node newRoot = root.put(0, hash(key), key, value, added);
+        return newRoot == root ? this : new PersistentHashMap<>(added[0] ? size + 1 : size, newRoot);
+    }
+    
+    @NotNull PersistentHashMap<K, V> remove(@NotNull K key) {
+        Node newRoot = root.remove(0, hash(key), key);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentHashMap<>(size - 1, newRoot == null ? BitmapNode.EMPTY : newRoot);
+    }
+    
+    void forEach(@NotNull BiConsumer<? super K, ? super V> action) { root.forEach((BiConsumer) action); }
+    
+    @NotNull List<V> values() {
+        List<V> values = new ArrayList<>(size);
+        forEach((key, value) -> values.add(value));
+        return values;
+    }
+    
+    private static int hash(Object key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+    
+    private interface Node {
+        
+        @Nullable Object find(int shift, int hash, Object key);
+        
+        @NotNull Node put(int shift, int hash, Object key, Object value, boolean[] added);
+        
+        /**
+         * @return <code>null</code> if the node became empty.
+         */
+        @Nullable Node remove(int shift, int hash, Object key);
+        
+        void forEach(BiConsumer<Object, Object> action);
+    }
+    
+    /**
+     * Holds an entry or a child node for each set bit of the 32-bit bitmap: entries are stored as key-value pairs,
+     * child nodes as <code>null</code>-node pairs in the array.
+     */
+    private static final class BitmapNode implements Node {
+        
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+        
+        private final int bitmap;
+        
+        private final Object[] array;
+        
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+        
+        @Nullable public Object find(int shift, int hash, Object key) {
+            int bit = bit(shift, hash);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            int index = index(bit);
+            Object k = array[2 * index];
+            Object v = array[2 * index + 1];
+            if (k == null) {
+                return ((Node) v).find(shift + 5, hash, key);
+            }
+            return key.equals(k) ? v : null;
+        }
+        
+        @NotNull public Node put(int shift, int hash, Object key, Object value, boolean[] added) {
+            int bit = bit(shift, hash);
+            int index = index(bit);
+            if ((bitmap & bit) == 0) {
+                Object[] newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, 2 * index);
+                newArray[2 * index] = key;
+                newArray[2 * index + 1] = value;
+                System.arraycopy(array, 2 * index, newArray, 2 * index + 2, array.length - 2 * index);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, newArray);
+            }
+            Object k = array[2 * index];
+            Object v = array[2 * index + 1];
+            if (k == null) {
+                Node child = ((Node) v).put(shift + 5, hash, key, value, added);
+                return child == v ? this : with(index, null, child);
+            }
+            if (key.equals(k)) {
+                return v == value ? this : with(index, k, value);
+            }
+            added[0] = true;
+            return with(index, null, createNode(shift + 5, k, v, hash, key, value));
+        }
+        
+        @Nullable public Node remove(int shift, int hash, Object key) {
+            int bit = bit(shift, hash);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            int index = index(bit);
+            Object k = array[2 * index];
+            Object v = array[2 * index + 1];
+            if (k == null) {
+                Node child = ((Node) v).remove(shift + 5, hash, key);
+                if (child == v) {
+                    return this;
+                }
+                if (child != null) {
+                    return with(index, null, child);
+                }
+            } else if (!key.equals(k)) {
+                return this;
+            }
+            if (bitmap == bit) {
+                return null;
+            }
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, 2 * index);
+            System.arraycopy(array, 2 * index + 2, newArray, 2 * index, newArray.length - 2 * index);
+            return new BitmapNode(bitmap ^ bit, newArray);
+        }
+        
+        public void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) {
+                    ((Node) array[i + 1]).forEach(action);
+                } else {
+                    action.accept(array[i], array[i + 1]);
+                }
+            }
+        }
+        
+        private BitmapNode with(int index, Object key, Object value) {
+            Object[] newArray = array.clone();
+            newArray[2 * index] = key;
+            newArray[2 * index + 1] = value;
+            return new BitmapNode(bitmap, newArray);
+        }
+        
+        private int index(int bit) { return Integer.bitCount(bitmap & (bit - 1)); }
+        
+        private static int bit(int shift, int hash) { return 1 << ((hash >>> shift) & 31); }
+        
+        private static Node createNode(int shift, Object key1, Object value1, int hash2, Object key2, Object value2) {
+            int hash1 = hash(key1);
+            if (hash1 == hash2) {
+                return new CollisionNode(hash1, new Object[] { key1, value1, key2, value2 });
+            }
+            boolean[] added = { false };
+            return EMPTY.put(shift, hash1, key1, value1, added).put(shift, hash2, key2, value2, added);
+        }
+    }
+    
+    /**
+     * Entries of keys having the same hash, which is rare, so the entries are searched linearly.
+     */
+    private static final class CollisionNode implements Node {
+        
+        private final int hash;
+        
+        private final Object[] array;
+        
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+        
+        @Nullable public Object find(int shift, int hash, Object key) {
+            int index = indexOf(key);
+            return index < 0 ? null : array[index + 1];
+        }
+        
+        @NotNull public Node put(int shift, int hash, Object key, Object value, boolean[] added) {
+            if (hash != this.hash) {
+                int bit = BitmapNode.bit(shift, this.hash);
+                return new BitmapNode(bit, new Object[] { null, this }).put(shift, hash, key, value, added);
+            }
+            int index = indexOf(key);
+            if (index >= 0) {
+                if (array[index + 1] == value) {
+                    return this;
+                }
+                Object[] newArray = array.clone();
+                newArray[index + 1] = value;
+                return new CollisionNode(hash, newArray);
+            }
+            Object[] newArray = Arrays.copyOf(array, array.length + 2);
+            newArray[array.length] = key;
+            newArray[array.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(hash, newArray);
+        }
+        
+        @Nullable public Node remove(int shift, int hash, Object key) {
+            int index = indexOf(key);
+            if (index < 0) {
+                return this;
+            }
+            if (array.length == 2) {
+                return null;
+            }
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, index);
+            System.arraycopy(array, index + 2, newArray, index, newArray.length - index);
+            return new CollisionNode(hash, newArray);
+        }
+        
+        public void forEach(BiConsumer<Object, Object> action) {
+            for (int i = 0; i < array.length; i += 2) {
+                action.accept(array[i], array[i + 1]);
+            }
+        }
+        
+        private int indexOf(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+    }
+    
+}
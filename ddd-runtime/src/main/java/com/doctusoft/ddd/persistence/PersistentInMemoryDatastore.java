@@ -0,0 +1,168 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.model.EntityKey;
+import lombok.RequiredArgsConstructor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+import java.util.function.*;
+
+/**
+ * Multi-threaded datastore storing all the kinds in persistent hash array mapped tries (see: {@link PersistentHashMap})
+ * under a single root, which is replaced atomically by every write. A {@link #snapshot()} of the whole datastore is
+ * therefore O(1) and consistent across the kinds, while it shares its memory structurally with the datastore.
+ * <p/>
+ * Writes of different kinds contend on the root, so this is recommended when snapshots are needed while writing, e.g.
+ * for consistency checks and migration verification.
+ */
+public class PersistentInMemoryDatastore extends InMemoryDatastore {
+    
+    public static PersistentInMemoryDatastore create() {
+        return new PersistentInMemoryDatastore(new AtomicReference<>(PersistentHashMap.empty()));
+    }
+    
+    private final AtomicReference<PersistentHashMap<Class<? extends Entity>, PersistentHashMap<Object, Entity>>> root;
+    
+    private PersistentInMemoryDatastore(AtomicReference<PersistentHashMap<Class<? extends Entity>, PersistentHashMap<Object, Entity>>> root) {
+        super(kind -> new PersistentEntityTable(root, kind));
+        this.root = root;
+    }
+    
+    /**
+     * @return A read-only view of the current state of the datastore, which is not affected by later writes. The
+     * kinds are read locked while the root is read, so batches are either included entirely or not at all.
+     */
+    @NotNull public Snapshot snapshot() { return new Snapshot(readLockingAllKinds(root::get)); }
+    
+    /**
+     * Read-only {@link GenericPersistence} of a version of a {@link PersistentInMemoryDatastore}, every write
+     * operation throws {@link UnsupportedOperationException}.
+     */
+    @RequiredArgsConstructor
+    public static final class Snapshot implements GenericPersistence {
+        
+        private final PersistentHashMap<Class<? extends Entity>, PersistentHashMap<Object, Entity>> kinds;
+        
+        @Nullable public <T extends Entity> T load(@NotNull EntityKey<T> key) {
+            PersistentHashMap<Object, Entity> entities = kinds.get(key.getKind());
+            return entities == null ? null : (T) entities.get(idOf(key));
+        }
+        
+        public <T extends Entity> void insert(@NotNull T entity) { throw readOnly(); }
+        
+        public <T extends Entity> void update(@NotNull T entity) { throw readOnly(); }
+        
+        public <T extends Entity> void remove(@NotNull T entity) { throw readOnly(); }
+        
+        public <T extends Entity> void save(@NotNull T entity) { throw readOnly(); }
+        
+        public <T extends Entity> int removeMany(@NotNull Class<T> kind, @NotNull Collection idList) { throw readOnly(); }
+        
+        public <T extends Entity> void insertMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> newEntities) {
+            throw readOnly();
+        }
+        
+        public <T extends Entity> void updateMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> changedEntities) {
+            throw readOnly();
+        }
+        
+        public <T extends Entity> List<T> loadSmallDataset(@NotNull Class<T> kind) throws IllegalArgumentException {
+            return GenericPersistence.checkSmallDataset(kind, allInstanceOf(kind));
+        }
+        
+        /**
+         * @return The entities of <code>kind</code> ordered by id.
+         */
+        @NotNull public <T extends Entity> List<T> allInstanceOf(@NotNull Class<T> kind) {
+            PersistentHashMap<Object, Entity> entities = kinds.get(kind);
+            return entities == null ? new ArrayList<>() : (List<T>) sortedValues(entities);
+        }
+        
+        public int count(@NotNull Class<? extends Entity> kind) {
+            PersistentHashMap<Object, Entity> entities = kinds.get(kind);
+            return entities == null ? 0 : entities.size();
+        }
+        
+        public void evictCache() {
+            // nothing to do
+        }
+        
+        private static UnsupportedOperationException readOnly() {
+            return new UnsupportedOperationException("Snapshot is read-only");
+        }
+    }
+    
+    private static List<Entity> sortedValues(PersistentHashMap<Object, Entity> entities) {
+        List<Entity> values = entities.values();
+        values.sort((e1, e2) -> ((Comparable) idOf(e1)).compareTo(idOf(e2)));
+        return values;
+    }
+    
+    /**
+     * The table of a kind in the shared root map, replacing the root by compare-and-set on every modification.
+     */
+    @RequiredArgsConstructor
+    private static final class PersistentEntityTable implements EntityTable {
+        
+        private final AtomicReference<PersistentHashMap<Class<? extends Entity>, PersistentHashMap<Object, Entity>>> root;
+        
+        private final Class<? extends Entity> kind;
+        
+        /**
+         * The sorted values are cached with the version of the kind they were built of.
+         */
+        private volatile Object[] sortedSnapshot = { null, null };
+        
+        @Nullable public Entity get(@NotNull Object id) { return entities().get(id); }
+        
+        @Nullable public Entity putIfAbsent(@NotNull Object id, @NotNull Entity entity) {
+            return modify(entities -> entities.get(id) == null ? entities.put(id, entity) : entities, entities -> entities.get(id));
+        }
+        
+        @Nullable public Entity replace(@NotNull Object id, @NotNull Entity entity) {
+            return modify(entities -> entities.get(id) == null ? entities : entities.put(id, entity), entities -> entities.get(id));
+        }
+        
+        @Nullable public Entity remove(@NotNull Object id) {
+            return modify(entities -> entities.remove(id), entities -> entities.get(id));
+        }
+        
+        public int size() { return entities().size(); }
+        
+        @NotNull public Collection<Entity> values() {
+            PersistentHashMap<Object, Entity> entities = entities();
+            Object[] snapshot = sortedSnapshot;
+            if (snapshot[0] != entities) {
+                snapshot = new Object[] { entities, Collections.unmodifiableList(sortedValues(entities)) };
+                sortedSnapshot = snapshot;
+            }
+            return (Collection<Entity>) snapshot[1];
+        }
+        
+        private PersistentHashMap<Object, Entity> entities() { return entitiesOf(root.get()); }
+        
+        private PersistentHashMap<Object, Entity> entitiesOf(PersistentHashMap<Class<? extends Entity>, PersistentHashMap<Object, Entity>> kinds) {
+            PersistentHashMap<Object, Entity> entities = kinds.get(kind);
+            return entities == null ? PersistentHashMap.empty() : entities;
+        }
+        
+        /**
+         * @return The result of <code>previousFun</code> applied to the version modified successfully.
+         */
+        private Entity modify(UnaryOperator<PersistentHashMap<Object, Entity>> modification,
+            Function<PersistentHashMap<Object, Entity>, Entity> previousFun) {
+            while (true) {
+                PersistentHashMap<Class<? extends Entity>, PersistentHashMap<Object, Entity>> current = root.get();
+                PersistentHashMap<Object, Entity> entities = entitiesOf(current);
+                PersistentHashMap<Object, Entity> modified = modification.apply(entities);
+                if (modified == entities || root.compareAndSet(current, current.put(kind, modified))) {
+                    return previousFun.apply(entities);
+                }
+            }
+        }
+    }
+    
+}
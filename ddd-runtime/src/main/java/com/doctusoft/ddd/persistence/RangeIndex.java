@@ -0,0 +1,47 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.math.ClosedRange;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+import static java.util.Objects.*;
+
+/**
+ * Index supporting equality and range lookups in the natural order of the attribute values. Entities with
+ * <code>null</code> attribute value are not indexed.
+ */
+public final class RangeIndex<T extends Entity, A extends Comparable<? super A>> extends AttributeIndex<T, A> {
+    
+    private final ConcurrentSkipListMap<Object, NavigableSet<Object>> idsByValue = new ConcurrentSkipListMap<>();
+    
+    RangeIndex(@NotNull InMemoryDatastore datastore, @NotNull Class<T> kind, @NotNull Function<? super T, ? extends A> attribute) {
+        super(datastore, kind, attribute);
+    }
+    
+    /**
+     * @return The entities having attribute value within the given range (inclusive), ordered by the attribute value
+     * and then by id.
+     */
+    @NotNull public List<T> findBetween(@NotNull ClosedRange<A> range) {
+        requireNonNull(range, "range");
+        A lowerBound = range.getLowerBound();
+        A upperBound = range.getUpperBound();
+        return load(idsByValue.subMap(lowerBound, true, upperBound, true)
+            .values()
+            .stream()
+            .flatMap(Collection::stream), entity -> {
+            A value = attributeOf(entity);
+            return value != null && lowerBound.compareTo(value) <= 0 && upperBound.compareTo(value) >= 0;
+        });
+    }
+    
+    ConcurrentMap<Object, NavigableSet<Object>> idsByIndexKey() { return idsByValue; }
+    
+    @Nullable Object toIndexKey(@Nullable A value) { return value; }
+    
+}
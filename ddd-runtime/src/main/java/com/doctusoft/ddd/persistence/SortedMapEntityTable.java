@@ -0,0 +1,44 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+import static java.util.Objects.*;
+
+final class SortedMapEntityTable implements EntityTable {
+    
+    private final NavigableMap<Object, Entity> entityMap;
+    
+    SortedMapEntityTable(@NotNull NavigableMap<Object, Entity> entityMap) {
+        this.entityMap = requireNonNull(entityMap, "entityMap");
+    }
+    
+    @Nullable public Entity get(@NotNull Object id) { return entityMap.get(id); }
+    
+    @Nullable public Entity putIfAbsent(@NotNull Object id, @NotNull Entity entity) {
+        return entityMap.putIfAbsent(id, entity);
+    }
+    
+    @Nullable public Entity replace(@NotNull Object id, @NotNull Entity entity) { return entityMap.replace(id, entity); }
+    
+    @Nullable public Entity remove(@NotNull Object id) { return entityMap.remove(id); }
+    
+    public int size() { return entityMap.size(); }
+    
+    @NotNull public Collection<Entity> values() { return entityMap.values(); }
+    
+    @NotNull public Iterable<Entity> valuesBetween(@NotNull Object fromId, @NotNull Object toId) {
+        if (((Comparable) fromId).compareTo(toId) > 0) {
+            return Collections.emptyList();
+        }
+        return entityMap.subMap(fromId, true, toId, true).values();
+    }
+    
+    @NotNull public Iterable<Entity> valuesAfter(@Nullable Object afterId) {
+        return afterId == null ? entityMap.values() : entityMap.tailMap(afterId, false).values();
+    }
+    
+}
@@ -0,0 +1,523 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.model.EntityClass;
+import com.doctusoft.ddd.model.EntityKey;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+import static com.doctusoft.java.Failsafe.checkArgument;
+import static com.doctusoft.java.Failsafe.checkState;
+import static java.util.Objects.*;
+
+/**
+ * Multi-threaded datastore with snapshot isolated transactions bound to the current thread (see:
+ * {@link #inTransaction(Supplier)} and {@link #transactionalExecutor()}).
+ * <ul>
+ * <li>
+ * Point reads of a transaction see the state committed before the transaction started, its own changes included.
+ * Reads of multiple entities by anything else than their keys are not isolated, they see the latest committed state
+ * without the changes of the transaction: iterating the entities of a kind (e.g. {@link #allInstanceOf(Class)}), id
+ * range reads (e.g. {@link #loadByIdInNumericRange(Class, com.doctusoft.math.ClosedRange)}), and the lookups of
+ * indexes and aggregates (e.g. {@link #addHashIndex(Class, Function)}).
+ * </li>
+ * <li>
+ * Changes are buffered until the commit. Commits are serialized by a single commit lock of the datastore, held while
+ * the conflicts are checked and the changes are applied, so at most one transaction commits at a time regardless of the
+ * keys it has changed. If an entity changed by the transaction has been committed by another transaction meanwhile,
+ * the commit fails by {@link ConcurrentModificationException} (first committer wins).
+ * </li>
+ * <li>
+ * {@link #selectForUpdate(EntityKey)} locks the key until the end of the transaction and returns its latest committed
+ * state, so read-modify-write cycles of transactions locking the same key are serialized instead of failing. Waiting
+ * for a lock is limited by a timeout, after which the transaction fails by {@link ConcurrentModificationException},
+ * so transactions locking multiple keys in different orders fail instead of deadlocking.
+ * </li>
+ * </ul>
+ * Changes made outside of a transaction are committed immediately. Stored instances are shared like in
+ * {@link InMemoryDatastore}, so they must not be modified in place.
+ */
+public class TransactionalInMemoryDatastore extends InMemoryDatastore {
+    
+    public static TransactionalInMemoryDatastore create() { return create(10L, TimeUnit.SECONDS); }
+    
+    /**
+     * @param lockTimeout The maximum time {@link #selectForUpdate(EntityKey)} waits for the lock of a key.
+     */
+    public static TransactionalInMemoryDatastore create(long lockTimeout, @NotNull TimeUnit unit) {
+        return new TransactionalInMemoryDatastore(EntityTableFactory.sorted(ConcurrentSkipListMap::new), lockTimeout, unit);
+    }
+    
+    private static final int PRUNE_INTERVAL = 1024;
+    
+    private static final Entity REMOVED = new Removed();
+    
+    private final ThreadLocal<Transaction> currentTransaction = new ThreadLocal<>();
+    
+    /**
+     * The locks of the keys locked or waited for by any transaction.
+     */
+    private final ConcurrentMap<EntityKey<?>, KeyLock> keyLocks = new ConcurrentHashMap<>();
+    
+    private final long lockTimeoutNanos;
+    
+    private final Object commitLock = new Object();
+    
+    /**
+     * The timestamp of the latest commit, only modified holding the {@link #commitLock}.
+     */
+    private volatile long commitTimestamp;
+    
+    private final Set<Transaction> activeTransactions = ConcurrentHashMap.newKeySet();
+    
+    /**
+     * Recently committed keys with the versions overwritten by them, only kept while there are transactions which may
+     * still read them or conflict with them.
+     */
+    private final ConcurrentMap<EntityKey<?>, KeyVersions> versions = new ConcurrentHashMap<>();
+    
+    private int commitsSincePrune;
+    
+    protected TransactionalInMemoryDatastore(@NotNull EntityTableFactory tableFactory, long lockTimeout, @NotNull TimeUnit unit) {
+        super(tableFactory);
+        checkArgument(lockTimeout >= 0L, () -> "lockTimeout=" + lockTimeout);
+        this.lockTimeoutNanos = unit.toNanos(lockTimeout);
+    }
+    
+    /**
+     * Runs <code>work</code> in a transaction, which is committed if it completes normally and rolled back otherwise.
+     * If there is a transaction already running on the current thread, <code>work</code> joins it.
+     *
+     * @throws ConcurrentModificationException if the commit failed because of a conflicting transaction
+     */
+    public <R> R inTransaction(@NotNull Supplier<R> work) {
+        requireNonNull(work, "work");
+        if (currentTransaction.get() != null) {
+            return work.get();
+        }
+        Transaction transaction = begin();
+        try {
+            R result = work.get();
+            // callbacks may register further ones
+            for (int i = 0; i < transaction.commitCallbacks.size(); i++) {
+                transaction.commitCallbacks.get(i).run();
+            }
+            commit(transaction);
+            return result;
+        } finally {
+            end(transaction);
+        }
+    }
+    
+    /**
+     * @return An executor running each command on the calling thread in a transaction (see:
+     * {@link #inTransaction(Supplier)}).
+     */
+    public Executor transactionalExecutor() {
+        return command -> inTransaction(() -> {
+            command.run();
+            return null;
+        });
+    }
+    
+    public boolean isInTransaction() { return currentTransaction.get() != null; }
+    
+    /**
+     * Registers <code>callback</code> to be run on the current thread before the transaction of the current thread
+     * commits, as part of the transaction. If <code>callback</code> fails, the transaction is rolled back. Not run if
+     * the transaction is rolled back otherwise.
+     *
+     * @return <code>false</code> if there is no transaction on the current thread, in which case nothing is registered.
+     */
+    public boolean beforeCommit(@NotNull Runnable callback) {
+        requireNonNull(callback, "callback");
+        Transaction transaction = currentTransaction.get();
+        if (transaction == null) {
+            return false;
+        }
+        transaction.commitCallbacks.add(callback);
+        return true;
+    }
+    
+    /**
+     * Registers <code>callback</code> to be run on the current thread after the transaction of the current thread is
+     * committed or rolled back, and its locks are released.
+     *
+     * @return <code>false</code> if there is no transaction on the current thread, in which case nothing is registered.
+     */
+    public boolean afterCompletion(@NotNull Runnable callback) {
+        requireNonNull(callback, "callback");
+        Transaction transaction = currentTransaction.get();
+        if (transaction == null) {
+            return false;
+        }
+        transaction.completionCallbacks.add(callback);
+        return true;
+    }
+    
+    @Nullable public <T extends Entity> T load(@NotNull EntityKey<T> key) {
+        Transaction transaction = currentTransaction.get();
+        return transaction == null ? super.load(key) : transaction.read(key);
+    }
+    
+    /**
+     * @throws IllegalStateException if invoked outside of a transaction, where the lock would be released immediately
+     * @throws ConcurrentModificationException if the key could not be locked within the lock timeout
+     */
+    @Nullable public <T extends Entity> T selectForUpdate(@NotNull EntityKey<T> key) {
+        Transaction transaction = currentTransaction.get();
+        checkState(transaction != null, () -> "Cannot lock " + key + " outside of a transaction");
+        transaction.lock(key);
+        return transaction.read(key);
+    }
+    
+    public <T extends Entity> void insert(@NotNull T entity) {
+        EntityKey<?> key = entity.getKey();
+        inTransaction(() -> {
+            Transaction transaction = currentTransaction.get();
+            Entity existing = transaction.read(key);
+            if (existing != null) {
+                throw new IllegalStateException("Entity with key " + key + " already exists: " + existing);
+            }
+            return transaction.writes.put(key, entity);
+        });
+    }
+    
+    public <T extends Entity> void update(@NotNull T entity) {
+        EntityKey<?> key = entity.getKey();
+        inTransaction(() -> {
+            Transaction transaction = currentTransaction.get();
+            if (transaction.read(key) == null) {
+                throw new IllegalStateException("Entity with key " + key + " did not exist");
+            }
+            return transaction.writes.put(key, entity);
+        });
+    }
+    
+    public <T extends Entity> void remove(@NotNull T entity) {
+        EntityKey<?> key = entity.getKey();
+        inTransaction(() -> currentTransaction.get().writes.put(key, REMOVED));
+    }
+    
+    public <T extends Entity> List<T> loadByIdAsc(@NotNull Class<T> kind, @NotNull Collection idList) {
+        if (currentTransaction.get() == null) {
+            return super.loadByIdAsc(kind, idList);
+        }
+        EntityClass<T> entityClass = EntityClass.of(kind);
+        List<T> resultList = new ArrayList<>(idList.size());
+        ((Stream<Object>) idList.stream())
+            .map(entityClass::checkId)
+            .sorted()
+            .map(entityClass::toKey)
+            .forEachOrdered(key -> find(key).ifPresent(resultList::add));
+        return resultList;
+    }
+    
+    /**
+     * Streams the latest committed state outside of transactions only, since the batches would neither be isolated nor
+     * see the changes of the transaction.
+     *
+     * @throws IllegalStateException if invoked in a transaction
+     */
+    public <T extends Entity> Stream<T> stream(@NotNull Class<T> kind, int batchSize) {
+        checkState(currentTransaction.get() == null, () -> "Cannot stream " + kind.getName() + " in a transaction");
+        return super.stream(kind, batchSize);
+    }
+    
+    /**
+     * Inserts the entities in a single transaction (joining the current one if any).
+     */
+    public <T extends Entity> void insertMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> newEntities) {
+        EntityClass<T> entityClass = EntityClass.of(kind);
+        inTransaction(() -> {
+            newEntities.forEach(entity -> {
+                entityClass.checkInstance(entity);
+                insert(entity);
+            });
+            return null;
+        });
+    }
+    
+    /**
+     * Updates the entities in a single transaction (joining the current one if any).
+     */
+    public <T extends Entity> void updateMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> changedEntities) {
+        EntityClass<T> entityClass = EntityClass.of(kind);
+        inTransaction(() -> {
+            changedEntities.forEach(entity -> {
+                entityClass.checkInstance(entity);
+                update(entity);
+            });
+            return null;
+        });
+    }
+    
+    /**
+     * Removes the entities in a single transaction (joining the current one if any).
+     */
+    public <T extends Entity> int removeMany(@NotNull Class<T> kind, @NotNull Collection idList) {
+        return inTransaction(() -> {
+            List<T> entities = loadByIdAsc(kind, idList);
+            entities.forEach(this::remove);
+            return entities.size();
+        });
+    }
+    
+    /**
+     * Saves the entities in a single transaction (joining the current one if any).
+     */
+    public <T extends Entity> void saveMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> entities) {
+        inTransaction(() -> {
+            super.saveMany(kind, entities);
+            return null;
+        });
+    }
+    
+    /**
+     * Saves the entity in a transaction (joining the current one if any), locking its key.
+     */
+    public <T extends Entity> void save(@NotNull T entity) {
+        inTransaction(() -> {
+            super.save(entity);
+            return null;
+        });
+    }
+    
+    private Transaction begin() {
+        Transaction transaction;
+        synchronized (commitLock) {
+            transaction = new Transaction(commitTimestamp);
+            activeTransactions.add(transaction);
+        }
+        currentTransaction.set(transaction);
+        return transaction;
+    }
+    
+    private void end(Transaction transaction) {
+        currentTransaction.remove();
+        activeTransactions.remove(transaction);
+        transaction.locks.forEach((key, keyLock) -> {
+            keyLock.lock.unlock();
+            release(key);
+        });
+        transaction.completionCallbacks.forEach(Runnable::run);
+    }
+    
+    private void commit(Transaction transaction) {
+        if (transaction.writes.isEmpty()) {
+            return;
+        }
+        synchronized (commitLock) {
+            for (EntityKey<?> key : transaction.writes.keySet()) {
+                KeyVersions keyVersions = versions.get(key);
+                long readTimestamp = transaction.lockTimestamps.getOrDefault(key, transaction.startTimestamp);
+                if (keyVersions != null && keyVersions.lastCommit > readTimestamp) {
+                    throw new ConcurrentModificationException("Entity with key " + key + " has been modified by a concurrent transaction");
+                }
+            }
+            long timestamp = commitTimestamp + 1;
+            boolean keepVersions = activeTransactions.size() > 1;
+            List<Runnable> undoActions = new ArrayList<>();
+            List<EntityKey<?>> versionedKeys = new ArrayList<>();
+            try {
+                transaction.writes.forEach((key, entity) -> {
+                    Entity previous = super.load(key);
+                    if (keepVersions) {
+                        versions.computeIfAbsent(key, k -> new KeyVersions()).add(timestamp, previous);
+                        versionedKeys.add(key);
+                    }
+                    apply(previous, entity);
+                    undoActions.add(() -> apply(entity == REMOVED ? null : entity, previous == null ? REMOVED : previous));
+                });
+            } catch (RuntimeException | Error e) {
+                for (int i = undoActions.size() - 1; i >= 0; --i) {
+                    undoActions.get(i).run();
+                }
+                // the versions are removed after the state is restored, so readers never see the failed changes
+                versionedKeys.forEach(key -> versions.computeIfPresent(key, (k, keyVersions) ->
+                    keyVersions.removeUncommitted(timestamp) ? null : keyVersions));
+                throw e;
+            }
+            if (keepVersions) {
+                transaction.writes.keySet().forEach(key -> versions.get(key).lastCommit = timestamp);
+            }
+            commitTimestamp = timestamp;
+            pruneVersions();
+        }
+    }
+    
+    private void apply(@Nullable Entity previous, @NotNull Entity entity) {
+        if (entity == REMOVED) {
+            if (previous != null) {
+                super.remove(previous);
+            }
+        } else if (previous == null) {
+            super.insert(entity);
+        } else {
+            super.update(entity);
+        }
+    }
+    
+    /**
+     * @return The lock of <code>key</code>, which is kept until {@link #release(EntityKey)} is invoked as many times as
+     * this.
+     */
+    private KeyLock acquire(EntityKey<?> key) {
+        return keyLocks.compute(key, (k, keyLock) -> {
+            KeyLock acquired = keyLock == null ? new KeyLock() : keyLock;
+            ++acquired.references;
+            return acquired;
+        });
+    }
+    
+    private void release(EntityKey<?> key) {
+        keyLocks.computeIfPresent(key, (k, keyLock) -> --keyLock.references == 0 ? null : keyLock);
+    }
+    
+    /**
+     * Must be invoked holding the {@link #commitLock}.
+     */
+    private void pruneVersions() {
+        if (activeTransactions.size() <= 1) {
+            versions.clear();
+            commitsSincePrune = 0;
+        } else if (++commitsSincePrune >= PRUNE_INTERVAL) {
+            long oldestStart = activeTransactions.stream().mapToLong(t -> t.startTimestamp).min().orElse(commitTimestamp);
+            versions.values().removeIf(keyVersions -> keyVersions.prune(oldestStart));
+            commitsSincePrune = 0;
+        }
+    }
+    
+    private final class Transaction {
+        
+        private final long startTimestamp;
+        
+        private final Map<EntityKey<?>, Entity> writes = new LinkedHashMap<>();
+        
+        private final Map<EntityKey<?>, Long> lockTimestamps = new HashMap<>();
+        
+        private final Map<EntityKey<?>, KeyLock> locks = new HashMap<>();
+        
+        private final List<Runnable> commitCallbacks = new ArrayList<>();
+        
+        private final List<Runnable> completionCallbacks = new ArrayList<>();
+        
+        Transaction(long startTimestamp) {
+            this.startTimestamp = startTimestamp;
+        }
+        
+        void lock(EntityKey<?> key) {
+            if (lockTimestamps.containsKey(key)) {
+                return;
+            }
+            KeyLock keyLock = acquire(key);
+            boolean locked = false;
+            try {
+                locked = keyLock.lock.tryLock(lockTimeoutNanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (!locked) {
+                    release(key);
+                }
+            }
+            if (!locked) {
+                throw new ConcurrentModificationException("Could not lock entity with key " + key);
+            }
+            locks.put(key, keyLock);
+            lockTimestamps.put(key, commitTimestamp);
+        }
+        
+        @Nullable <T extends Entity> T read(EntityKey<T> key) {
+            Entity written = writes.get(key);
+            if (written != null) {
+                return written == REMOVED ? null : (T) written;
+            }
+            // the latest state is read first, since commits record the overwritten version before changing it
+            T latest = TransactionalInMemoryDatastore.super.load(key);
+            KeyVersions keyVersions = versions.get(key);
+            if (keyVersions == null || lockTimestamps.containsKey(key)) {
+                return latest;
+            }
+            Entity version = keyVersions.versionAt(startTimestamp);
+            return version == null ? latest : version == REMOVED ? null : (T) version;
+        }
+    }
+    
+    private static final class KeyLock {
+        
+        private final ReentrantLock lock = new ReentrantLock();
+        
+        /**
+         * The number of transactions holding or waiting for the lock, only modified while computing the entry of the
+         * {@link #keyLocks}.
+         */
+        private int references;
+    }
+    
+    private static final class KeyVersions {
+        
+        private volatile long lastCommit;
+        
+        /**
+         * Pairs of the overwritten versions and the timestamps of the commits overwriting them, in commit order.
+         */
+        private final ArrayDeque<Object[]> overwritten = new ArrayDeque<>(2);
+        
+        synchronized void add(long timestamp, @Nullable Entity previous) {
+            overwritten.addLast(new Object[] { timestamp, previous == null ? REMOVED : previous });
+        }
+        
+        /**
+         * Removes the version recorded by a commit of <code>timestamp</code> which failed.
+         *
+         * @return <code>true</code> if nothing else is recorded.
+         */
+        synchronized boolean removeUncommitted(long timestamp) {
+            if (!overwritten.isEmpty() && (Long) overwritten.peekLast()[0] == timestamp) {
+                overwritten.removeLast();
+            }
+            return overwritten.isEmpty() && lastCommit == 0L;
+        }
+        
+        /**
+         * @return The version visible at <code>timestamp</code> if it has been overwritten, <code>null</code> otherwise.
+         */
+        @Nullable synchronized Entity versionAt(long timestamp) {
+            for (Object[] version : overwritten) {
+                if ((Long) version[0] > timestamp) {
+                    return (Entity) version[1];
+                }
+            }
+            return null;
+        }
+        
+        /**
+         * @return <code>true</code> if none of the transactions started after <code>oldestStart</code> needs this.
+         */
+        synchronized boolean prune(long oldestStart) {
+            while (!overwritten.isEmpty() && (Long) overwritten.peekFirst()[0] <= oldestStart) {
+                overwritten.removeFirst();
+            }
+            return overwritten.isEmpty() && lastCommit <= oldestStart;
+        }
+    }
+    
+    private static final class Removed implements Entity {
+        
+        @NotNull public EntityKey getKey() { throw new UnsupportedOperationException(); }
+        
+        @NotNull public Class<? extends Entity> getKind() { return Removed.class; }
+        
+        public Object getId() { return null; }
+        
+        public String getIdAsString() { return ""; }
+    }
+    
+}
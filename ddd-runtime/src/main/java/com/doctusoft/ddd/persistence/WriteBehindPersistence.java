@@ -0,0 +1,324 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.model.EntityClass;
+import com.doctusoft.ddd.model.EntityKey;
+import lombok.AllArgsConstructor;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+import static java.util.Objects.*;
+
+/**
+ * Buffers the writes of a unit of work instead of passing them to another {@link GenericPersistence} one by one, and
+ * applies them by {@link #flush()}, grouped by kind into {@link #removeMany(Class, Collection)},
+ * {@link #insertMany(Class, Collection)}, {@link #updateMany(Class, Collection)} and
+ * {@link #saveMany(Class, Collection)} invocations of the delegate. If the delegate is transactional, the transactions
+ * can be exposed by {@link #create(GenericPersistence, Predicate)}, so the writes are flushed before the commit.
+ * <p/>
+ * Repeated writes of the same key are coalesced into a single one: e.g. an insert followed by updates is flushed as an
+ * insert of the last state, and an insert followed by a remove is not flushed at all. Point reads see the buffered
+ * writes, while the queries of multiple entities ({@link #loadByIdAsc(Class, Collection)},
+ * {@link #loadSmallDataset(Class)}, {@link #existingIds(Class, Collection)} and {@link #stream(Class, int)}) flush them
+ * first.
+ * <p/>
+ * Like an <code>EntityManager</code>, an instance belongs to a single unit of work, so it is not thread-safe.
+ */
+public final class WriteBehindPersistence extends ForwardingGenericPersistence {
+    
+    public static WriteBehindPersistence create(@NotNull GenericPersistence delegate) {
+        return new WriteBehindPersistence(delegate, callback -> false);
+    }
+    
+    /**
+     * @param beforeCommit Registers a callback to be run on the current thread before the transaction of the current
+     * thread commits (e.g. {@link TransactionalInMemoryDatastore#beforeCommit(Runnable)}), returns <code>false</code>
+     * if there is no transaction. The writes buffered in a transaction are flushed by the callback. The writes of a
+     * rolled back transaction stay buffered until {@link #discard()}.
+     */
+    public static WriteBehindPersistence create(@NotNull GenericPersistence delegate, @NotNull Predicate<Runnable> beforeCommit) {
+        return new WriteBehindPersistence(delegate, requireNonNull(beforeCommit, "beforeCommit"));
+    }
+    
+    private final Map<EntityKey<?>, PendingWrite> pendingWrites = new LinkedHashMap<>();
+    
+    private final Predicate<Runnable> beforeCommit;
+    
+    /**
+     * Whether a flush is registered to be run before the commit of the current transaction. Reset by each flush or
+     * discard, so a rolled back transaction, which does not run its callbacks, does not prevent registering again.
+     */
+    private boolean flushRegistered;
+    
+    private WriteBehindPersistence(GenericPersistence delegate, Predicate<Runnable> beforeCommit) {
+        super(delegate);
+        this.beforeCommit = beforeCommit;
+    }
+    
+    /**
+     * Runs <code>work</code>, and flushes its writes if it completes normally, otherwise discards them.
+     */
+    public <R> R inUnitOfWork(@NotNull Supplier<R> work) {
+        requireNonNull(work, "work");
+        boolean completed = false;
+        try {
+            R result = work.get();
+            completed = true;
+            flush();
+            return result;
+        } finally {
+            if (!completed) {
+                discard();
+            }
+        }
+    }
+    
+    /**
+     * Applies the buffered writes kind by kind, in the order of the first write of each kind. The removes of a kind are
+     * applied first, then its inserts, its updates and its saves by a single invocation each. The buffer is
+     * emptied even if applying the writes fails.
+     */
+    public void flush() {
+        flushRegistered = false;
+        if (pendingWrites.isEmpty()) {
+            return;
+        }
+        Map<Class<? extends Entity>, Map<WriteType, List<Object>>> writesByKind = new LinkedHashMap<>();
+        pendingWrites.forEach((key, write) -> writesByKind
+            .computeIfAbsent(key.getKind(), kind -> new EnumMap<>(WriteType.class))
+            .computeIfAbsent(write.type, type -> new ArrayList<>())
+            .add(write.type == WriteType.REMOVE ? key.getId() : write.entity));
+        pendingWrites.clear();
+        writesByKind.forEach((kind, writes) -> {
+            GenericPersistence delegate = getDelegate();
+            List<Object> removedIds = writes.get(WriteType.REMOVE);
+            if (removedIds != null) {
+                delegate.removeMany(kind, removedIds);
+            }
+            List<Entity> inserts = (List) writes.get(WriteType.INSERT);
+            if (inserts != null) {
+                delegate.insertMany((Class<Entity>) kind, inserts);
+            }
+            List<Entity> updates = (List) writes.get(WriteType.UPDATE);
+            if (updates != null) {
+                delegate.updateMany((Class<Entity>) kind, updates);
+            }
+            List<Entity> saves = (List) writes.get(WriteType.SAVE);
+            if (saves != null) {
+                delegate.saveMany((Class<Entity>) kind, saves);
+            }
+        });
+    }
+    
+    /**
+     * Drops the buffered writes without applying them.
+     */
+    public void discard() {
+        flushRegistered = false;
+        pendingWrites.clear();
+    }
+    
+    public int pendingWriteCount() { return pendingWrites.size(); }
+    
+    @Nullable public <T extends Entity> T load(@NotNull EntityKey<T> key) {
+        PendingWrite pendingWrite = pendingWrites.get(key);
+        return pendingWrite == null ? super.load(key) : (T) pendingWrite.visibleEntity();
+    }
+    
+    @NotNull public <T extends Entity> Optional<T> find(@NotNull EntityKey<T> key) { return Optional.ofNullable(load(key)); }
+    
+    @NotNull public <T extends Entity> T require(@NotNull EntityKey<T> key) {
+        return find(key).orElseThrow(() -> new EntityNotFoundException(key));
+    }
+    
+    @Nullable public <T extends Entity> T selectForUpdate(@NotNull EntityKey<T> key) {
+        PendingWrite pendingWrite = pendingWrites.get(key);
+        return pendingWrite == null ? super.selectForUpdate(key) : (T) pendingWrite.visibleEntity();
+    }
+    
+    @NotNull public <T extends Entity> T requireForUpdate(@NotNull EntityKey<T> key) {
+        T entity = selectForUpdate(key);
+        if (entity == null) {
+            throw new EntityNotFoundException(key);
+        }
+        return entity;
+    }
+    
+    /**
+     * The keys with buffered writes are answered from the buffer, the rest are loaded from the delegate.
+     */
+    @NotNull public Map<EntityKey<?>, Entity> loadMany(@NotNull Collection<? extends EntityKey<?>> keys) {
+        Map<EntityKey<?>, Entity> resultMap = new HashMap<>();
+        List<EntityKey<?>> otherKeys = new ArrayList<>();
+        for (EntityKey<?> key : keys) {
+            PendingWrite pendingWrite = pendingWrites.get(key);
+            if (pendingWrite == null) {
+                otherKeys.add(key);
+            } else if (pendingWrite.visibleEntity() != null) {
+                resultMap.put(key, pendingWrite.entity);
+            }
+        }
+        if (!otherKeys.isEmpty()) {
+            resultMap.putAll(super.loadMany(otherKeys));
+        }
+        return resultMap;
+    }
+    
+    public <T extends Entity> List<T> loadByIdAsc(@NotNull Class<T> kind, @NotNull Collection idList) {
+        flush();
+        return super.loadByIdAsc(kind, idList);
+    }
+    
+    public <T extends Entity> List<T> loadSmallDataset(@NotNull Class<T> kind) throws IllegalArgumentException {
+        flush();
+        return super.loadSmallDataset(kind);
+    }
+    
+    @NotNull public Set<Object> existingIds(@NotNull Class<? extends Entity> kind, @NotNull Collection idList) {
+        flush();
+        return super.existingIds(kind, idList);
+    }
+    
+    public <T extends Entity> Stream<T> stream(@NotNull Class<T> kind, int batchSize) {
+        flush();
+        return super.stream(kind, batchSize);
+    }
+    
+    /**
+     * @throws IllegalStateException if the entity is known to exist already by a buffered write
+     */
+    public <T extends Entity> void insert(@NotNull T entity) { write(WriteType.INSERT, entity); }
+    
+    /**
+     * @throws EntityNotFoundException if the entity is known to be removed by a buffered write
+     */
+    public <T extends Entity> void update(@NotNull T entity) { write(WriteType.UPDATE, entity); }
+    
+    public <T extends Entity> void remove(@NotNull T entity) { write(WriteType.REMOVE, entity); }
+    
+    public <T extends Entity> void save(@NotNull T entity) { write(WriteType.SAVE, entity); }
+    
+    public <T extends Entity> void insertMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> newEntities) {
+        EntityClass<T> entityClass = EntityClass.of(kind);
+        newEntities.forEach(entity -> {
+            entityClass.checkInstance(entity);
+            insert(entity);
+        });
+    }
+    
+    public <T extends Entity> void updateMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> changedEntities) {
+        EntityClass<T> entityClass = EntityClass.of(kind);
+        changedEntities.forEach(entity -> {
+            entityClass.checkInstance(entity);
+            update(entity);
+        });
+    }
+    
+    public <T extends Entity> void saveMany(@NotNull Class<T> kind, @NotNull Collection<? extends T> entities) {
+        EntityClass<T> entityClass = EntityClass.of(kind);
+        entities.forEach(entity -> {
+            entityClass.checkInstance(entity);
+            save(entity);
+        });
+    }
+    
+    /**
+     * Buffers a remove of each existing entity without flushing: the ids with buffered writes are answered from the
+     * buffer, the rest by a single {@link #existingIds(Class, Collection)} of the delegate.
+     */
+    public <T extends Entity> int removeMany(@NotNull Class<T> kind, @NotNull Collection idList) {
+        EntityClass<T> entityClass = EntityClass.of(kind);
+        List<EntityKey<T>> existingKeys = new ArrayList<>();
+        Map<Object, EntityKey<T>> otherKeys = new LinkedHashMap<>();
+        for (Object id : (Collection<Object>) idList) {
+            EntityKey<T> key = entityClass.toKey(id);
+            PendingWrite pendingWrite = pendingWrites.get(key);
+            if (pendingWrite == null) {
+                otherKeys.put(key.getId(), key);
+            } else if (pendingWrite.visibleEntity() != null) {
+                existingKeys.add(key);
+            }
+        }
+        if (!otherKeys.isEmpty()) {
+            getDelegate().existingIds(kind, otherKeys.keySet()).forEach(id -> existingKeys.add(otherKeys.get(id)));
+        }
+        existingKeys.forEach(key -> write(WriteType.REMOVE, key, null));
+        return existingKeys.size();
+    }
+    
+    /**
+     * Buffers the removes by {@link #removeMany(Class, Collection)} per kind.
+     */
+    public int removeByKeys(@NotNull Collection<? extends EntityKey<?>> keys) {
+        Map<Class<? extends Entity>, List<Object>> idsByKind = new LinkedHashMap<>();
+        keys.forEach(key -> idsByKind.computeIfAbsent(key.getKind(), kind -> new ArrayList<>()).add(key.getId()));
+        int removed = 0;
+        for (Map.Entry<Class<? extends Entity>, List<Object>> entry : idsByKind.entrySet()) {
+            removed += removeMany(entry.getKey(), entry.getValue());
+        }
+        return removed;
+    }
+    
+    private void write(WriteType type, Entity entity) { write(type, entity.getKey(), entity); }
+    
+    /**
+     * @param entity <code>null</code> for removes by key
+     */
+    private void write(WriteType type, EntityKey<?> key, @Nullable Entity entity) {
+        if (!flushRegistered) {
+            flushRegistered = beforeCommit.test(this::flush);
+        }
+        PendingWrite previous = pendingWrites.get(key);
+        WriteType coalesced = previous == null ? type : coalesce(key, previous.type, type);
+        if (coalesced == null) {
+            pendingWrites.remove(key);
+        } else {
+            pendingWrites.put(key, new PendingWrite(coalesced, entity));
+        }
+    }
+    
+    /**
+     * @return The single write equivalent to <code>previous</code> followed by <code>next</code>, <code>null</code> if
+     * they cancel each other.
+     */
+    @Nullable private static WriteType coalesce(EntityKey<?> key, WriteType previous, WriteType next) {
+        if (previous == WriteType.REMOVE) {
+            switch (next) {
+                case UPDATE:
+                    throw new EntityNotFoundException(key);
+                case REMOVE:
+                    return WriteType.REMOVE;
+                default:
+                    // the entity may have existed before the remove
+                    return WriteType.SAVE;
+            }
+        }
+        switch (next) {
+            case INSERT:
+                throw new IllegalStateException("Entity with key " + key + " already exists");
+            case REMOVE:
+                return previous == WriteType.INSERT ? null : WriteType.REMOVE;
+            default:
+                return previous;
+        }
+    }
+    
+    private enum WriteType {
+        INSERT, UPDATE, REMOVE, SAVE
+    }
+    
+    @AllArgsConstructor
+    private static final class PendingWrite {
+        
+        private final WriteType type;
+        
+        @Nullable private final Entity entity;
+        
+        @Nullable Entity visibleEntity() { return type == WriteType.REMOVE ? null : entity; }
+    }
+    
+}
@@ -0,0 +1,56 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.EntityKey;
+import com.doctusoft.ddd.model.EntityWithLongId;
+import com.doctusoft.ddd.model.EntityWithStringId;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+final class SampleEntities {
+    
+    static Item item(long id, String status, long price) {
+        Item item = new Item();
+        item.setId(id);
+        item.setStatus(status);
+        item.setPrice(price);
+        return item;
+    }
+    
+    static Tag tag(String id, String label) {
+        Tag tag = new Tag();
+        tag.setId(id);
+        tag.setLabel(label);
+        return tag;
+    }
+    
+    @Data
+    @NoArgsConstructor
+    public static class Item implements EntityWithLongId {
+        
+        static EntityKey<Item> createKey(long id) { return EntityKey.create(Item.class, id); }
+        
+        public Class<Item> getKind() { return Item.class; }
+        
+        private Long id;
+        
+        private String status;
+        
+        private Long price;
+    }
+    
+    @Data
+    @NoArgsConstructor
+    public static class Tag implements EntityWithStringId {
+        
+        static EntityKey<Tag> createKey(String id) { return EntityKey.create(Tag.class, id); }
+        
+        public Class<Tag> getKind() { return Tag.class; }
+        
+        private String id;
+        
+        private String label;
+    }
+    
+    private SampleEntities() {}
+    
+}
@@ -0,0 +1,83 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.model.EntityKey;
+import com.doctusoft.ddd.persistence.SampleEntities.Item;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+import static com.doctusoft.ddd.persistence.SampleEntities.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class TestAsyncGenericPersistence {
+    
+    @Test
+    public void loadsRunConcurrently() throws Exception {
+        CyclicBarrier barrier = new CyclicBarrier(4);
+        InMemoryDatastore datastore = new InMemoryDatastore(EntityTableFactory.sorted(ConcurrentSkipListMap::new)) {
+            public <T extends Entity> T load(EntityKey<T> key) {
+                try {
+                    barrier.await(10, TimeUnit.SECONDS); // fails unless the 4 loads are running at the same time
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+                return super.load(key);
+            }
+        };
+        LongStream.range(0L, 4L).forEach(id -> datastore.insert(item(id, "NEW", id)));
+        try (AsyncGenericPersistence async = AsyncGenericPersistence.create(datastore, 4)) {
+            List<CompletableFuture<Item>> futures = LongStream.range(0L, 4L)
+                .mapToObj(id -> async.load(Item.createKey(id)))
+                .collect(Collectors.toList());
+            for (int i = 0; i < 4; ++i) {
+                assertThat(futures.get(i).get(10, TimeUnit.SECONDS).getId(), is((long) i));
+            }
+        }
+    }
+    
+    @Test
+    public void concurrencyIsBounded() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        InMemoryDatastore datastore = InMemoryDatastore.multiThreaded();
+        try (AsyncGenericPersistence async = AsyncGenericPersistence.create(datastore, 2)) {
+            List<CompletableFuture<Object>> futures = IntStream.range(0, 20).mapToObj(i -> async.execute(persistence -> {
+                maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                try {
+                    Thread.sleep(5L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                running.decrementAndGet();
+                return null;
+            })).collect(Collectors.toList());
+            CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).get(10, TimeUnit.SECONDS);
+        }
+        assertThat(maxRunning.get() <= 2, is(true));
+    }
+    
+    @Test
+    public void loadAllAndFailures() throws Exception {
+        InMemoryDatastore datastore = InMemoryDatastore.multiThreaded();
+        LongStream.range(0L, 10L).forEach(id -> datastore.insert(item(id, "NEW", id)));
+        try (AsyncGenericPersistence async = AsyncGenericPersistence.create(datastore, 4)) {
+            List<EntityKey<Item>> keys = Arrays.asList(Item.createKey(7L), Item.createKey(42L), Item.createKey(1L));
+            List<Item> items = async.loadAll(keys, 2).get(10, TimeUnit.SECONDS);
+            assertThat(items.get(0).getId(), is(7L));
+            assertThat(items.get(1), nullValue());
+            assertThat(items.get(2).getId(), is(1L));
+            try {
+                async.require(Item.createKey(42L)).get(10, TimeUnit.SECONDS);
+                throw new AssertionError("not failed");
+            } catch (ExecutionException e) {
+                assertThat(e.getCause(), instanceOf(EntityNotFoundException.class));
+            }
+        }
+    }
+    
+}
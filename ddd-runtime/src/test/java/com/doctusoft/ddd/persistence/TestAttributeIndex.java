@@ -0,0 +1,79 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.persistence.SampleEntities.Item;
+import com.doctusoft.java.AnException;
+import com.doctusoft.math.ClosedRange;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.*;
+
+import static com.doctusoft.ddd.persistence.SampleEntities.*;
+import static com.doctusoft.java.LambdAssert.assertThrows;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class TestAttributeIndex {
+    
+    private InMemoryDatastore datastore;
+    
+    @Before
+    public void setup() {
+        datastore = InMemoryDatastore.multiThreaded();
+        datastore.insert(item(1L, "NEW", 100L));
+        datastore.insert(item(2L, "SOLD", 200L));
+        datastore.insert(item(3L, "NEW", 300L));
+    }
+    
+    @Test
+    public void hashIndexFollowsChanges() {
+        HashIndex<Item, String> byStatus = datastore.addHashIndex(Item.class, Item::getStatus);
+        assertThat(ids(byStatus.find("NEW")), equalTo(Arrays.asList(1L, 3L)));
+        
+        datastore.update(item(1L, "SOLD", 100L));
+        datastore.insert(item(4L, null, 400L));
+        datastore.remove(item(2L, "SOLD", 200L));
+        
+        assertThat(ids(byStatus.find("NEW")), equalTo(Arrays.asList(3L)));
+        assertThat(ids(byStatus.find("SOLD")), equalTo(Arrays.asList(1L)));
+        assertThat(ids(byStatus.find(null)), equalTo(Arrays.asList(4L)));
+        assertThat(byStatus.count("SOLD"), is(1));
+    }
+    
+    @Test
+    public void rangeIndexFindBetween() {
+        RangeIndex<Item, Long> byPrice = datastore.addRangeIndex(Item.class, Item::getPrice);
+        datastore.update(item(3L, "NEW", 150L));
+        assertThat(ids(byPrice.findBetween(ClosedRange.create(100L, 200L))), equalTo(Arrays.asList(1L, 3L, 2L)));
+        assertThat(ids(byPrice.findBetween(ClosedRange.create(250L, 1000L))), equalTo(Collections.emptyList()));
+        assertThat(ids(byPrice.find(200L)), equalTo(Arrays.asList(2L)));
+    }
+    
+    @Test
+    public void failingListenerRollsBackChange() {
+        HashIndex<Item, String> byStatus = datastore.addHashIndex(Item.class, Item::getStatus);
+        datastore.addChangeListener(Item.class, new EntityChangeListener<Entity>() {
+            public void inserted(Entity entity) { throw new IllegalStateException("rejected"); }
+            
+            public void updated(Entity entity) { throw new IllegalStateException("rejected"); }
+            
+            public void removed(Entity entity) { throw new IllegalStateException("rejected"); }
+        });
+        
+        assertThrows(() -> datastore.insert(item(4L, "NEW", 400L)), AnException.of(IllegalStateException.class));
+        assertThrows(() -> datastore.update(item(1L, "SOLD", 100L)), AnException.of(IllegalStateException.class));
+        assertThrows(() -> datastore.remove(item(3L, "NEW", 300L)), AnException.of(IllegalStateException.class));
+        
+        assertThat(datastore.load(Item.createKey(4L)), nullValue());
+        assertThat(datastore.require(Item.createKey(1L)).getStatus(), equalTo("NEW"));
+        assertThat(ids(byStatus.find("NEW")), equalTo(Arrays.asList(1L, 3L)));
+        assertThat(ids(byStatus.find("SOLD")), equalTo(Arrays.asList(2L)));
+    }
+    
+    private static List<Long> ids(List<Item> items) {
+        return items.stream().map(Item::getId).collect(Collectors.toList());
+    }
+    
+}
@@ -0,0 +1,123 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.persistence.SampleEntities.Item;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+import static com.doctusoft.ddd.persistence.SampleEntities.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class TestBoundedEntityTable {
+    
+    @Test
+    public void capacityIsRespected() {
+        InMemoryDatastore datastore = InMemoryDatastore.bounded(100);
+        LongStream.range(0L, 1000L).forEach(id -> datastore.insert(item(id, "NEW", id)));
+        assertThat(datastore.allInstanceOf(Item.class).size(), is(100));
+        assertThat(datastore.cacheStats(Item.class).get().getEvictionCount(), is(900L));
+    }
+    
+    @Test
+    public void frequentlyUsedEntitiesSurviveScan() {
+        InMemoryDatastore datastore = InMemoryDatastore.bounded(100);
+        LongStream.range(0L, 50L).forEach(id -> datastore.insert(item(id, "HOT", id)));
+        for (int i = 0; i < 5; ++i) {
+            LongStream.range(0L, 50L).forEach(id -> datastore.load(Item.createKey(id)));
+        }
+        LongStream.range(1000L, 1400L).forEach(id -> datastore.insert(item(id, "COLD", id)));
+        long hotCount = LongStream.range(0L, 50L).filter(id -> datastore.load(Item.createKey(id)) != null).count();
+        assertThat(hotCount, is(50L));
+    }
+    
+    @Test
+    public void statsAndEvictCache() {
+        InMemoryDatastore datastore = InMemoryDatastore.bounded(10);
+        RangeIndex<Item, Long> index = datastore.addRangeIndex(Item.class, Item::getPrice);
+        datastore.insert(item(1L, "NEW", 10L));
+        datastore.load(Item.createKey(1L));
+        datastore.load(Item.createKey(2L));
+        CacheStats stats = datastore.cacheStats(Item.class).get();
+        assertThat(stats.getHitCount(), is(1L));
+        assertThat(stats.getMissCount(), is(1L));
+        
+        datastore.evictCache();
+        assertThat(datastore.load(Item.createKey(1L)), nullValue());
+        assertThat(index.count(10L), is(0));
+    }
+    
+    @Test
+    public void sortedValuesAreCachedUntilModified() {
+        BoundedEntityTable table = new BoundedEntityTable(10);
+        LongStream.range(0L, 5L).forEach(id -> table.putIfAbsent(id, item(id, "NEW", id)));
+        Collection<Entity> values = table.values();
+        assertThat(table.values(), sameInstance(values));
+        table.get(3L);
+        assertThat(table.values(), sameInstance(values));
+        
+        Item replacement = item(3L, "SOLD", 3L);
+        table.replace(3L, replacement);
+        assertThat(table.values(), not(sameInstance(values)));
+        assertThat(table.valuesBetween(3L, 3L).iterator().next(), sameInstance(replacement));
+        table.remove(0L);
+        assertThat(table.valuesAfter(null).iterator().next(), sameInstance(table.get(1L)));
+    }
+    
+    @Test
+    public void peekedAccessesAreRecordedOnce() {
+        BoundedEntityTable table = new BoundedEntityTable(10);
+        table.putIfAbsent(1L, item(1L, "NEW", 1L));
+        assertThat(table.peek(1L), notNullValue());
+        assertThat(table.peek(2L), nullValue());
+        assertThat(table.stats().getHitCount() + table.stats().getMissCount(), is(0L));
+        table.accessed(1L, true);
+        table.accessed(2L, false);
+        assertThat(table.stats().getHitCount(), is(1L));
+        assertThat(table.stats().getMissCount(), is(1L));
+    }
+    
+    @Test
+    public void readsConcurrentWithEvictAll() throws Exception {
+        BoundedEntityTable table = new BoundedEntityTable(10);
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> readers = new ArrayList<>();
+            for (int i = 0; i < 4; ++i) {
+                readers.add(executor.submit(() -> {
+                    for (long id = 0L; !done.get(); id = (id + 1L) % 20L) {
+                        table.get(id);
+                    }
+                }));
+            }
+            for (int round = 0; round < 2000; ++round) {
+                LongStream.range(0L, 20L).forEach(id -> table.putIfAbsent(id, item(id, "NEW", id)));
+                table.evictAll();
+            }
+            done.set(true);
+            for (Future<?> reader : readers) {
+                reader.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        LongStream.range(0L, 100L).forEach(id -> table.putIfAbsent(id, item(id, "NEW", id)));
+        assertThat(table.size(), is(10));
+        assertThat(table.drainEvicted().size(), is(2000 * 20 + 90));
+    }
+    
+    @Test
+    public void unboundedKindsHaveNoStats() {
+        InMemoryDatastore datastore = InMemoryDatastore.multiThreaded();
+        datastore.insert(item(1L, "NEW", 10L));
+        datastore.evictCache();
+        assertThat(datastore.cacheStats(Item.class).isPresent(), is(false));
+        assertThat(datastore.load(Item.createKey(1L)), notNullValue());
+    }
+    
+}
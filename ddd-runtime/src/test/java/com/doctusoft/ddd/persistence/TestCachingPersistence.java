@@ -0,0 +1,134 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.model.EntityKey;
+import com.doctusoft.ddd.persistence.SampleEntities.Item;
+import com.doctusoft.ddd.persistence.SampleEntities.Tag;
+import com.doctusoft.java.AnException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import static com.doctusoft.ddd.persistence.SampleEntities.*;
+import static com.doctusoft.java.LambdAssert.assertThrows;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class TestCachingPersistence {
+    
+    private final AtomicInteger loadCount = new AtomicInteger();
+    
+    private final AtomicLong nanoTime = new AtomicLong();
+    
+    private InMemoryDatastore datastore;
+    
+    private CachingPersistence persistence;
+    
+    @Before
+    public void setup() {
+        datastore = new InMemoryDatastore(EntityTableFactory.sorted(ConcurrentSkipListMap::new)) {
+            public <T extends Entity> T load(EntityKey<T> key) {
+                loadCount.incrementAndGet();
+                return super.load(key);
+            }
+        };
+        persistence = CachingPersistence.builder(datastore)
+            .cache(Item.class, 2, 1L, TimeUnit.SECONDS)
+            .ticker(nanoTime::get)
+            .build();
+    }
+    
+    @Test
+    public void readThroughWithNegativeCaching() {
+        datastore.insert(item(1L, "NEW", 10L));
+        assertThat(persistence.require(Item.createKey(1L)).getPrice(), is(10L));
+        assertThat(persistence.load(Item.createKey(1L)).getPrice(), is(10L));
+        assertThat(persistence.find(Item.createKey(2L)).isPresent(), is(false));
+        assertThat(persistence.load(Item.createKey(2L)), nullValue());
+        assertThat(loadCount.get(), is(2));
+        
+        persistence.insert(item(2L, "NEW", 20L));
+        assertThat(persistence.load(Item.createKey(2L)).getPrice(), is(20L));
+        persistence.update(item(1L, "SOLD", 15L));
+        assertThat(persistence.load(Item.createKey(1L)).getStatus(), equalTo("SOLD"));
+        assertThat(loadCount.get(), is(4));
+        
+        CacheStats stats = persistence.cacheStats(Item.class).get();
+        assertThat(stats.getHitCount(), is(2L));
+        assertThat(stats.getMissCount(), is(4L));
+    }
+    
+    @Test
+    public void expirationSizeLimitAndEviction() {
+        datastore.insert(item(1L, "NEW", 10L));
+        datastore.insert(tag("a", "first"));
+        persistence.load(Item.createKey(1L));
+        nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(2L));
+        persistence.load(Item.createKey(1L));
+        assertThat(loadCount.get(), is(2));
+        
+        persistence.load(Item.createKey(2L));
+        persistence.load(Item.createKey(3L));
+        persistence.load(Item.createKey(1L));
+        assertThat(loadCount.get(), is(5));
+        assertThat(persistence.cacheStats(Item.class).get().getEvictionCount(), is(3L));
+        
+        persistence.evictCache();
+        persistence.load(Item.createKey(3L));
+        persistence.load(Tag.createKey("a"));
+        persistence.load(Tag.createKey("a"));
+        assertThat(loadCount.get(), is(8));
+        assertThat(persistence.cacheStats(Tag.class).isPresent(), is(false));
+    }
+    
+    @Test
+    public void transactionalWritesAreInvalidatedAfterCompletion() throws Exception {
+        TransactionalInMemoryDatastore transactional = TransactionalInMemoryDatastore.create();
+        CachingPersistence persistence = CachingPersistence.builder(transactional)
+            .cache(Item.class, 10, 1L, TimeUnit.MINUTES)
+            .afterCompletion(transactional::afterCompletion)
+            .build();
+        transactional.insert(item(1L, "NEW", 10L));
+        ExecutorService otherThread = Executors.newSingleThreadExecutor();
+        try {
+            transactional.inTransaction(() -> {
+                persistence.update(item(1L, "SOLD", 20L));
+                assertThat(persistence.load(Item.createKey(1L)).getPrice(), is(20L));
+                try {
+                    assertThat(otherThread.submit(() -> persistence.load(Item.createKey(1L))).get().getPrice(), is(10L));
+                } catch (InterruptedException | ExecutionException e) {
+                    throw new IllegalStateException(e);
+                }
+                return null;
+            });
+        } finally {
+            otherThread.shutdown();
+        }
+        assertThat(persistence.load(Item.createKey(1L)).getPrice(), is(20L));
+        
+        assertThrows(() -> transactional.inTransaction(() -> {
+            persistence.update(item(1L, "SOLD", 30L));
+            assertThat(persistence.load(Item.createKey(1L)).getPrice(), is(30L));
+            throw new IllegalArgumentException("rollback");
+        }), AnException.of(IllegalArgumentException.class));
+        assertThat(persistence.load(Item.createKey(1L)).getPrice(), is(20L));
+    }
+    
+    @Test
+    public void loadManyLoadsMissingKeysOnly() {
+        datastore.insert(item(1L, "NEW", 10L));
+        datastore.insert(tag("a", "first"));
+        persistence.load(Item.createKey(1L));
+        persistence.load(Item.createKey(2L));
+        Map<EntityKey<?>, Entity> entities = persistence.loadMany(Arrays.asList(Item.createKey(1L), Item.createKey(2L), Tag.createKey("a")));
+        assertThat(entities.size(), is(2));
+        assertThat(persistence.cacheStats(Item.class).get().getHitCount(), is(2L));
+        
+        assertThat(persistence.removeMany(Item.class, Collections.singletonList(1L)), is(1));
+        assertThat(persistence.load(Item.createKey(1L)), nullValue());
+    }
+    
+}
@@ -0,0 +1,80 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.persistence.ChangeFeed.Batch;
+import com.doctusoft.ddd.persistence.ChangeFeed.ChangeEvent;
+import com.doctusoft.ddd.persistence.ChangeFeed.Operation;
+import com.doctusoft.ddd.persistence.ChangeFeed.Subscription;
+import com.doctusoft.ddd.persistence.SampleEntities.Item;
+import com.doctusoft.ddd.persistence.SampleEntities.Tag;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+import static com.doctusoft.ddd.persistence.SampleEntities.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class TestChangeFeed {
+    
+    private final InMemoryDatastore datastore = InMemoryDatastore.multiThreaded();
+    
+    @Test
+    public void eventsArePolledInBatches() {
+        ChangeFeed changeFeed = datastore.addChangeFeed(16, Item.class);
+        Subscription subscription = changeFeed.subscribe();
+        datastore.insert(item(1L, "NEW", 10L));
+        datastore.update(item(1L, "SOLD", 10L));
+        datastore.insert(tag("a", "not fed"));
+        datastore.remove(item(1L, "SOLD", 10L));
+        
+        Batch batch = subscription.poll(2);
+        assertThat(batch.isResyncRequired(), is(false));
+        assertThat(operations(batch), equalTo(Arrays.asList(Operation.INSERTED, Operation.UPDATED)));
+        assertThat(batch.getEvents().get(0).getKey(), equalTo(Item.createKey(1L)));
+        assertThat(operations(subscription.poll(10)), equalTo(Arrays.asList(Operation.REMOVED)));
+        assertThat(subscription.poll(10).getEvents().isEmpty(), is(true));
+    }
+    
+    @Test
+    public void lappedSubscriberHasToResync() {
+        ChangeFeed changeFeed = datastore.addChangeFeed(4, Item.class);
+        Subscription subscription = changeFeed.subscribe();
+        LongStream.range(0L, 10L).forEach(id -> datastore.insert(item(id, "NEW", id)));
+        assertThat(subscription.poll(10).isResyncRequired(), is(true));
+        
+        datastore.insert(item(10L, "NEW", 10L));
+        Batch batch = subscription.poll(10);
+        assertThat(batch.isResyncRequired(), is(false));
+        assertThat(batch.getEvents().size(), is(1));
+    }
+    
+    @Test
+    public void concurrentPublishersAreNotLost() throws Exception {
+        ChangeFeed changeFeed = datastore.addChangeFeed(1 << 12, Item.class, Tag.class);
+        Subscription subscription = changeFeed.subscribe();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; ++t) {
+                long offset = t * 1000L;
+                futures.add(executor.submit(() -> LongStream.range(offset, offset + 500L)
+                    .forEach(id -> datastore.insert(item(id, "NEW", id)))));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        List<ChangeEvent> events = subscription.poll(5000).getEvents();
+        assertThat(events.size(), is(2000));
+        assertThat(events.stream().map(ChangeEvent::getKey).distinct().count(), is(2000L));
+    }
+    
+    private static List<Operation> operations(Batch batch) {
+        return batch.getEvents().stream().map(ChangeEvent::getOperation).collect(Collectors.toList());
+    }
+    
+}
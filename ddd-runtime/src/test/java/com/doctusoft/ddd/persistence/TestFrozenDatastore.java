@@ -0,0 +1,54 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.persistence.SampleEntities.Item;
+import com.doctusoft.ddd.persistence.SampleEntities.Tag;
+import com.doctusoft.java.AnException;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.*;
+
+import static com.doctusoft.ddd.persistence.SampleEntities.*;
+import static com.doctusoft.java.LambdAssert.assertThrows;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class TestFrozenDatastore {
+    
+    @Test
+    public void frozenKindsAreLookedUp() {
+        InMemoryDatastore source = InMemoryDatastore.multiThreaded();
+        Arrays.asList(10L, 9L, 1L).forEach(id -> source.insert(item(id, "NEW", id)));
+        source.insert(tag("b", "second"));
+        source.insert(tag("a", "first"));
+        
+        FrozenDatastore frozen = FrozenDatastore.freeze(source, Item.class, Tag.class);
+        assertThat(frozen.load(Item.createKey(9L)), equalTo(item(9L, "NEW", 9L)));
+        assertThat(frozen.load(Item.createKey(2L)), nullValue());
+        assertThat(frozen.load(Tag.createKey("a")).getLabel(), equalTo("first"));
+        assertThat(ids(frozen.loadSmallDataset(Item.class)), equalTo(Arrays.asList(1L, 9L, 10L)));
+        assertThat(ids(frozen.loadByIdAsc(Item.class, Arrays.asList(10L, 2L, 1L))), equalTo(Arrays.asList(1L, 10L)));
+    }
+    
+    @Test
+    public void refreshReplacesAllKinds() {
+        FrozenDatastore frozen = FrozenDatastore.builder().add(Item.class, Arrays.asList(item(1L, "NEW", 1L))).build();
+        frozen.refresh(FrozenDatastore.builder().add(Tag.class, Arrays.asList(tag("a", "first"))));
+        assertThat(frozen.load(Item.createKey(1L)), nullValue());
+        assertThat(frozen.load(Tag.createKey("a")), notNullValue());
+    }
+    
+    @Test
+    public void writesAndDuplicatesAreRejected() {
+        FrozenDatastore frozen = FrozenDatastore.builder().build();
+        assertThrows(() -> frozen.insert(item(1L, "NEW", 1L)), AnException.of(UnsupportedOperationException.class));
+        assertThrows(() -> frozen.save(item(1L, "NEW", 1L)), AnException.of(UnsupportedOperationException.class));
+        assertThrows(() -> FrozenDatastore.builder().add(Item.class, Arrays.asList(item(1L, "NEW", 1L), item(1L, "OLD", 1L))).build(),
+            AnException.of(IllegalArgumentException.class));
+    }
+    
+    private static List<Long> ids(Collection<Item> items) {
+        return items.stream().map(Item::getId).collect(Collectors.toList());
+    }
+    
+}
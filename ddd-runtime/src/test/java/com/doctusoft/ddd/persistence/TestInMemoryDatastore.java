@@ -0,0 +1,226 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.model.EntityKey;
+import com.doctusoft.ddd.persistence.SampleEntities.Item;
+import com.doctusoft.ddd.persistence.SampleEntities.Tag;
+import com.doctusoft.java.AnException;
+import com.doctusoft.math.ClosedRange;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.*;
+
+import static com.doctusoft.ddd.persistence.SampleEntities.*;
+import static com.doctusoft.java.LambdAssert.assertThrows;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class TestInMemoryDatastore {
+    
+    private InMemoryDatastore datastore;
+    
+    @Before
+    public void setup() {
+        datastore = InMemoryDatastore.multiThreaded();
+    }
+    
+    @Test
+    public void insertLoadUpdateRemove() {
+        datastore.insert(item(1L, "NEW", 100L));
+        assertThat(datastore.load(Item.createKey(1L)).getStatus(), equalTo("NEW"));
+        
+        datastore.update(item(1L, "SOLD", 100L));
+        assertThat(datastore.require(Item.createKey(1L)).getStatus(), equalTo("SOLD"));
+        
+        datastore.remove(item(1L, "SOLD", 100L));
+        assertThat(datastore.load(Item.createKey(1L)), nullValue());
+    }
+    
+    @Test
+    public void insertExistingThrowsException() {
+        datastore.insert(item(1L, "NEW", 100L));
+        assertThrows(() -> datastore.insert(item(1L, "NEW", 100L)), AnException.of(IllegalStateException.class));
+    }
+    
+    @Test
+    public void updateMissingThrowsException() {
+        assertThrows(() -> datastore.update(item(1L, "NEW", 100L)), AnException.of(IllegalStateException.class));
+    }
+    
+    @Test
+    public void kindsAreSeparated() {
+        datastore.insert(item(1L, "NEW", 100L));
+        datastore.insert(tag("1", "first"));
+        assertThat(datastore.allInstanceOf(Item.class).size(), is(1));
+        assertThat(datastore.allInstanceOf(Tag.class).size(), is(1));
+        assertThat(datastore.load(Tag.createKey("1")).getLabel(), equalTo("first"));
+    }
+    
+    @Test
+    public void allInstanceOfOrderedById() {
+        Arrays.asList(10L, 9L, 100L, 1L).forEach(id -> datastore.insert(item(id, "NEW", id)));
+        assertThat(ids(datastore.allInstanceOf(Item.class)), equalTo(Arrays.asList(1L, 9L, 10L, 100L)));
+    }
+    
+    @Test
+    public void hashedOrderedViewRefreshedAfterWrite() {
+        InMemoryDatastore hashed = InMemoryDatastore.hashed();
+        Arrays.asList(3L, 1L).forEach(id -> hashed.insert(item(id, "NEW", id)));
+        assertThat(ids(hashed.allInstanceOf(Item.class)), equalTo(Arrays.asList(1L, 3L)));
+        hashed.insert(item(2L, "NEW", 2L));
+        hashed.remove(item(3L, "NEW", 3L));
+        assertThat(ids(hashed.allInstanceOf(Item.class)), equalTo(Arrays.asList(1L, 2L)));
+    }
+    
+    @Test
+    public void bulkOperations() {
+        datastore.insertMany(Item.class, Arrays.asList(item(3L, "NEW", 3L), item(1L, "NEW", 1L), item(2L, "NEW", 2L)));
+        assertThat(ids(datastore.allInstanceOf(Item.class)), equalTo(Arrays.asList(1L, 2L, 3L)));
+        
+        datastore.updateMany(Item.class, Arrays.asList(item(2L, "SOLD", 2L), item(1L, "SOLD", 1L)));
+        List<Item> loaded = datastore.loadByIdAsc(Item.class, Arrays.asList(3L, 2L, 1L, 4L));
+        assertThat(ids(loaded), equalTo(Arrays.asList(1L, 2L, 3L)));
+        assertThat(loaded.stream().map(Item::getStatus).collect(Collectors.toList()), equalTo(Arrays.asList("SOLD", "SOLD", "NEW")));
+    }
+    
+    @Test
+    public void failedBulkOperationsAreRolledBack() {
+        datastore.insert(item(2L, "NEW", 2L));
+        assertThrows(() -> datastore.insertMany(Item.class, Arrays.asList(item(1L, "NEW", 1L), item(2L, "NEW", 2L),
+            item(3L, "NEW", 3L))), AnException.of(IllegalStateException.class));
+        assertThrows(() -> datastore.insertMany(Item.class, Arrays.asList(item(4L, "NEW", 4L), item(4L, "NEW", 4L))),
+            AnException.of(IllegalArgumentException.class));
+        assertThat(ids(datastore.allInstanceOf(Item.class)), equalTo(Arrays.asList(2L)));
+        
+        assertThrows(() -> datastore.updateMany(Item.class, Arrays.asList(item(2L, "SOLD", 2L), item(3L, "SOLD", 3L))),
+            AnException.of(IllegalStateException.class));
+        assertThat(datastore.load(Item.createKey(2L)).getStatus(), equalTo("NEW"));
+    }
+    
+    @Test
+    public void parallelScan() {
+        datastore.insertMany(Item.class, LongStream.range(0L, 10000L).mapToObj(id -> item(id, id % 2 == 0 ? "EVEN" : "ODD", id))
+            .collect(Collectors.toList()));
+        assertThat(datastore.scan(Item.class).parallel().mapToLong(Item::getPrice).sum(), is(49995000L));
+        List<Item> odd = datastore.scan(Item.class, item -> "ODD".equals(item.getStatus())).parallel().collect(Collectors.toList());
+        assertThat(odd.size(), is(5000));
+        assertThat(odd.get(0).getId(), is(1L));
+        assertThat(odd.get(4999).getId(), is(9999L));
+        assertThat(datastore.scan(Tag.class).count(), is(0L));
+    }
+    
+    @Test
+    public void idRangeScans() {
+        for (InMemoryDatastore store : Arrays.asList(datastore, InMemoryDatastore.hashed(), InMemoryDatastore.compactLongIds())) {
+            Arrays.asList(10L, 9L, 100L, 1L, 11L).forEach(id -> store.insert(item(id, "NEW", id)));
+            assertThat(ids(store.loadByIdInNumericRange(Item.class, ClosedRange.create(9L, 11L))), equalTo(Arrays.asList(9L, 10L, 11L)));
+            assertThat(ids(store.loadByIdInNumericRange(Item.class, ClosedRange.create(2L, 1000L), 2)), equalTo(Arrays.asList(9L, 10L)));
+            assertThat(ids(store.loadByIdInNumericRange(Item.class, ClosedRange.create(12L, 99L))), equalTo(Collections.emptyList()));
+        }
+        Arrays.asList("b", "ab", "c", "a").forEach(id -> datastore.insert(tag(id, id)));
+        List<Tag> tags = datastore.loadByIdInLexicographicalRange(Tag.class, ClosedRange.create("a", "b"));
+        assertThat(tags.stream().map(Tag::getId).collect(Collectors.toList()), equalTo(Arrays.asList("a", "ab", "b")));
+        assertThrows(() -> datastore.loadByIdInNumericRange(Tag.class, ClosedRange.create(1L, 2L)),
+            AnException.of(IllegalStateException.class));
+    }
+    
+    @Test
+    public void loadMany() {
+        datastore.insert(item(1L, "NEW", 10L));
+        datastore.insert(item(2L, "NEW", 20L));
+        datastore.insert(tag("a", "first"));
+        List<EntityKey<?>> keys = Arrays.asList(Item.createKey(2L), Tag.createKey("a"), Item.createKey(3L), Tag.createKey("b"));
+        for (GenericPersistence persistence : Arrays.asList(datastore, FrozenDatastore.freeze(datastore, Item.class, Tag.class))) {
+            Map<EntityKey<?>, Entity> entities = persistence.loadMany(keys);
+            assertThat(entities.keySet(), equalTo(new HashSet<>(Arrays.asList(Item.createKey(2L), Tag.createKey("a")))));
+            assertThat(((Item) entities.get(Item.createKey(2L))).getPrice(), is(20L));
+        }
+    }
+    
+    @Test
+    public void saveMany() {
+        datastore.insert(item(1L, "NEW", 10L));
+        datastore.insert(item(2L, "NEW", 20L));
+        datastore.saveMany(Item.class, Arrays.asList(item(2L, "PAID", 20L), item(3L, "NEW", 30L), item(3L, "PAID", 30L)));
+        assertThat(datastore.require(Item.createKey(2L)).getStatus(), equalTo("PAID"));
+        assertThat(datastore.require(Item.createKey(3L)).getStatus(), equalTo("PAID"));
+        assertThat(datastore.existingIds(Item.class, Arrays.asList(1L, 3L, 4L)), equalTo(new HashSet<>(Arrays.asList(1L, 3L))));
+        assertThrows(() -> datastore.saveMany((Class) Item.class, Collections.singletonList(tag("a", "first"))),
+            AnException.of(IllegalArgumentException.class));
+    }
+    
+    @Test
+    public void bulkRemove() {
+        datastore.insertMany(Item.class, LongStream.rangeClosed(1L, 10L).mapToObj(id -> item(id, "NEW", id)).collect(Collectors.toList()));
+        Arrays.asList("a", "b", "c").forEach(id -> datastore.insert(tag(id, id)));
+        Aggregate<Item, Void> total = datastore.addAggregate(Item.class, Item::getPrice);
+        assertThat(datastore.removeMany(Item.class, Arrays.asList(3L, 1L, 42L)), is(2));
+        assertThat(datastore.removeByIdInNumericRange(Item.class, ClosedRange.create(5L, 7L)), is(3));
+        assertThat(datastore.removeByKeys(Arrays.asList(Item.createKey(10L), Tag.createKey("b"), Tag.createKey("x"))), is(2));
+        assertThat(ids(datastore.loadSmallDataset(Item.class)), equalTo(Arrays.asList(2L, 4L, 8L, 9L)));
+        assertThat(datastore.loadSmallDataset(Tag.class).size(), is(2));
+        assertThat(total.count(), is(4L));
+        assertThat(total.sum(), is(23L));
+        assertThrows(() -> datastore.removeByIdInNumericRange(Tag.class, ClosedRange.create(1L, 2L)),
+            AnException.of(IllegalStateException.class));
+    }
+    
+    @Test
+    public void batchesAreNotSeenPartiallyApplied() throws InterruptedException {
+        datastore.insertMany(Item.class, Arrays.asList(item(1L, "0", 0L), item(2L, "0", 0L)));
+        Thread writer = new Thread(() -> {
+            for (long version = 1L; version <= 2000L; ++version) {
+                String status = String.valueOf(version);
+                datastore.updateMany(Item.class, Arrays.asList(item(1L, status, 0L), item(2L, status, 0L)));
+            }
+        });
+        writer.start();
+        while (writer.isAlive()) {
+            List<Item> items = datastore.loadByIdAsc(Item.class, Arrays.asList(1L, 2L));
+            assertThat(items.get(1).getStatus(), equalTo(items.get(0).getStatus()));
+        }
+        writer.join();
+    }
+    
+    @Test
+    public void keysetStream() {
+        for (InMemoryDatastore store : Arrays.asList(datastore, InMemoryDatastore.hashed(), InMemoryDatastore.compactLongIds())) {
+            store.insertMany(Item.class, LongStream.range(0L, 2500L).mapToObj(id -> item(2500L - id, "NEW", id)).collect(Collectors.toList()));
+            assertThat(ids(store.stream(Item.class, 1000).collect(Collectors.toList())),
+                equalTo(LongStream.rangeClosed(1L, 2500L).boxed().collect(Collectors.toList())));
+        }
+        Arrays.asList("b", "ab", "c", "a").forEach(id -> datastore.insert(tag(id, id)));
+        assertThat(datastore.stream(Tag.class, 2).map(Tag::getId).collect(Collectors.joining(",")), equalTo("a,ab,b,c"));
+        assertThat(datastore.stream(Tag.class, 4).count(), is(4L));
+        assertThrows(() -> datastore.stream(Tag.class, 0), AnException.of(IllegalArgumentException.class));
+    }
+    
+    @Test
+    public void aggregates() {
+        datastore.insert(item(1L, "NEW", 10L));
+        Aggregate<Item, String> byStatus = datastore.addAggregate(Item.class, Item::getStatus, Item::getPrice);
+        Aggregate<Item, Void> total = datastore.addAggregate(Item.class, Item::getPrice);
+        datastore.insert(item(2L, "NEW", 20L));
+        datastore.insert(item(3L, "SOLD", 30L));
+        datastore.update(item(1L, "SOLD", 15L));
+        datastore.remove(item(2L, "NEW", 20L));
+        
+        assertThat(total.count(), is(2L));
+        assertThat(total.sum(), is(45L));
+        assertThat(byStatus.count("SOLD"), is(2L));
+        assertThat(byStatus.sum("SOLD"), is(45L));
+        assertThat(byStatus.count("NEW"), is(0L));
+        assertThat(byStatus.countsByGroup(), equalTo(Collections.singletonMap("SOLD", 2L)));
+        
+        Aggregate<Item, Object> nullGroups = datastore.addGroupCounter(Item.class, item -> null);
+        assertThat(nullGroups.count(null), is(2L));
+        assertThat(nullGroups.sum(), is(0L));
+    }
+    
+    private static List<Long> ids(Collection<Item> items) {
+        return items.stream().map(Item::getId).collect(Collectors.toList());
+    }
+    
+}
@@ -0,0 +1,237 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.BinaryEntityCodec;
+import com.doctusoft.ddd.model.EntityWithLongId;
+import com.doctusoft.ddd.model.Instantiator;
+import com.doctusoft.ddd.persistence.SampleEntities.Item;
+import com.doctusoft.ddd.persistence.SampleEntities.Tag;
+import com.doctusoft.java.AnException;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+import java.util.zip.CRC32;
+
+import static com.doctusoft.ddd.persistence.SampleEntities.*;
+import static com.doctusoft.java.LambdAssert.assertThrows;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class TestInMemoryJournal {
+    
+    private static final BinaryEntityCodec CODEC = new BinaryEntityCodec(new SampleInstantiator());
+    
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+    
+    @Test
+    public void restoresJournaledChanges() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (InMemoryJournal journal = InMemoryJournal.open(directory, CODEC)) {
+            InMemoryDatastore datastore = InMemoryDatastore.multiThreaded();
+            journal.attach(datastore, Item.class, Tag.class);
+            datastore.insert(item(1L, "NEW", 10L));
+            datastore.insert(item(2L, "NEW", 20L));
+            datastore.insert(tag("a", "first"));
+            datastore.update(item(1L, "SOLD", 15L));
+            datastore.remove(item(2L, "NEW", 20L));
+        }
+        InMemoryDatastore restored = restore(directory);
+        assertThat(restored.load(Item.createKey(1L)), equalTo(item(1L, "SOLD", 15L)));
+        assertThat(restored.load(Item.createKey(2L)), nullValue());
+        assertThat(restored.load(Tag.createKey("a")), equalTo(tag("a", "first")));
+    }
+    
+    @Test(expected = IllegalArgumentException.class)
+    public void boundedKindsAreRejected() throws IOException {
+        try (InMemoryJournal journal = InMemoryJournal.open(folder.getRoot().toPath(), CODEC)) {
+            journal.attach(InMemoryDatastore.bounded(10), Item.class);
+        }
+    }
+    
+    @Test
+    public void compactionReplacesJournal() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (InMemoryJournal journal = InMemoryJournal.open(directory, CODEC)) {
+            InMemoryDatastore datastore = InMemoryDatastore.multiThreaded();
+            journal.attach(datastore, Item.class);
+            datastore.insert(item(1L, "NEW", 10L));
+            datastore.insert(item(2L, "NEW", 20L));
+            journal.compact();
+            datastore.remove(item(1L, "NEW", 10L));
+            journal.sync();
+        }
+        assertThat(Files.exists(directory.resolve("snapshot.dat")), is(true));
+        assertThat(Files.exists(directory.resolve("journal-0.log")), is(false));
+        
+        InMemoryDatastore restored = restore(directory);
+        assertThat(restored.load(Item.createKey(1L)), nullValue());
+        assertThat(restored.load(Item.createKey(2L)), equalTo(item(2L, "NEW", 20L)));
+    }
+    
+    @Test
+    public void scheduledCompaction() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        try (InMemoryJournal journal = InMemoryJournal.open(directory, CODEC)) {
+            InMemoryDatastore datastore = InMemoryDatastore.multiThreaded();
+            journal.attach(datastore, Item.class);
+            datastore.insert(item(1L, "NEW", 10L));
+            journal.scheduleCompaction(10L, TimeUnit.MILLISECONDS);
+            for (int i = 0; i < 500 && !Files.exists(directory.resolve("snapshot.dat")); ++i) {
+                Thread.sleep(10L);
+            }
+            datastore.insert(item(2L, "NEW", 20L));
+            datastore.remove(item(1L, "NEW", 10L));
+            journal.sync();
+        }
+        assertThat(Files.exists(directory.resolve("snapshot.dat")), is(true));
+        
+        InMemoryDatastore restored = restore(directory);
+        assertThat(restored.load(Item.createKey(1L)), nullValue());
+        assertThat(restored.load(Item.createKey(2L)), equalTo(item(2L, "NEW", 20L)));
+    }
+    
+    @Test
+    public void concurrentCompactions() throws Exception {
+        Path directory = folder.getRoot().toPath();
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (InMemoryJournal journal = InMemoryJournal.open(directory, CODEC)) {
+            InMemoryDatastore datastore = InMemoryDatastore.multiThreaded();
+            journal.attach(datastore, Item.class);
+            List<Future<?>> compactions = new ArrayList<>();
+            for (long id = 1L; id <= 200L; ++id) {
+                datastore.insert(item(id, "NEW", id));
+                if (id % 10L == 0L) {
+                    compactions.add(executor.submit(() -> {
+                        journal.compact();
+                        return null;
+                    }));
+                }
+            }
+            for (Future<?> compaction : compactions) {
+                compaction.get();
+            }
+            journal.sync();
+        } finally {
+            executor.shutdown();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            assertThat(files.filter(file -> file.toString().endsWith(".tmp")).count(), is(0L));
+        }
+        
+        InMemoryDatastore restored = restore(directory);
+        assertThat(restored.allInstanceOf(Item.class).size(), is(200));
+    }
+    
+    @Test
+    public void tornRecordEndsReplay() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (InMemoryJournal journal = InMemoryJournal.open(directory, CODEC)) {
+            InMemoryDatastore datastore = InMemoryDatastore.multiThreaded();
+            journal.attach(datastore, Item.class);
+            datastore.insert(item(1L, "NEW", 10L));
+            journal.sync();
+            datastore.insert(item(2L, "NEW", 20L));
+        }
+        Path journalFile = directory.resolve("journal-0.log");
+        byte[] content = Files.readAllBytes(journalFile);
+        Files.write(journalFile, Arrays.copyOf(content, content.length - 3));
+        
+        InMemoryDatastore restored = restore(directory);
+        assertThat(restored.load(Item.createKey(1L)), equalTo(item(1L, "NEW", 10L)));
+        assertThat(restored.load(Item.createKey(2L)), nullValue());
+        restored.insert(item(2L, "NEW", 20L));
+    }
+    
+    @Test(expected = InvalidClassException.class)
+    public void changedAttributesAreRejected() throws IOException {
+        Path directory = folder.getRoot().toPath();
+        try (InMemoryJournal journal = InMemoryJournal.open(directory, CODEC)) {
+            InMemoryDatastore datastore = InMemoryDatastore.multiThreaded();
+            journal.attach(datastore, Item.class);
+            datastore.insert(item(1L, "NEW", 10L));
+        }
+        // the schema of the first record is overwritten, as if the attributes of the kind had changed
+        Path journalFile = directory.resolve("journal-0.log");
+        ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(journalFile));
+        int length = content.getInt(8);
+        int schemaOffset = 16 + 1 + 2 + content.getShort(17);
+        content.putInt(schemaOffset, content.getInt(schemaOffset) + 1);
+        CRC32 crc = new CRC32();
+        crc.update(content.array(), 16, length);
+        content.putInt(12, (int) crc.getValue());
+        Files.write(journalFile, content.array());
+        
+        restore(directory);
+    }
+    
+    @Test
+    public void onlyAllowedTypesAreDeserialized() {
+        Holder holder = new Holder();
+        holder.setId(1L);
+        holder.setValue(new ArrayList<>(Arrays.asList("a", 1L)));
+        assertThat(CODEC.decode(Holder.class, CODEC.encode(holder)), equalTo(holder));
+        
+        holder.setValue(new Unknown());
+        byte[] data = CODEC.encode(holder);
+        assertThrows(() -> CODEC.decode(Holder.class, data), AnException.of(IllegalArgumentException.class));
+        BinaryEntityCodec permissive = new BinaryEntityCodec(new SampleInstantiator(), type -> true);
+        assertThat(permissive.decode(Holder.class, data).getValue(), instanceOf(Unknown.class));
+    }
+    
+    @Test
+    public void smallWrappersAreEncodedNatively() {
+        Holder holder = new Holder();
+        holder.setId(1L);
+        for (Object value : Arrays.asList(1.5f, Float.NaN, (short) -300, Short.MAX_VALUE, (byte) -1, Byte.MIN_VALUE,
+            'x', '\uFFFF')) {
+            holder.setValue(value);
+            byte[] data = CODEC.encode(holder);
+            assertThat(CODEC.decode(Holder.class, data), equalTo(holder));
+            assertThat(data.length <= 8, is(true));
+        }
+    }
+    
+    private static InMemoryDatastore restore(Path directory) throws IOException {
+        InMemoryDatastore datastore = InMemoryDatastore.multiThreaded();
+        try (InMemoryJournal journal = InMemoryJournal.open(directory, CODEC)) {
+            journal.attach(datastore, Item.class, Tag.class);
+        }
+        return datastore;
+    }
+    
+    @Data
+    @NoArgsConstructor
+    public static class Holder implements EntityWithLongId {
+        
+        public Class<Holder> getKind() { return Holder.class; }
+        
+        private Long id;
+        
+        private Object value;
+    }
+    
+    public static class Unknown implements Serializable {}
+    
+    private static final class SampleInstantiator implements Instantiator {
+        
+        public <T> T instantiate(Class<T> kind) {
+            try {
+                return kind.newInstance();
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+    }
+    
+}
@@ -0,0 +1,146 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.DynaBeanEntities;
+import com.doctusoft.ddd.model.EntityKey;
+import com.doctusoft.ddd.model.EntityWithLongId;
+import com.doctusoft.ddd.persistence.InMemorySharedDatastore.Sharing;
+import com.doctusoft.java.AnException;
+import org.junit.Test;
+
+import java.math.BigDecimal;
+import java.time.Instant;
+import java.util.*;
+
+import static com.doctusoft.java.LambdAssert.assertThrows;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class TestInMemorySharedDatastore {
+    
+    private static final EntityKey<Order> KEY = EntityKey.create(Order.class, 1L);
+    
+    @Test
+    public void copyIsolatesLoadedInstances() {
+        InMemorySharedDatastore datastore = populate(Sharing.COPY);
+        datastore.load(KEY).setStatus("MODIFIED");
+        assertThat(datastore.load(KEY).getStatus(), equalTo("NEW"));
+    }
+    
+    @Test
+    public void copyOnWriteIsolatesLoadedInstances() {
+        InMemorySharedDatastore datastore = populate(Sharing.COPY_ON_WRITE);
+        Order loaded = datastore.load(KEY);
+        assertThat(DynaBeanEntities.unmodifiedFrozenOf(loaded), notNullValue());
+        loaded.setStatus("MODIFIED");
+        assertThat(DynaBeanEntities.unmodifiedFrozenOf(loaded), nullValue());
+        assertThat(loaded.getStatus(), equalTo("MODIFIED"));
+        assertThat(datastore.load(KEY).getStatus(), equalTo("NEW"));
+        
+        datastore.update(loaded);
+        assertThat(datastore.load(KEY).getStatus(), equalTo("MODIFIED"));
+    }
+    
+    @Test
+    public void viewsEqualByTheirTargets() {
+        InMemorySharedDatastore datastore = populate(Sharing.READ_ONLY);
+        Order view = datastore.load(KEY);
+        Order otherView = datastore.load(KEY);
+        Order frozen = DynaBeanEntities.unmodifiedFrozenOf(view);
+        assertThat(view.equals(otherView) && otherView.equals(view), is(true));
+        assertThat(view.equals(frozen), is(true));
+        assertThat(view.hashCode(), is(otherView.hashCode()));
+        assertThat(view.hashCode(), is(frozen.hashCode()));
+    }
+    
+    @Test
+    public void readOnlyRejectsModification() {
+        InMemorySharedDatastore datastore = populate(Sharing.READ_ONLY);
+        Order loaded = datastore.load(KEY);
+        assertThat(loaded, sameInstance(datastore.load(KEY)));
+        assertThrows(() -> loaded.setStatus("MODIFIED"), AnException.of(UnsupportedOperationException.class));
+        
+        Order copy = DynaBeanEntities.copy(loaded);
+        copy.setStatus("MODIFIED");
+        datastore.update(copy);
+        assertThat(datastore.load(KEY).getStatus(), equalTo("MODIFIED"));
+    }
+    
+    @Test
+    public void compactBinaryDecodesNewInstances() {
+        InMemorySharedDatastore datastore = populate(Sharing.COMPACT_BINARY);
+        Order loaded = datastore.load(KEY);
+        assertThat(loaded.getId(), equalTo(1L));
+        assertThat(loaded.getStatus(), equalTo("NEW"));
+        assertThat(loaded.getAmount(), equalTo(new BigDecimal("-12.50")));
+        assertThat(loaded.getCreatedAt(), equalTo(Instant.ofEpochSecond(1_500_000_000L, 123)));
+        assertThat(loaded.getUrgent(), nullValue());
+        assertThat(loaded.getWeight(), equalTo(-0.1));
+        assertThat(datastore.load(KEY).getKey(), equalTo(KEY));
+        assertThat(loaded, not(sameInstance(datastore.load(KEY))));
+        
+        loaded.setStatus("MODIFIED");
+        assertThat(datastore.load(KEY).getStatus(), equalTo("NEW"));
+        assertThat(datastore.allInstanceOf(Order.class).iterator().next().getStatus(), equalTo("NEW"));
+    }
+    
+    private static InMemorySharedDatastore populate(Sharing sharing) {
+        InMemorySharedDatastore datastore = InMemorySharedDatastore.multiThreaded(sharing);
+        Order order = new DynaBeanEntities().instantiate(Order.class);
+        order.setId(1L);
+        order.setStatus("NEW");
+        order.setAmount(new BigDecimal("-12.50"));
+        order.setCreatedAt(Instant.ofEpochSecond(1_500_000_000L, 123));
+        order.setWeight(-0.1);
+        datastore.insert(order);
+        order.setStatus("CHANGED AFTER INSERT");
+        return datastore;
+    }
+    
+    @Test
+    public void viewsRejectMutableAttributes() {
+        DynaBeanEntities.checkShareable(Order.class);
+        Basket basket = new DynaBeanEntities().instantiate(Basket.class);
+        basket.setId(1L);
+        basket.setItems(new ArrayList<>(Arrays.asList("apple")));
+        for (Sharing sharing : Arrays.asList(Sharing.COPY_ON_WRITE, Sharing.READ_ONLY)) {
+            InMemorySharedDatastore datastore = new InMemorySharedDatastore(TreeMap::new, sharing);
+            assertThrows(() -> datastore.insert(basket), AnException.of(IllegalArgumentException.class));
+        }
+        assertThrows(() -> DynaBeanEntities.copyOnWrite(basket), AnException.of(IllegalArgumentException.class));
+    }
+    
+    public interface Basket extends EntityWithLongId {
+        
+        default Class<Basket> getKind() { return Basket.class; }
+        
+        List<String> getItems();
+        
+        void setItems(List<String> items);
+    }
+    
+    public interface Order extends EntityWithLongId {
+        
+        default Class<Order> getKind() { return Order.class; }
+        
+        String getStatus();
+        
+        void setStatus(String status);
+        
+        BigDecimal getAmount();
+        
+        void setAmount(BigDecimal amount);
+        
+        Instant getCreatedAt();
+        
+        void setCreatedAt(Instant createdAt);
+        
+        Boolean getUrgent();
+        
+        void setUrgent(Boolean urgent);
+        
+        Double getWeight();
+        
+        void setWeight(Double weight);
+    }
+    
+}
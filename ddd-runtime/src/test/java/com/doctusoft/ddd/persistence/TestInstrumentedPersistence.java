@@ -0,0 +1,70 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.persistence.PersistenceMetrics.Operation;
+import com.doctusoft.ddd.persistence.SampleEntities.Item;
+import com.doctusoft.ddd.persistence.SampleEntities.Tag;
+import com.doctusoft.java.AnException;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+import static com.doctusoft.ddd.persistence.SampleEntities.*;
+import static com.doctusoft.java.LambdAssert.assertThrows;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class TestInstrumentedPersistence {
+    
+    @Test
+    public void recordsOperationsPerKind() {
+        AtomicLong nanoTime = new AtomicLong();
+        PersistenceMetricsRegistry registry = new PersistenceMetricsRegistry();
+        InMemoryDatastore datastore = new InMemoryDatastore(EntityTableFactory.sorted(ConcurrentSkipListMap::new)) {
+            public <T extends Entity> void insert(T entity) {
+                nanoTime.addAndGet(100L);
+                super.insert(entity);
+            }
+        };
+        InstrumentedPersistence persistence = InstrumentedPersistence.create(datastore, registry, nanoTime::get);
+        persistence.insert(item(1L, "NEW", 10L));
+        persistence.insert(item(2L, "NEW", 20L));
+        assertThrows(() -> persistence.insert(item(1L, "NEW", 10L)), AnException.of(IllegalStateException.class));
+        persistence.insertMany(Tag.class, Arrays.asList(tag("a", "first"), tag("b", "second")));
+        persistence.loadByIdAsc(Item.class, Arrays.asList(1L, 2L, 3L));
+        persistence.loadMany(Arrays.asList(Item.createKey(1L), Tag.createKey("a")));
+        
+        OperationStats inserts = registry.stats(Item.class, Operation.INSERT).get();
+        assertThat(inserts.getCallCount(), is(3L));
+        assertThat(inserts.getErrorCount(), is(1L));
+        assertThat(inserts.getTotalNanos(), is(300L));
+        assertThat(inserts.getMaxNanos(), is(100L));
+        assertThat(inserts.percentileNanos(0.5), is(100L));
+        assertThat(registry.stats(Tag.class, Operation.INSERT_MANY).get().getItemCount(), is(2L));
+        assertThat(registry.stats(Tag.class, Operation.INSERT).isPresent(), is(false));
+        assertThat(registry.stats(Item.class, Operation.LOAD_BY_ID_ASC).get().getItemCount(), is(3L));
+        assertThat(registry.stats(Entity.class, Operation.LOAD_MANY).get().getCallCount(), is(1L));
+        assertThat(registry.allStats().size(), is(4));
+    }
+    
+    @Test
+    public void latencyHistogram() {
+        for (long nanos : new long[] { 0L, 3L, 4L, 5L, 7L, 8L, 1000L, 123456789L, Long.MAX_VALUE }) {
+            int bucket = PersistenceMetricsRegistry.bucketOf(nanos);
+            assertThat(PersistenceMetricsRegistry.upperBoundOf(bucket) >= nanos, is(true));
+            assertThat(bucket == 0 || PersistenceMetricsRegistry.upperBoundOf(bucket - 1) < nanos, is(true));
+        }
+        PersistenceMetricsRegistry registry = new PersistenceMetricsRegistry();
+        for (long nanos = 1L; nanos <= 1000L; ++nanos) {
+            registry.record(Operation.LOAD, Item.class, 1, nanos * 1000L, null);
+        }
+        OperationStats loads = registry.stats(Item.class, Operation.LOAD).get();
+        assertThat(loads.meanNanos(), is(500500L));
+        long p99 = loads.percentileNanos(0.99);
+        assertThat(p99 >= 990000L && p99 <= 990000L * 5 / 4, is(true));
+        assertThat(loads.percentileNanos(1.0), is(1000000L));
+    }
+    
+}
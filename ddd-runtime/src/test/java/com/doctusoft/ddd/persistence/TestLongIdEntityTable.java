@@ -0,0 +1,88 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.persistence.SampleEntities.Item;
+import com.doctusoft.ddd.persistence.SampleEntities.Tag;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.*;
+
+import static com.doctusoft.ddd.persistence.SampleEntities.*;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class TestLongIdEntityTable {
+    
+    @Test
+    public void extremeIds() {
+        LongIdEntityTable table = new LongIdEntityTable();
+        for (long id : new long[] {0L, -1L, Long.MIN_VALUE, Long.MAX_VALUE}) {
+            assertThat(table.putIfAbsent(id, item(id, "NEW", 0L)), nullValue());
+        }
+        assertThat(table.size(), is(4));
+        assertThat(ids(table.values()), equalTo(Arrays.asList(Long.MIN_VALUE, -1L, 0L, Long.MAX_VALUE)));
+        assertThat(table.remove(0L), notNullValue());
+        assertThat(table.get(0L), nullValue());
+        assertThat(table.get(Long.MIN_VALUE), notNullValue());
+    }
+    
+    @Test
+    public void randomOperationsMatchTreeMap() {
+        Random random = new Random(42L);
+        LongIdEntityTable table = new LongIdEntityTable();
+        TreeMap<Long, Entity> expected = new TreeMap<>();
+        for (int i = 0; i < 100_000; ++i) {
+            long id = random.nextInt(5_000);
+            Item item = item(id, "NEW", i);
+            switch (random.nextInt(4)) {
+                case 0:
+                    assertThat(table.putIfAbsent(id, item), sameInstance(expected.putIfAbsent(id, item)));
+                    break;
+                case 1:
+                    assertThat(table.replace(id, item), sameInstance(expected.replace(id, item)));
+                    break;
+                case 2:
+                    assertThat(table.remove(id), sameInstance(expected.remove(id)));
+                    break;
+                default:
+                    assertThat(table.get(id), sameInstance(expected.get(id)));
+            }
+        }
+        assertThat(table.size(), is(expected.size()));
+        assertThat(new ArrayList<>(table.values()), equalTo(new ArrayList<>(expected.values())));
+    }
+    
+    @Test
+    public void rangesAreReadFromTheCachedSnapshot() {
+        LongIdEntityTable table = new LongIdEntityTable();
+        LongStream.range(0L, 10L).forEach(id -> table.putIfAbsent(id * 2L, item(id * 2L, "NEW", id)));
+        assertThat(table.values(), sameInstance(table.values()));
+        assertThat(ids(table.valuesBetween(3L, 8L)), equalTo(Arrays.asList(4L, 6L, 8L)));
+        assertThat(ids(table.valuesBetween(19L, 30L)), equalTo(Collections.emptyList()));
+        assertThat(ids(table.valuesAfter(14L)), equalTo(Arrays.asList(16L, 18L)));
+        assertThat(ids(table.valuesAfter(-5L)).size(), is(10));
+        
+        table.putIfAbsent(15L, item(15L, "NEW", 0L));
+        table.remove(16L);
+        assertThat(ids(table.valuesAfter(14L)), equalTo(Arrays.asList(15L, 18L)));
+    }
+    
+    @Test
+    public void compactLongIdsDatastore() {
+        InMemoryDatastore datastore = InMemoryDatastore.compactLongIds();
+        LongStream.range(0, 1000).forEach(id -> datastore.insert(item(id, "NEW", id)));
+        datastore.update(item(500L, "SOLD", 500L));
+        datastore.remove(item(0L, "NEW", 0L));
+        datastore.insert(tag("a", "not a long id"));
+        assertThat(datastore.require(Item.createKey(500L)).getStatus(), equalTo("SOLD"));
+        assertThat(datastore.allInstanceOf(Item.class).size(), is(999));
+        assertThat(datastore.load(Item.createKey(0L)), nullValue());
+        assertThat(datastore.load(Tag.createKey("a")), notNullValue());
+    }
+    
+    private static List<Long> ids(Iterable<Entity> entities) {
+        return StreamSupport.stream(entities.spliterator(), false).map(e -> ((Item) e).getId()).collect(Collectors.toList());
+    }
+    
+}
@@ -0,0 +1,156 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.CustomId;
+import com.doctusoft.ddd.model.EntityKey;
+import com.doctusoft.ddd.model.EntityWithCustomId;
+import com.doctusoft.ddd.persistence.SampleEntities.Item;
+import com.doctusoft.ddd.persistence.SampleEntities.Tag;
+import com.doctusoft.java.AnException;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import lombok.Value;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+import static com.doctusoft.ddd.persistence.SampleEntities.*;
+import static com.doctusoft.java.LambdAssert.assertThrows;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class TestPersistentInMemoryDatastore {
+    
+    @Test
+    public void snapshotIsNotAffectedByLaterWrites() {
+        PersistentInMemoryDatastore datastore = PersistentInMemoryDatastore.create();
+        datastore.insert(item(1L, "NEW", 1L));
+        datastore.insert(tag("a", "first"));
+        PersistentInMemoryDatastore.Snapshot snapshot = datastore.snapshot();
+        
+        datastore.update(item(1L, "SOLD", 1L));
+        datastore.insert(item(2L, "NEW", 2L));
+        datastore.remove(tag("a", "first"));
+        
+        assertThat(snapshot.load(Item.createKey(1L)).getStatus(), equalTo("NEW"));
+        assertThat(snapshot.load(Item.createKey(2L)), nullValue());
+        assertThat(snapshot.load(Tag.createKey("a")), notNullValue());
+        assertThat(snapshot.count(Item.class), is(1));
+        assertThat(datastore.load(Item.createKey(1L)).getStatus(), equalTo("SOLD"));
+        assertThat(datastore.load(Tag.createKey("a")), nullValue());
+        assertThrows(() -> snapshot.insert(item(3L, "NEW", 3L)), AnException.of(UnsupportedOperationException.class));
+    }
+    
+    @Test
+    public void snapshotWaitsForRunningBatch() throws Exception {
+        PersistentInMemoryDatastore datastore = PersistentInMemoryDatastore.create();
+        datastore.insert(tag("a", "first"));
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        List<Future<PersistentInMemoryDatastore.Snapshot>> snapshots = new ArrayList<>();
+        try {
+            datastore.addChangeListener(Item.class, new EntityChangeListener<Item>() {
+                
+                public void inserted(@NotNull Item entity) {
+                    if (entity.getId() == 2L) {
+                        Future<PersistentInMemoryDatastore.Snapshot> snapshot = executor.submit(datastore::snapshot);
+                        snapshots.add(snapshot);
+                        try {
+                            snapshot.get(50L, TimeUnit.MILLISECONDS);
+                        } catch (TimeoutException e) {
+                            // the snapshot waits for the batch
+                        } catch (InterruptedException | ExecutionException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        assertThat(snapshot.isDone(), is(false));
+                    } else if (entity.getId() == 3L && entity.getStatus().equals("FAIL")) {
+                        throw new IllegalStateException("rejected");
+                    }
+                }
+                
+                public void updated(@NotNull Item entity) {}
+                
+                public void removed(@NotNull Item entity) {}
+            });
+            assertThrows(() -> datastore.insertMany(Item.class, Arrays.asList(item(1L, "NEW", 1L), item(2L, "NEW", 2L),
+                item(3L, "FAIL", 3L))), AnException.of(IllegalStateException.class));
+            assertThat(snapshots.get(0).get().count(Item.class), is(0));
+            
+            datastore.insertMany(Item.class, Arrays.asList(item(1L, "NEW", 1L), item(2L, "NEW", 2L), item(3L, "NEW", 3L)));
+            assertThat(snapshots.get(1).get().count(Item.class), is(3));
+            assertThat(snapshots.get(1).get().count(Tag.class), is(1));
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+    @Test
+    public void allInstanceOfOrderedById() {
+        PersistentInMemoryDatastore datastore = PersistentInMemoryDatastore.create();
+        Arrays.asList(10L, 9L, 100L, 1L).forEach(id -> datastore.insert(item(id, "NEW", id)));
+        assertThat(ids(datastore.allInstanceOf(Item.class)), equalTo(Arrays.asList(1L, 9L, 10L, 100L)));
+        assertThat(ids(datastore.snapshot().allInstanceOf(Item.class)), equalTo(Arrays.asList(1L, 9L, 10L, 100L)));
+    }
+    
+    @Test
+    public void snapshotLoadsCustomIds() {
+        PersistentInMemoryDatastore datastore = PersistentInMemoryDatastore.create();
+        Shipment shipment = new Shipment();
+        shipment.setId(new ShipmentId("s1"));
+        datastore.insert(shipment);
+        EntityKey<Shipment> key = EntityKey.custom(Shipment.class, new ShipmentId("s1"));
+        assertThat(datastore.load(key), notNullValue());
+        assertThat(datastore.snapshot().load(key), notNullValue());
+    }
+    
+    @Test
+    public void hashArrayMappedTrieMatchesHashMap() {
+        Random random = new Random(42L);
+        PersistentHashMap<Object, Integer> trie = PersistentHashMap.empty();
+        Map<Object, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 20000; ++i) {
+            // colliding keys are included by mixing strings of equal hash codes ("Aa" and "BB")
+            Object key = random.nextBoolean() ? (Object) (long) random.nextInt(2000) : (random.nextBoolean() ? "Aa" : "BB") + random.nextInt(50);
+            if (random.nextInt(3) == 0) {
+                trie = trie.remove(key);
+                expected.remove(key);
+            } else {
+                trie = trie.put(key, i);
+                expected.put(key, i);
+            }
+        }
+        assertThat(trie.size(), is(expected.size()));
+        Map<Object, Integer> actual = new HashMap<>();
+        trie.forEach(actual::put);
+        assertThat(actual, equalTo(expected));
+        for (Object key : expected.keySet()) {
+            assertThat(trie.get(key), equalTo(expected.get(key)));
+        }
+    }
+    
+    private static List<Long> ids(Collection<Item> items) {
+        return items.stream().map(Item::getId).collect(Collectors.toList());
+    }
+    
+    /**
+     * Not {@link Comparable}, so it is stored by its String representation.
+     */
+    @Value
+    public static class ShipmentId implements CustomId {
+        
+        String code;
+    }
+    
+    @Data
+    @NoArgsConstructor
+    public static class Shipment implements EntityWithCustomId<ShipmentId> {
+        
+        public Class<Shipment> getKind() { return Shipment.class; }
+        
+        public String getIdAsString() { return id.toString(); }
+        
+        private ShipmentId id;
+    }
+    
+}
@@ -0,0 +1,195 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.persistence.SampleEntities.Item;
+import com.doctusoft.java.AnException;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.doctusoft.ddd.persistence.SampleEntities.*;
+import static com.doctusoft.java.LambdAssert.assertThrows;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class TestTransactionalInMemoryDatastore {
+    
+    private final TransactionalInMemoryDatastore datastore = TransactionalInMemoryDatastore.create();
+    
+    @Test
+    public void changesAreVisibleAfterCommitOnly() throws Exception {
+        datastore.inTransaction(() -> {
+            datastore.insert(item(1L, "NEW", 10L));
+            assertThat(datastore.load(Item.createKey(1L)), notNullValue());
+            assertThat(inOtherThread(() -> datastore.load(Item.createKey(1L))), nullValue());
+            return null;
+        });
+        assertThat(datastore.load(Item.createKey(1L)), equalTo(item(1L, "NEW", 10L)));
+    }
+    
+    @Test
+    public void rollbackOnFailure() {
+        assertThrows(() -> datastore.transactionalExecutor().execute(() -> {
+            datastore.insert(item(1L, "NEW", 10L));
+            throw new IllegalArgumentException("failure");
+        }), AnException.of(IllegalArgumentException.class));
+        assertThat(datastore.load(Item.createKey(1L)), nullValue());
+    }
+    
+    @Test
+    public void snapshotIsolatedReads() throws Exception {
+        datastore.insert(item(1L, "NEW", 10L));
+        datastore.inTransaction(() -> {
+            assertThat(datastore.load(Item.createKey(1L)).getStatus(), equalTo("NEW"));
+            inOtherThread(() -> {
+                datastore.update(item(1L, "SOLD", 10L));
+                datastore.insert(item(2L, "NEW", 20L));
+                return null;
+            });
+            assertThat(datastore.load(Item.createKey(1L)).getStatus(), equalTo("NEW"));
+            assertThat(datastore.load(Item.createKey(2L)), nullValue());
+            assertThat(datastore.selectForUpdate(Item.createKey(1L)).getStatus(), equalTo("SOLD"));
+            return null;
+        });
+        assertThat(datastore.load(Item.createKey(2L)), notNullValue());
+    }
+    
+    @Test
+    public void firstCommitterWins() {
+        datastore.insert(item(1L, "NEW", 10L));
+        assertThrows(() -> datastore.inTransaction(() -> {
+            datastore.update(item(1L, "SOLD", 10L));
+            inOtherThread(() -> {
+                datastore.update(item(1L, "CANCELLED", 10L));
+                return null;
+            });
+            return null;
+        }), AnException.of(ConcurrentModificationException.class));
+        assertThat(datastore.load(Item.createKey(1L)).getStatus(), equalTo("CANCELLED"));
+    }
+    
+    @Test
+    public void failedCommitIsNoConflict() {
+        datastore.insert(item(1L, "NEW", 10L));
+        datastore.addChangeListener(Item.class, new EntityChangeListener<Item>() {
+            
+            public void inserted(@NotNull Item entity) {}
+            
+            public void updated(@NotNull Item entity) {
+                if (entity.getStatus().equals("FAIL")) {
+                    throw new IllegalStateException("rejected");
+                }
+            }
+            
+            public void removed(@NotNull Item entity) {}
+        });
+        datastore.inTransaction(() -> {
+            assertThat(datastore.load(Item.createKey(1L)).getStatus(), equalTo("NEW"));
+            inOtherThread(() -> {
+                assertThrows(() -> datastore.inTransaction(() -> {
+                    datastore.insert(item(2L, "NEW", 20L));
+                    datastore.update(item(1L, "FAIL", 10L));
+                    return null;
+                }), AnException.of(IllegalStateException.class));
+                return null;
+            });
+            assertThat(datastore.load(Item.createKey(1L)).getStatus(), equalTo("NEW"));
+            assertThat(datastore.load(Item.createKey(2L)), nullValue());
+            datastore.update(item(1L, "SOLD", 10L));
+            datastore.insert(item(2L, "NEW", 20L));
+            return null;
+        });
+        assertThat(datastore.load(Item.createKey(1L)).getStatus(), equalTo("SOLD"));
+    }
+    
+    @Test
+    public void selectForUpdateSerializesReadModifyWrite() throws Exception {
+        datastore.insert(item(1L, "NEW", 0L));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < 200; ++i) {
+                futures.add(executor.submit(() -> datastore.transactionalExecutor().execute(() -> {
+                    Item item = datastore.requireForUpdate(Item.createKey(1L));
+                    datastore.update(item(1L, "NEW", item.getPrice() + 1L));
+                })));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(datastore.load(Item.createKey(1L)).getPrice(), equalTo(200L));
+    }
+    
+    @Test
+    public void lockTimeoutBreaksDeadlock() throws Exception {
+        TransactionalInMemoryDatastore datastore = TransactionalInMemoryDatastore.create(200L, TimeUnit.MILLISECONDS);
+        datastore.insert(item(1L, "NEW", 0L));
+        datastore.insert(item(2L, "NEW", 0L));
+        CyclicBarrier barrier = new CyclicBarrier(2);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (long first : new long[] { 1L, 2L }) {
+                futures.add(executor.submit(() -> datastore.inTransaction(() -> {
+                    datastore.requireForUpdate(Item.createKey(first));
+                    await(barrier);
+                    datastore.requireForUpdate(Item.createKey(3L - first));
+                    datastore.update(item(first, "SOLD", first));
+                    return null;
+                })));
+            }
+            int failures = 0;
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    assertThat(e.getCause(), instanceOf(ConcurrentModificationException.class));
+                    ++failures;
+                }
+            }
+            assertThat(failures, not(is(0)));
+        } finally {
+            executor.shutdown();
+        }
+        assertThat(datastore.inTransaction(() -> datastore.requireForUpdate(Item.createKey(1L))), notNullValue());
+        assertThat(datastore.inTransaction(() -> datastore.requireForUpdate(Item.createKey(2L))), notNullValue());
+    }
+    
+    @Test
+    public void selectForUpdateRequiresTransaction() {
+        datastore.insert(item(1L, "NEW", 0L));
+        assertThrows(() -> datastore.selectForUpdate(Item.createKey(1L)), AnException.of(IllegalStateException.class));
+    }
+    
+    @Test
+    public void streamIsRejectedInTransaction() {
+        datastore.insert(item(1L, "NEW", 0L));
+        assertThat(datastore.stream(Item.class, 10).count(), is(1L));
+        assertThrows(() -> datastore.inTransaction(() -> datastore.stream(Item.class, 10)),
+            AnException.of(IllegalStateException.class));
+    }
+    
+    private static void await(CyclicBarrier barrier) {
+        try {
+            barrier.await();
+        } catch (InterruptedException | BrokenBarrierException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+    
+    private static <T> T inOtherThread(Callable<T> task) {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            return executor.submit(task).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            executor.shutdown();
+        }
+    }
+    
+}
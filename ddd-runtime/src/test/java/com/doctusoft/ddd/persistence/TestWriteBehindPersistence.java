@@ -0,0 +1,152 @@
+package com.doctusoft.ddd.persistence;
+
+import com.doctusoft.ddd.model.Entity;
+import com.doctusoft.ddd.persistence.SampleEntities.Item;
+import com.doctusoft.ddd.persistence.SampleEntities.Tag;
+import com.doctusoft.java.AnException;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+import static com.doctusoft.ddd.persistence.SampleEntities.*;
+import static com.doctusoft.java.LambdAssert.assertThrows;
+import static org.hamcrest.CoreMatchers.*;
+import static org.junit.Assert.assertThat;
+
+public class TestWriteBehindPersistence {
+    
+    private final List<String> batches = new ArrayList<>();
+    
+    private InMemoryDatastore datastore;
+    
+    private WriteBehindPersistence persistence;
+    
+    @Before
+    public void setup() {
+        datastore = new InMemoryDatastore(EntityTableFactory.sorted(ConcurrentSkipListMap::new)) {
+            public <T extends Entity> void insertMany(Class<T> kind, Collection<? extends T> newEntities) {
+                batches.add("insert " + kind.getSimpleName() + " x" + newEntities.size());
+                super.insertMany(kind, newEntities);
+            }
+            
+            public <T extends Entity> void updateMany(Class<T> kind, Collection<? extends T> changedEntities) {
+                batches.add("update " + kind.getSimpleName() + " x" + changedEntities.size());
+                super.updateMany(kind, changedEntities);
+            }
+            
+            public <T extends Entity> int removeMany(Class<T> kind, Collection idList) {
+                batches.add("remove " + kind.getSimpleName() + " x" + idList.size());
+                return super.removeMany(kind, idList);
+            }
+        };
+        persistence = WriteBehindPersistence.create(datastore);
+    }
+    
+    @Test
+    public void coalescesWritesPerKey() {
+        datastore.insert(item(1L, "NEW", 10L));
+        datastore.insert(item(2L, "NEW", 20L));
+        persistence.update(item(1L, "PAID", 10L));
+        persistence.update(item(1L, "SHIPPED", 10L));
+        persistence.insert(item(3L, "NEW", 30L));
+        persistence.update(item(3L, "PAID", 30L));
+        persistence.insert(item(4L, "NEW", 40L));
+        persistence.remove(item(4L, "NEW", 40L));
+        persistence.insert(tag("a", "first"));
+        persistence.remove(item(2L, "NEW", 20L));
+        assertThat(persistence.pendingWriteCount(), is(4));
+        assertThat(persistence.require(Item.createKey(1L)).getStatus(), equalTo("SHIPPED"));
+        assertThat(persistence.find(Item.createKey(2L)).isPresent(), is(false));
+        assertThat(persistence.loadMany(Arrays.asList(Item.createKey(2L), Item.createKey(3L))).size(), is(1));
+        assertThat(datastore.require(Item.createKey(1L)).getStatus(), equalTo("NEW"));
+        assertThrows(() -> persistence.insert(item(3L, "NEW", 30L)), AnException.of(IllegalStateException.class));
+        assertThrows(() -> persistence.update(item(2L, "NEW", 20L)), AnException.of(EntityNotFoundException.class));
+        
+        persistence.flush();
+        assertThat(batches, equalTo(Arrays.asList("remove Item x1", "insert Item x1", "update Item x1", "insert Tag x1")));
+        assertThat(persistence.pendingWriteCount(), is(0));
+        assertThat(datastore.require(Item.createKey(1L)).getStatus(), equalTo("SHIPPED"));
+        assertThat(datastore.require(Item.createKey(3L)).getStatus(), equalTo("PAID"));
+        assertThat(datastore.find(Item.createKey(2L)).isPresent(), is(false));
+        assertThat(datastore.find(Item.createKey(4L)).isPresent(), is(false));
+        assertThat(datastore.require(Tag.createKey("a")).getLabel(), equalTo("first"));
+    }
+    
+    @Test
+    public void unitOfWork() {
+        datastore.insert(item(1L, "NEW", 10L));
+        persistence.inUnitOfWork(() -> {
+            persistence.remove(item(1L, "NEW", 10L));
+            persistence.insert(item(1L, "REPLACED", 15L));
+            return null;
+        });
+        assertThat(datastore.require(Item.createKey(1L)).getStatus(), equalTo("REPLACED"));
+        
+        assertThrows(() -> persistence.inUnitOfWork(() -> {
+            persistence.update(item(1L, "LOST", 15L));
+            throw new IllegalArgumentException();
+        }), AnException.of(IllegalArgumentException.class));
+        assertThat(persistence.pendingWriteCount(), is(0));
+        assertThat(datastore.require(Item.createKey(1L)).getStatus(), equalTo("REPLACED"));
+        
+        persistence.insert(item(2L, "NEW", 20L));
+        assertThat(persistence.loadByIdAsc(Item.class, Arrays.asList(1L, 2L)).size(), is(2));
+        assertThat(persistence.pendingWriteCount(), is(0));
+    }
+    
+    @Test
+    public void removeManyDoesNotFlush() {
+        datastore.insert(item(1L, "NEW", 10L));
+        datastore.insert(item(2L, "NEW", 20L));
+        datastore.insert(tag("a", "first"));
+        persistence.update(item(1L, "PAID", 10L));
+        persistence.insert(item(3L, "NEW", 30L));
+        assertThat(persistence.removeMany(Item.class, Arrays.asList(1L, 2L, 3L, 5L)), is(3));
+        assertThat(persistence.removeByKeys(Arrays.asList(Item.createKey(2L), Tag.createKey("a"), Tag.createKey("b"))), is(1));
+        assertThat(batches.isEmpty(), is(true));
+        assertThat(persistence.pendingWriteCount(), is(3));
+        assertThat(datastore.find(Item.createKey(1L)).isPresent(), is(true));
+        
+        persistence.flush();
+        assertThat(batches, equalTo(Arrays.asList("remove Item x2", "remove Tag x1")));
+        assertThat(datastore.find(Item.createKey(1L)).isPresent(), is(false));
+        assertThat(datastore.find(Item.createKey(2L)).isPresent(), is(false));
+        assertThat(datastore.find(Item.createKey(3L)).isPresent(), is(false));
+        assertThat(datastore.find(Tag.createKey("a")).isPresent(), is(false));
+    }
+    
+    @Test
+    public void flushesBeforeCommit() {
+        TransactionalInMemoryDatastore transactional = TransactionalInMemoryDatastore.create();
+        WriteBehindPersistence persistence = WriteBehindPersistence.create(transactional, transactional::beforeCommit);
+        persistence.insert(item(1L, "NEW", 10L));
+        assertThat(persistence.pendingWriteCount(), is(1));
+        persistence.flush();
+        
+        transactional.inTransaction(() -> {
+            persistence.update(item(1L, "PAID", 10L));
+            persistence.insert(item(2L, "NEW", 20L));
+            assertThat(transactional.require(Item.createKey(1L)).getStatus(), equalTo("NEW"));
+            return null;
+        });
+        assertThat(persistence.pendingWriteCount(), is(0));
+        assertThat(transactional.require(Item.createKey(1L)).getStatus(), equalTo("PAID"));
+        assertThat(transactional.find(Item.createKey(2L)).isPresent(), is(true));
+        
+        assertThrows(() -> transactional.inTransaction(() -> {
+            persistence.update(item(1L, "LOST", 10L));
+            throw new IllegalArgumentException();
+        }), AnException.of(IllegalArgumentException.class));
+        persistence.discard();
+        transactional.inTransaction(() -> {
+            persistence.update(item(2L, "PAID", 20L));
+            return null;
+        });
+        assertThat(persistence.pendingWriteCount(), is(0));
+        assertThat(transactional.require(Item.createKey(1L)).getStatus(), equalTo("PAID"));
+        assertThat(transactional.require(Item.createKey(2L)).getStatus(), equalTo("PAID"));
+    }
+    
+}